@@ -14,12 +14,26 @@ public abstract class Connection {
 	 */
 	protected ConnectionInfoPack connectionInfoPack;
 
+	/**
+	 * The view told about what arrives, <code>null</code> if none.
+	 */
+	protected volatile ConnectionListener connectionListener;
+
 	/**
 	 * Constructor.
 	 */
 	public Connection() {
 	}
 
+	/**
+	 * Sets the view told about what arrives.
+	 *
+	 * @param connectionListener The view.
+	 */
+	public void setConnectionListener(ConnectionListener connectionListener) {
+		this.connectionListener = connectionListener;
+	}
+
 	/**
 	 * Start the connection.
 	 * 
@@ -1,5 +1,7 @@
 package assistant.connection;
 
+import assistant.message.codec.CodecType;
+
 /**
  * A {@link Connection} can not be established/created without a few
  * information, like the port number to listen to.
@@ -15,6 +17,319 @@ public class ConnectionInfoPack {
 	 */
 	public static class ConnectionInfoPackBuilder {
 		
+		/**
+		 * The transport mode. Blocking by default.
+		 */
+		private TransportMode transportMode = TransportMode.BLOCKING;
+		
+		/**
+		 * The kind of threads each client is read and written on. Platform threads by default.
+		 */
+		private ThreadMode threadMode = ThreadMode.PLATFORM;
+		
+		/**
+		 * The number of selector loops. One per core by default.
+		 */
+		private int selectorThreads = Runtime.getRuntime().availableProcessors();
+		
+		/**
+		 * The codec. Binary by default.
+		 */
+		private CodecType codecType = CodecType.BINARY;
+		
+		/**
+		 * The high-water mark of each client's outbound queue.
+		 */
+		private int outboundQueueCapacity = 1024;
+		
+		/**
+		 * What to do with a client that reaches the high-water mark. Drop the oldest message by default.
+		 */
+		private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+		
+		/**
+		 * The number of recent messages replayed to a client that logs in.
+		 */
+		private int recentHistoryCapacity = 100;
+		
+		/**
+		 * How long the logins and logouts are gathered before the clients are told, in milliseconds.
+		 */
+		private long presenceWindowMillis = 50;
+		
+		/**
+		 * The port the metrics are served on. None by default.
+		 */
+		private int metricsPort = 0;
+		
+		/**
+		 * How often the metrics are written to the log, in milliseconds. Every minute by default.
+		 */
+		private long metricsLogIntervalMillis = 60000;
+		
+		/**
+		 * <code>true</code> if the messages are kept in the DATA BASE. Kept by default.
+		 */
+		private boolean isPersistenceEnabled = true;
+		
+		/**
+		 * How long the server may take to shut down, in milliseconds. Five seconds by default.
+		 */
+		private long shutdownTimeoutMillis = 5000;
+		
+		/**
+		 * The bytes written to a client before they are flushed, at most. Sixteen kilobytes by default.
+		 */
+		private int flushBytes = 16 * 1024;
+		
+		/**
+		 * How long a message written to a client may wait to be flushed, in milliseconds. Five by default.
+		 */
+		private long flushIntervalMillis = 5;
+		
+		/**
+		 * The first wait before reconnecting, in milliseconds. Half a second by default.
+		 */
+		private long reconnectBaseDelayMillis = 500;
+		
+		/**
+		 * The longest wait between two reconnections, in milliseconds. Thirty seconds by default.
+		 */
+		private long reconnectMaxDelayMillis = 30000;
+		
+		/**
+		 * The number of lines the chat area keeps. Five thousand by default.
+		 */
+		private int chatHistoryLines = 5000;
+		
+		/**
+		 * Sets the transport mode.
+		 * 
+		 * @param transportMode The transport mode.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withTransportMode(TransportMode transportMode) {
+			this.transportMode = transportMode;
+			return this;
+		}
+		
+		/**
+		 * Sets the kind of threads each connection is read and written on.
+		 * Virtual threads let a server hold far more idle clients in
+		 * {@link TransportMode#BLOCKING} mode than it could hold platform
+		 * threads; they fall back to platform threads on a JVM without them.
+		 * 
+		 * {Applicable for server side, in {@link TransportMode#BLOCKING} mode, and for client side}
+		 * 
+		 * @param threadMode The kind of threads.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withThreadMode(ThreadMode threadMode) {
+			this.threadMode = threadMode;
+			return this;
+		}
+		
+		/**
+		 * Sets the number of selector loops.
+		 * 
+		 * {Applicable only for server side, in {@link TransportMode#SELECTOR} mode}
+		 * 
+		 * @param selectorThreads The number of selector loops.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withSelectorThreads(int selectorThreads) {
+			this.selectorThreads = selectorThreads;
+			return this;
+		}
+		
+		/**
+		 * Sets the codec the client logs in with. The server answers in the same codec.
+		 * 
+		 * {Applicable only for client side}
+		 * 
+		 * @param codecType The codec.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withCodecType(CodecType codecType) {
+			this.codecType = codecType;
+			return this;
+		}
+		
+		/**
+		 * Sets the high-water mark of each client's outbound queue.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param outboundQueueCapacity The most messages a client can fall behind.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withOutboundQueueCapacity(int outboundQueueCapacity) {
+			this.outboundQueueCapacity = outboundQueueCapacity;
+			return this;
+		}
+		
+		/**
+		 * Sets what to do with a client that reaches the high-water mark.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param overflowPolicy The policy.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+			this.overflowPolicy = overflowPolicy;
+			return this;
+		}
+		
+		/**
+		 * Sets the number of recent messages kept in memory, and replayed to a
+		 * client right after it logs in.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param recentHistoryCapacity The number of messages. <code>0</code> for none.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withRecentHistoryCapacity(int recentHistoryCapacity) {
+			this.recentHistoryCapacity = recentHistoryCapacity;
+			return this;
+		}
+		
+		/**
+		 * Sets how long the logins and logouts are gathered before the clients
+		 * are told. A user that logs out and back in within the window is not
+		 * told about at all.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param presenceWindowMillis The window, in milliseconds. <code>0</code> tells each one right away.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withPresenceWindowMillis(long presenceWindowMillis) {
+			this.presenceWindowMillis = presenceWindowMillis;
+			return this;
+		}
+		
+		/**
+		 * Sets the port the metrics are served on, as plain text over HTTP.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param metricsPort The port. <code>0</code> for none.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withMetricsPort(int metricsPort) {
+			this.metricsPort = metricsPort;
+			return this;
+		}
+		
+		/**
+		 * Sets how often the metrics are written to the log.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param metricsLogIntervalMillis The interval, in milliseconds. <code>0</code> for never.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withMetricsLogIntervalMillis(long metricsLogIntervalMillis) {
+			this.metricsLogIntervalMillis = metricsLogIntervalMillis;
+			return this;
+		}
+		
+		/**
+		 * Sets whether the messages are kept in the DATA BASE.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param isPersistenceEnabled <code>false</code> to keep them only in the recent history.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withPersistence(boolean isPersistenceEnabled) {
+			this.isPersistenceEnabled = isPersistenceEnabled;
+			return this;
+		}
+		
+		/**
+		 * Sets how long the server may take to shut down : to deliver what the
+		 * clients have not received yet, and to write the messages not yet in
+		 * the DATA BASE.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param shutdownTimeoutMillis The time, in milliseconds.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withShutdownTimeoutMillis(long shutdownTimeoutMillis) {
+			this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+			return this;
+		}
+		
+		/**
+		 * Sets when the messages written to a client are flushed to its socket.
+		 * They always are once nothing is left to write; under a burst, also
+		 * once this many bytes are waiting, or once the oldest one has waited
+		 * this long. The bytes are also the size of the pooled buffers they are
+		 * written into.
+		 * 
+		 * {Applicable only for server side}
+		 * 
+		 * @param flushBytes 		  The bytes, at most.
+		 * @param flushIntervalMillis The wait, in milliseconds, at most.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withFlushThresholds(int flushBytes, long flushIntervalMillis) {
+			this.flushBytes 		 = flushBytes;
+			this.flushIntervalMillis = flushIntervalMillis;
+			return this;
+		}
+		
+		/**
+		 * Sets how long the client waits before reconnecting, once the connection
+		 * is lost. The wait doubles after each failed attempt, up to the longest
+		 * one, and a random part of it is left out, so the clients of a server
+		 * that went down do not all come back at the same time.
+		 * 
+		 * {Applicable only for client side}
+		 * 
+		 * @param reconnectBaseDelayMillis The first wait, in milliseconds. <code>0</code> never reconnects.
+		 * @param reconnectMaxDelayMillis  The longest wait, in milliseconds.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withReconnectDelays(long reconnectBaseDelayMillis, long reconnectMaxDelayMillis) {
+			this.reconnectBaseDelayMillis = reconnectBaseDelayMillis;
+			this.reconnectMaxDelayMillis  = reconnectMaxDelayMillis;
+			return this;
+		}
+		
+		/**
+		 * Sets the number of lines the chat area keeps. The oldest lines go
+		 * first, so a long session does not grow without bound.
+		 * 
+		 * {Applicable only for client side}
+		 * 
+		 * @param chatHistoryLines The number of lines.
+		 * 
+		 * @return This builder.
+		 */
+		public ConnectionInfoPackBuilder withChatHistoryLines(int chatHistoryLines) {
+			this.chatHistoryLines = chatHistoryLines;
+			return this;
+		}
+		
 		/**
 		 * Build a connection information pack instance.
 		 * 
@@ -26,7 +341,7 @@ public class ConnectionInfoPack {
 		 */
 		public ConnectionInfoPack build(String user, String serverAddress, int portNumber) {
 			// Create an info pack instance.
-			return new ConnectionInfoPack(user, serverAddress, portNumber);
+			return new ConnectionInfoPack(user, serverAddress, portNumber, this);
 		}
 	}
 	
@@ -49,17 +364,152 @@ public class ConnectionInfoPack {
 	 */
 	private int portNumber;
 	
+	/**
+	 * The transport mode.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private TransportMode transportMode;
+	
+	/**
+	 * The kind of threads each connection is read and written on.
+	 */
+	private ThreadMode threadMode;
+	
+	/**
+	 * The number of selector loops.
+	 * 
+	 * {Applicable only for server side, in {@link TransportMode#SELECTOR} mode}
+	 */
+	private int selectorThreads;
+	
+	/**
+	 * The codec the client logs in with.
+	 * 
+	 * {Applicable only for client side}
+	 */
+	private CodecType codecType;
+	
+	/**
+	 * The high-water mark of each client's outbound queue.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private int outboundQueueCapacity;
+	
+	/**
+	 * What to do with a client that reaches the high-water mark.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private OverflowPolicy overflowPolicy;
+	
+	/**
+	 * The number of recent messages replayed to a client that logs in.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private int recentHistoryCapacity;
+	
+	/**
+	 * How long the logins and logouts are gathered before the clients are told, in milliseconds.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private long presenceWindowMillis;
+	
+	/**
+	 * The port the metrics are served on, <code>0</code> for none.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private int metricsPort;
+	
+	/**
+	 * How often the metrics are written to the log, in milliseconds. <code>0</code> for never.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private long metricsLogIntervalMillis;
+	
+	/**
+	 * <code>true</code> if the messages are kept in the DATA BASE.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private boolean isPersistenceEnabled;
+	
+	/**
+	 * How long the server may take to shut down, in milliseconds.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private long shutdownTimeoutMillis;
+	
+	/**
+	 * The bytes written to a client before they are flushed, at most.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private int flushBytes;
+	
+	/**
+	 * How long a message written to a client may wait to be flushed, in milliseconds.
+	 * 
+	 * {Applicable only for server side}
+	 */
+	private long flushIntervalMillis;
+	
+	/**
+	 * The first wait before reconnecting, in milliseconds. <code>0</code> never reconnects.
+	 * 
+	 * {Applicable only for client side}
+	 */
+	private long reconnectBaseDelayMillis;
+	
+	/**
+	 * The longest wait between two reconnections, in milliseconds.
+	 * 
+	 * {Applicable only for client side}
+	 */
+	private long reconnectMaxDelayMillis;
+	
+	/**
+	 * The number of lines the chat area keeps.
+	 * 
+	 * {Applicable only for client side}
+	 */
+	private int chatHistoryLines;
+	
 	/**
 	 * Constructor.
 	 * 
 	 * @param user          The user.
 	 * @param serverAddress The server address
 	 * @param portNumber 	The port number to listen to.
+	 * @param builder 		The builder holding the optional settings.
 	 */
-	private ConnectionInfoPack(String user, String serverAddress, int portNumber) {
-		this.user 		   = user;
-		this.serverAddress = serverAddress;
-		this.portNumber    = portNumber;
+	private ConnectionInfoPack(String user, String serverAddress, int portNumber, ConnectionInfoPackBuilder builder) {
+		this.user 		     	   = user;
+		this.serverAddress   	   = serverAddress;
+		this.portNumber      	   = portNumber;
+		this.transportMode   	   = builder.transportMode;
+		this.threadMode 		   = builder.threadMode;
+		this.selectorThreads 	   = builder.selectorThreads;
+		this.codecType       	   = builder.codecType;
+		this.outboundQueueCapacity = builder.outboundQueueCapacity;
+		this.overflowPolicy 	   = builder.overflowPolicy;
+		this.recentHistoryCapacity = builder.recentHistoryCapacity;
+		this.presenceWindowMillis  = builder.presenceWindowMillis;
+		this.metricsPort 		   = builder.metricsPort;
+		this.metricsLogIntervalMillis = builder.metricsLogIntervalMillis;
+		this.isPersistenceEnabled  = builder.isPersistenceEnabled;
+		this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+		this.flushBytes 		   = builder.flushBytes;
+		this.flushIntervalMillis   = builder.flushIntervalMillis;
+		this.reconnectBaseDelayMillis = builder.reconnectBaseDelayMillis;
+		this.reconnectMaxDelayMillis  = builder.reconnectMaxDelayMillis;
+		this.chatHistoryLines 	   = builder.chatHistoryLines;
 	}
 	
 	/**
@@ -88,4 +538,157 @@ public class ConnectionInfoPack {
 	public int getPortNumber() {
 		return this.portNumber;
 	}
+	
+	/**
+	 * Returns the transport mode.
+	 * 
+	 * @return the transport mode.
+	 */
+	public TransportMode getTransportMode() {
+		return this.transportMode;
+	}
+	
+	/**
+	 * Returns the kind of threads each connection is read and written on.
+	 * 
+	 * @return the kind of threads each connection is read and written on.
+	 */
+	public ThreadMode getThreadMode() {
+		return this.threadMode;
+	}
+	
+	/**
+	 * Returns the number of selector loops.
+	 * 
+	 * @return the number of selector loops.
+	 */
+	public int getSelectorThreads() {
+		return this.selectorThreads;
+	}
+	
+	/**
+	 * Returns the codec the client logs in with.
+	 * 
+	 * @return the codec the client logs in with.
+	 */
+	public CodecType getCodecType() {
+		return this.codecType;
+	}
+	
+	/**
+	 * Returns the high-water mark of each client's outbound queue.
+	 * 
+	 * @return the high-water mark of each client's outbound queue.
+	 */
+	public int getOutboundQueueCapacity() {
+		return this.outboundQueueCapacity;
+	}
+	
+	/**
+	 * Returns what to do with a client that reaches the high-water mark.
+	 * 
+	 * @return what to do with a client that reaches the high-water mark.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+	
+	/**
+	 * Returns the number of recent messages replayed to a client that logs in.
+	 * 
+	 * @return the number of recent messages replayed to a client that logs in.
+	 */
+	public int getRecentHistoryCapacity() {
+		return this.recentHistoryCapacity;
+	}
+	
+	/**
+	 * Returns how long the logins and logouts are gathered before the clients are told, in milliseconds.
+	 * 
+	 * @return how long the logins and logouts are gathered.
+	 */
+	public long getPresenceWindowMillis() {
+		return this.presenceWindowMillis;
+	}
+	
+	/**
+	 * Returns the port the metrics are served on, <code>0</code> for none.
+	 * 
+	 * @return the port the metrics are served on.
+	 */
+	public int getMetricsPort() {
+		return this.metricsPort;
+	}
+	
+	/**
+	 * Returns how often the metrics are written to the log, in milliseconds. <code>0</code> for never.
+	 * 
+	 * @return how often the metrics are written to the log.
+	 */
+	public long getMetricsLogIntervalMillis() {
+		return this.metricsLogIntervalMillis;
+	}
+	
+	/**
+	 * Returns <code>true</code> if the messages are kept in the DATA BASE.
+	 * 
+	 * @return <code>true</code> if the messages are kept in the DATA BASE.
+	 */
+	public boolean isPersistenceEnabled() {
+		return this.isPersistenceEnabled;
+	}
+	
+	/**
+	 * Returns how long the server may take to shut down, in milliseconds.
+	 * 
+	 * @return how long the server may take to shut down, in milliseconds.
+	 */
+	public long getShutdownTimeoutMillis() {
+		return this.shutdownTimeoutMillis;
+	}
+	
+	/**
+	 * Returns the bytes written to a client before they are flushed, at most.
+	 * 
+	 * @return the bytes written to a client before they are flushed, at most.
+	 */
+	public int getFlushBytes() {
+		return this.flushBytes;
+	}
+	
+	/**
+	 * Returns how long a message written to a client may wait to be flushed, in milliseconds.
+	 * 
+	 * @return how long a message written to a client may wait to be flushed, in milliseconds.
+	 */
+	public long getFlushIntervalMillis() {
+		return this.flushIntervalMillis;
+	}
+	
+	/**
+	 * Returns the first wait before reconnecting, in milliseconds.
+	 * 
+	 * @return the first wait before reconnecting, in milliseconds.
+	 */
+	public long getReconnectBaseDelayMillis() {
+		return this.reconnectBaseDelayMillis;
+	}
+	
+	/**
+	 * Returns the longest wait between two reconnections, in milliseconds.
+	 * 
+	 * @return the longest wait between two reconnections, in milliseconds.
+	 */
+	public long getReconnectMaxDelayMillis() {
+		return this.reconnectMaxDelayMillis;
+	}
+	
+	/**
+	 * Returns the number of lines the chat area keeps.
+	 * 
+	 * @return the number of lines the chat area keeps.
+	 */
+	public int getChatHistoryLines() {
+		return this.chatHistoryLines;
+	}
 }
@@ -0,0 +1,30 @@
+package assistant.connection;
+
+import assistant.message.ChatMessage;
+import assistant.message.MessageType;
+
+/**
+ * {@link ConnectionListener}. What a view is told by its {@link Connection}, as
+ * soon as the messages are read. Both methods are called on the thread that
+ * reads from the server, one message after the other : they must not wait.
+ *
+ * @author costi.dumitrescu
+ */
+public interface ConnectionListener {
+
+	/**
+	 * A line to be shown in the chat : a message, a login, a logout, a notice.
+	 *
+	 * @param line The line.
+	 */
+	void lineArrived(String line);
+
+	/**
+	 * The users in the room have changed. A {@link MessageType#WHOISIN} holds
+	 * the whole list, a {@link MessageType#JOINED} or a {@link MessageType#LEFT}
+	 * only the users that have come or gone, separated by comma.
+	 *
+	 * @param message The message.
+	 */
+	void usersArrived(ChatMessage message);
+}
@@ -0,0 +1,20 @@
+package assistant.connection;
+
+/**
+ * What the server does when a client falls so far behind that its outbound
+ * queue reaches the high-water mark.
+ * 
+ * @author costi.dumitrescu
+ */
+public enum OverflowPolicy {
+
+	// The oldest queued message is dropped to make room for the new one.
+	DROP_OLDEST,
+
+	// The client is disconnected.
+	DISCONNECT,
+
+	// The queued presence messages (WHOISIN, JOINED, LEFT) are folded first into one WHOISIN, with the users
+	// as they are now. Then the oldest message is dropped.
+	COALESCE_WHOISIN;
+}
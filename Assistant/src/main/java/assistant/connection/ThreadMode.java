@@ -0,0 +1,85 @@
+package assistant.connection;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * The kind of threads a blocking {@link Connection} runs the reading and the
+ * writing of each client on.
+ *
+ * @author costi.dumitrescu
+ */
+public enum ThreadMode {
+
+	// One platform thread for each. Each of them holds a stack of its own, which caps the number of clients.
+	PLATFORM,
+
+	// One virtual thread for each, if the JVM has them. A client blocked on its socket holds no platform thread.
+	VIRTUAL;
+
+	/**
+	 * Thread.ofVirtual(), looked up once. <code>null</code> if the JVM has no virtual threads.
+	 */
+	private static final Method OF_VIRTUAL;
+
+	/**
+	 * Thread.Builder.name(String).
+	 */
+	private static final Method NAME;
+
+	/**
+	 * Thread.Builder.unstarted(Runnable).
+	 */
+	private static final Method UNSTARTED;
+
+	static {
+		// The build targets an older Java than the one virtual threads came with,
+		// so they are reached by reflection.
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name 	  = builderClass.getMethod("name", String.class);
+			unstarted = builderClass.getMethod("unstarted", Runnable.class);
+			// A preview feature that is not enabled refuses to build.
+			ofVirtual.invoke(null);
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME 	   = name;
+		UNSTARTED  = unstarted;
+	}
+
+	/**
+	 * Returns <code>true</code> if the JVM has virtual threads. If it does not,
+	 * {@link #VIRTUAL} falls back to platform threads.
+	 *
+	 * @return <code>true</code> if the JVM has virtual threads.
+	 */
+	public static boolean isVirtualAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create a thread of this kind, not started yet.
+	 *
+	 * @param name 	   The name of the thread.
+	 * @param runnable What the thread runs.
+	 *
+	 * @return 		   The thread.
+	 */
+	public Thread newThread(String name, Runnable runnable) {
+		if (this == VIRTUAL && isVirtualAvailable()) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, runnable);
+			} catch (IllegalAccessException | InvocationTargetException e) {
+				// Checked once already, not expected. Fall back to a platform thread.
+			}
+		}
+		return new Thread(runnable, name);
+	}
+}
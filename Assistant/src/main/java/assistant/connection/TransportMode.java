@@ -0,0 +1,15 @@
+package assistant.connection;
+
+/**
+ * The way a {@link Connection} moves bytes between the server and its clients.
+ * 
+ * @author costi.dumitrescu
+ */
+public enum TransportMode {
+
+	// One blocking thread per client. Understands both framed and object stream clients.
+	BLOCKING,
+
+	// A few selector loops serving all clients. Understands only framed clients.
+	SELECTOR;
+}
@@ -0,0 +1,112 @@
+package assistant.handler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link BufferPool}. Buffers of one size, lent to whoever writes, and given
+ * back once the bytes are on the socket. A connection only holds a buffer
+ * while it has something to write, so thousands of idle clients cost no
+ * memory. The pool keeps a bounded number of buffers; the others are left to
+ * the garbage collector.
+ *
+ * The buffers can be direct : a channel writes them as they are, instead of
+ * copying them first into a direct buffer of its own.
+ *
+ * @author costi.dumitrescu
+ */
+public class BufferPool {
+
+	/**
+	 * The size of each buffer, in bytes.
+	 */
+	private final int bufferSize;
+
+	/**
+	 * The most buffers kept for later.
+	 */
+	private final int maxPooledBuffers;
+
+	/**
+	 * <code>true</code> if the buffers are allocated outside of the heap.
+	 */
+	private final boolean isDirect;
+
+	/**
+	 * The buffers kept for later.
+	 */
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+
+	/**
+	 * The number of buffers kept for later. Counted apart, the size of the queue is not cheap.
+	 */
+	private final AtomicInteger pooledBuffers;
+
+	/**
+	 * Constructor. The buffers are on the heap.
+	 *
+	 * @param bufferSize 	   The size of each buffer, in bytes.
+	 * @param maxPooledBuffers The most buffers kept for later.
+	 */
+	public BufferPool(int bufferSize, int maxPooledBuffers) {
+		this(bufferSize, maxPooledBuffers, false);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bufferSize 	   The size of each buffer, in bytes.
+	 * @param maxPooledBuffers The most buffers kept for later.
+	 * @param isDirect 		   <code>true</code> to allocate the buffers outside of the heap.
+	 */
+	public BufferPool(int bufferSize, int maxPooledBuffers, boolean isDirect) {
+		this.bufferSize 	  = Math.max(1, bufferSize);
+		this.maxPooledBuffers = Math.max(0, maxPooledBuffers);
+		this.isDirect 		  = isDirect;
+		this.buffers 		  = new ConcurrentLinkedQueue<>();
+		this.pooledBuffers 	  = new AtomicInteger();
+	}
+
+	/**
+	 * Returns an empty buffer, a pooled one if there is any.
+	 *
+	 * @return an empty buffer, ready to be written into.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = this.buffers.poll();
+		if (buffer == null) {
+			return this.isDirect ? ByteBuffer.allocateDirect(this.bufferSize) : ByteBuffer.allocate(this.bufferSize);
+		}
+		this.pooledBuffers.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back. It must not be touched afterwards.
+	 *
+	 * @param buffer The buffer, from {@link #acquire()}.
+	 */
+	public void release(ByteBuffer buffer) {
+		// Not one of ours.
+		if (buffer.capacity() != this.bufferSize || buffer.isDirect() != this.isDirect) {
+			return;
+		}
+		// Kept only if there is room.
+		if (this.pooledBuffers.incrementAndGet() > this.maxPooledBuffers) {
+			this.pooledBuffers.decrementAndGet();
+			return;
+		}
+		this.buffers.offer(buffer);
+	}
+
+	/**
+	 * Returns the size of each buffer, in bytes.
+	 *
+	 * @return the size of each buffer, in bytes.
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+}
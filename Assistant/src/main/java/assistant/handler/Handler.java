@@ -2,8 +2,6 @@ package assistant.handler;
 
 import java.io.IOException;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 /**
  * {@link Handler}. Handles the different types of incoming/outgoing messages.
  * 
@@ -17,10 +15,9 @@ public interface Handler {
 	 * @param username The user-name.
 	 * @param message  The message.
 	 * 
-	 * @throws IOException 					Any exception thrown by the underlying OutputStream. 
-	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
 	 */
-	public void handleLogin(String username, String message) throws IOException, ParserConfigurationException;
+	public void handleLogin(String username, String message) throws IOException;
 
 	/**
 	 * 'Who-is-in' Message Type - specific behavior.
@@ -28,21 +25,20 @@ public interface Handler {
 	 * @param username The user-name.
 	 * @param message  The message.
 	 * 
-	 * @throws IOException 					Any exception thrown by the underlying OutputStream. 
-	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
 	 */
-	public void handleWhoIsIn(String username, String message) throws IOException, ParserConfigurationException;
+	public void handleWhoIsIn(String username, String message) throws IOException;
 
 	/**
 	 * 'Message' Message Type - specific behavior.
 	 * 
 	 * @param username The user-name.
+	 * @param channel  The channel, <code>null</code> for the default one.
 	 * @param message  The message.
 	 * 
-	 * @throws IOException 					Any exception thrown by the underlying OutputStream. 
-	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
 	 */
-	public void handleMessage(String username, String message) throws IOException, ParserConfigurationException;
+	public void handleMessage(String username, String channel, String message) throws IOException;
 
 	/**
 	 * 'Login' Message Type - specific behavior.
@@ -50,8 +46,67 @@ public interface Handler {
 	 * @param username The user-name.
 	 * @param message  The message.
 	 * 
-	 * @throws IOException 					Any exception thrown by the underlying OutputStream. 
-	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void handleLogout(String username, String message) throws IOException;
+
+	/**
+	 * 'Join' Message Type - specific behavior.
+	 * 
+	 * @param username The user-name.
+	 * @param channel  The channel.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void handleJoin(String username, String channel) throws IOException;
+
+	/**
+	 * 'Leave' Message Type - specific behavior.
+	 * 
+	 * @param username The user-name.
+	 * @param channel  The channel.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void handleLeave(String username, String channel) throws IOException;
+
+	/**
+	 * 'List' Message Type - specific behavior.
+	 * 
+	 * @param username The user-name.
+	 * @param channels The channels, separated by comma. Empty when asked for.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void handleList(String username, String channels) throws IOException;
+
+	/**
+	 * 'Joined' Message Type - specific behavior. A presence delta.
+	 * 
+	 * @param username The user-name.
+	 * @param users    The users that have logged in, separated by comma.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void handleJoined(String username, String users) throws IOException;
+
+	/**
+	 * 'Left' Message Type - specific behavior. A presence delta.
+	 * 
+	 * @param username The user-name.
+	 * @param users    The users that have logged out, separated by comma.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void handleLeft(String username, String users) throws IOException;
+
+	/**
+	 * 'Resume' Message Type - specific behavior. A login after a lost connection.
+	 * 
+	 * @param username The user-name.
+	 * @param message  The last message the user has got, as 'sequenceId:timestamp'.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
 	 */
-	public void handleLogout(String username, String message) throws IOException, ParserConfigurationException;
+	public void handleResume(String username, String message) throws IOException;
 }
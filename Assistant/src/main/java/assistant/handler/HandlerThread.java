@@ -1,11 +1,20 @@
 package assistant.handler;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
 import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageHandler;
+import assistant.message.codec.CodecType;
 
 /**
  * Each newly came client is handled by a {@link HandlerThread}.
@@ -34,6 +43,34 @@ public abstract class HandlerThread extends Thread implements Handler {
 	 */
 	protected ObjectOutputStream objectOutputStream;
 	
+	/**
+	 * To read frames from the {@link Socket}. Only used when the connection is framed.
+	 */
+	protected DataInputStream frameInputStream;
+	
+	/**
+	 * To write frames on the {@link Socket}. Only used when the connection is framed.
+	 */
+	protected DataOutputStream frameOutputStream;
+	
+	/**
+	 * <code>true</code> if the messages travel as length-prefixed frames, instead
+	 * of a continuous object stream.
+	 */
+	protected boolean isFramed;
+	
+	/**
+	 * The codec the frames are sent with. Only used when the connection is framed.
+	 */
+	protected volatile CodecType codecType;
+	
+	/**
+	 * <code>false</code> until the codec has been agreed on. Until then, the
+	 * frames are sent as XML, which every peer understands, and the codec of
+	 * the first frame received (the login) is adopted.
+	 */
+	protected boolean isCodecNegotiated;
+	
 	/**
 	 * The client associated with this listener.
 	 */
@@ -41,24 +78,125 @@ public abstract class HandlerThread extends Thread implements Handler {
 	
 	/**
 	 * While this variable is <code>true</code> this {@link HandlerThread} will be
-	 * looping.
+	 * looping. Read by the threads that write, as well.
 	 */
-	protected boolean isConnectionOpened;
+	protected volatile boolean isConnectionOpened;
 	
 	/**
-	 * Constructor.
+	 * The buffers the connections write into, when none is given.
+	 */
+	protected static final BufferPool DEFAULT_BUFFER_POOL = new BufferPool(16 * 1024, 64);
+	
+	/**
+	 * Holds what is written until it is flushed, under both the frames and the object stream.
+	 */
+	private PooledOutputStream pooledOutputStream;
+	
+	/**
+	 * The number of messages written since the last flush.
+	 */
+	private int unflushedMessages;
+	
+	/**
+	 * The most messages an object stream writes between two resets, when it is
+	 * not flushed in between.
+	 */
+	private static final int MAX_MESSAGES_PER_RESET = 256;
+	
+	/**
+	 * The number of messages written on the object stream since its last reset.
+	 */
+	private int messagesSinceReset;
+	
+	/**
+	 * A message has to reach the socket in one piece. A lock rather than a
+	 * monitor : a virtual thread blocked in a write while holding a monitor
+	 * would hold its carrier thread too.
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	
+	/**
+	 * Constructor. The messages travel through a continuous object stream.
 	 * 
 	 * @param socket   The {@link Socket} to read and right to.
 	 * @param user	   The user.
 	 */
 	public HandlerThread(Socket socket, String user) throws IOException {
+		this(socket, socket.getInputStream(), user, false, null, DEFAULT_BUFFER_POOL);
+	}
+	
+	/**
+	 * Constructor. The messages travel as length-prefixed frames.
+	 * 
+	 * @param socket    The {@link Socket} to read and right to.
+	 * @param user	    The user.
+	 * @param codecType The codec to send the frames with.
+	 */
+	public HandlerThread(Socket socket, String user, CodecType codecType) throws IOException {
+		this(socket, socket.getInputStream(), user, true, codecType, DEFAULT_BUFFER_POOL);
+	}
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param socket   	  The {@link Socket} to read and right to.
+	 * @param inputStream The stream to read from. Some bytes of it could have already been peeked.
+	 * @param user	   	  The user.
+	 * @param isFramed 	  <code>true</code> if the messages travel as length-prefixed frames.
+	 * @param codecType	  The codec to send the frames with, or <code>null</code> to adopt the codec
+	 * 					  the other side logs in with.
+	 * @param bufferPool  The buffers the messages are written into, until they are flushed.
+	 */
+	protected HandlerThread(Socket socket, InputStream inputStream, String user, boolean isFramed, CodecType codecType,
+			BufferPool bufferPool) throws IOException {
+		this(socket, user, codecType, bufferPool);
+		this.openStreams(inputStream, isFramed);
+	}
+	
+	/**
+	 * Constructor. The streams are not opened yet : the kind of connection is
+	 * not known. Nothing is read or written until {@link #openStreams(InputStream, boolean)}
+	 * has been called.
+	 * 
+	 * @param socket   	  The {@link Socket} to read and right to.
+	 * @param user	   	  The user.
+	 * @param codecType	  The codec to send the frames with, or <code>null</code> to adopt the codec
+	 * 					  the other side logs in with.
+	 * @param bufferPool  The buffers the messages are written into, until they are flushed.
+	 */
+	protected HandlerThread(Socket socket, String user, CodecType codecType, BufferPool bufferPool) throws IOException {
 		this.socket 			= socket;
 		this.user 				= user;
-		this.objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-		this.objectInputStream  = new ObjectInputStream(socket.getInputStream());
+		this.codecType			= codecType != null ? codecType : CodecType.XML;
+		this.isCodecNegotiated	= codecType != null;
+		this.pooledOutputStream = new PooledOutputStream(socket.getOutputStream(), bufferPool);
 		this.isConnectionOpened = true;
 	}
 	
+	/**
+	 * Open the streams, once the kind of connection is known. With an object
+	 * stream, the header of the other side is waited for.
+	 * 
+	 * @param inputStream  The stream to read from. Some bytes of it could have already been peeked.
+	 * @param isFramed 	   <code>true</code> if the messages travel as length-prefixed frames.
+	 * 
+	 * @throws IOException If the streams could not be opened.
+	 */
+	protected void openStreams(InputStream inputStream, boolean isFramed) throws IOException {
+		this.isFramed = isFramed;
+		if (isFramed) {
+			this.frameOutputStream = new DataOutputStream(this.pooledOutputStream);
+			// Already buffered if it has been peeked : one buffer per client is enough.
+			this.frameInputStream  = new DataInputStream(inputStream instanceof BufferedInputStream
+					? inputStream : new BufferedInputStream(inputStream));
+		} else {
+			this.objectOutputStream = new ObjectOutputStream(this.pooledOutputStream);
+			// The header goes at once, the other side waits for it.
+			this.objectOutputStream.flush();
+			this.objectInputStream  = new ObjectInputStream(inputStream);
+		}
+	}
+	
 	/**
 	 * Sets the user-name.
 	 * 
@@ -103,11 +241,17 @@ public abstract class HandlerThread extends Thread implements Handler {
 		if (this.objectOutputStream != null) {
 			this.objectOutputStream.close();
 		}
+		if (this.frameOutputStream != null) {
+			this.frameOutputStream.close();
+		}
 
 		// #2 close the input stream
 		if (this.objectInputStream != null) {
 			this.objectInputStream.close();
 		}
+		if (this.frameInputStream != null) {
+			this.frameInputStream.close();
+		}
 
 		// #3 close the socket.
 		if (this.socket != null) {
@@ -124,6 +268,150 @@ public abstract class HandlerThread extends Thread implements Handler {
 	 * @throws IOException Any exception thrown by the underlying OutputStream. 
 	 */
 	public void send(ChatMessage message) throws IOException {
-		this.objectOutputStream.writeObject(message);
+		this.send(new EncodedMessage(message));
+	}
+	
+	/**
+	 * Send a message that could be shared with other recipients, at once.
+	 * 
+	 * @param message      The message to be sent.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void send(EncodedMessage message) throws IOException {
+		this.writeLock.lock();
+		try {
+			this.writeMessage(message);
+			this.flushMessages();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Write a message that could be shared with other recipients, without
+	 * flushing it : it reaches the socket with the ones written after it, on
+	 * the next {@link #flush()}, or when the buffer is full.
+	 * 
+	 * @param message      The message to be written.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public void write(EncodedMessage message) throws IOException {
+		this.writeLock.lock();
+		try {
+			this.writeMessage(message);
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Flush the messages written so far to the socket.
+	 * 
+	 * @return 			   The number of messages flushed.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	public int flush() throws IOException {
+		this.writeLock.lock();
+		try {
+			return this.flushMessages();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes written since the last flush.
+	 * 
+	 * @return the number of bytes written since the last flush.
+	 */
+	public long getUnflushedBytes() {
+		return this.pooledOutputStream.getUnflushedBytes();
+	}
+	
+	/**
+	 * Write a message into the buffer. A framed connection writes the frame
+	 * already encoded for its codec; an object stream has to serialize the
+	 * message by itself, but the {@link org.w3c.dom.Document} form is built
+	 * only once. To be called holding the write lock.
+	 * 
+	 * @param message      The message to be written.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	private void writeMessage(EncodedMessage message) throws IOException {
+		if (this.isFramed) {
+			ByteBuffer frame = message.getFrame(this.codecType);
+			this.frameOutputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		} else {
+			// The stream remembers every object it has written, until it is reset.
+			if (this.messagesSinceReset >= MAX_MESSAGES_PER_RESET) {
+				this.resetObjectStream();
+			}
+			this.objectOutputStream.writeObject(message.getChatMessage());
+			this.messagesSinceReset++;
+		}
+		this.unflushedMessages++;
+	}
+	
+	/**
+	 * Flush the buffer to the socket. To be called holding the write lock.
+	 * 
+	 * @return 			   The number of messages flushed.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	private int flushMessages() throws IOException {
+		if (this.isFramed) {
+			this.frameOutputStream.flush();
+		} else {
+			// What has been flushed is never written again : it need not be remembered.
+			if (this.messagesSinceReset > 0) {
+				this.resetObjectStream();
+			}
+			this.objectOutputStream.flush();
+		}
+		int flushedMessages = this.unflushedMessages;
+		this.unflushedMessages = 0;
+		return flushedMessages;
+	}
+	
+	/**
+	 * Forget the objects written on the object stream so far. Every message
+	 * written keeps its whole {@link org.w3c.dom.Document} in the handle table
+	 * of the stream, so that it can be referred to later : over a long lived
+	 * connection, the table would grow without bound. The other side forgets
+	 * them too, when it reads the reset. To be called holding the write lock.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 */
+	private void resetObjectStream() throws IOException {
+		this.objectOutputStream.reset();
+		this.messagesSinceReset = 0;
+	}
+	
+	/**
+	 * Receive the next message. Blocks until a whole message has arrived.
+	 * 
+	 * @return 						  The message.
+	 * 
+	 * @throws IOException 			  Any exception thrown by the underlying InputStream.
+	 * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+	 */
+	public ChatMessage receive() throws IOException, ClassNotFoundException {
+		if (this.isFramed) {
+			// Header.
+			int length = this.frameInputStream.readInt();
+			MessageHandler.getInstance().checkFrameLength(length);
+			byte codecId = this.frameInputStream.readByte();
+			// Payload.
+			byte[] payload = new byte[length];
+			this.frameInputStream.readFully(payload);
+			ChatMessage message = MessageHandler.getInstance().decodeFrame(codecId, payload, 0, length);
+			// Answer in the codec the other side has chosen.
+			if (!this.isCodecNegotiated) {
+				this.codecType = CodecType.fromId(codecId);
+				this.isCodecNegotiated = true;
+			}
+			return message;
+		}
+		return (ChatMessage) this.objectInputStream.readObject();
 	}
 }
@@ -0,0 +1,115 @@
+package assistant.handler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link PooledOutputStream}. A buffered stream that borrows its buffer from a
+ * {@link BufferPool} on the first write, and gives it back on {@link #flush()}.
+ * Many messages written in a row reach the socket in a few large writes, and
+ * a connection with nothing to write holds no buffer.
+ *
+ * @author costi.dumitrescu
+ */
+public class PooledOutputStream extends FilterOutputStream {
+
+	/**
+	 * Where the buffer comes from.
+	 */
+	private final BufferPool bufferPool;
+
+	/**
+	 * The bytes not written yet, <code>null</code> if there is none.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * The number of bytes written since the last flush.
+	 */
+	private long unflushedBytes;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param out 		 The stream the bytes go to, the socket's.
+	 * @param bufferPool Where the buffer comes from.
+	 */
+	public PooledOutputStream(OutputStream out, BufferPool bufferPool) {
+		super(out);
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @see java.io.FilterOutputStream.write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		if (this.buffer == null) {
+			this.buffer = this.bufferPool.acquire();
+		} else if (!this.buffer.hasRemaining()) {
+			this.writeBuffer();
+		}
+		this.buffer.put((byte) b);
+		this.unflushedBytes++;
+	}
+
+	/**
+	 * @see java.io.FilterOutputStream.write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.buffer == null) {
+			this.buffer = this.bufferPool.acquire();
+		}
+		// Too big to be buffered : what is buffered goes first, then this, as it is.
+		if (len >= this.buffer.capacity()) {
+			this.writeBuffer();
+			this.out.write(b, off, len);
+		} else {
+			if (len > this.buffer.remaining()) {
+				this.writeBuffer();
+			}
+			this.buffer.put(b, off, len);
+		}
+		this.unflushedBytes += len;
+	}
+
+	/**
+	 * Write the buffered bytes, and give the buffer back.
+	 *
+	 * @see java.io.FilterOutputStream.flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (this.buffer != null) {
+			this.writeBuffer();
+			this.bufferPool.release(this.buffer);
+			this.buffer = null;
+		}
+		this.out.flush();
+		this.unflushedBytes = 0;
+	}
+
+	/**
+	 * Write the buffered bytes, and keep the buffer.
+	 *
+	 * @throws IOException Any exception thrown by the underlying stream.
+	 */
+	private void writeBuffer() throws IOException {
+		if (this.buffer.position() > 0) {
+			this.out.write(this.buffer.array(), this.buffer.arrayOffset(), this.buffer.position());
+			this.buffer.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes written since the last flush.
+	 *
+	 * @return the number of bytes written since the last flush.
+	 */
+	public long getUnflushedBytes() {
+		return this.unflushedBytes;
+	}
+}
@@ -1,11 +1,20 @@
 package assistant.message;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.w3c.dom.Document;
 
 /**
- * Chat message. A wrapper for an XML DOM {@link Document}.
+ * Chat message. A flat value, created, dispatched and encoded without any DOM
+ * object. The XML {@link Document} form is only built, once, when someone
+ * asks for it : a legacy peer on the object stream, the XML codec, or an
+ * export.
  * 
  * @author costi.dumitrescu
  */
@@ -15,27 +24,192 @@ public class ChatMessage implements Serializable {
 	 * Default serial version.
 	 */
 	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The channel of the messages that don't name one. Every user is in it.
+	 */
+	public static final String DEFAULT_CHANNEL = "general";
+	
+	/**
+	 * On the object stream, a {@link ChatMessage} is still the XML
+	 * {@link Document} it has always been, so legacy peers understand it.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = { 
+			new ObjectStreamField("message", Document.class) 
+	};
+	
+	/**
+	 * The message type.
+	 */
+	private MessageType messageType;
+	
+	/**
+	 * The user.
+	 */
+	private String user;
+	
+	/**
+	 * The actual message.
+	 */
+	private String body;
+	
+	/**
+	 * The channel, <code>null</code> for the default one.
+	 */
+	private String channel;
+	
+	/**
+	 * When the message has been created, in milliseconds since the epoch.
+	 */
+	private long timestamp;
+	
+	/**
+	 * The sequence id, given by the side that created the message.
+	 */
+	private long sequenceId;
 
 	/**
-	 * The {@link Document} message.
+	 * The {@link Document} form, built on demand.
 	 */
-	private Document message;
+	private transient volatile Document document;
 
+	/**
+	 * Constructor. The message goes to the default channel.
+	 * 
+	 * @param messageType The message type.
+	 * @param user 		  The user.
+	 * @param body 		  The actual message.
+	 * @param timestamp   When the message has been created.
+	 * @param sequenceId  The sequence id.
+	 */
+	public ChatMessage(MessageType messageType, String user, String body, long timestamp, long sequenceId) {
+		this(messageType, user, body, null, timestamp, sequenceId);
+	}
+	
 	/**
 	 * Constructor.
 	 * 
-	 * @param message The {@link Document} message.
+	 * @param messageType The message type.
+	 * @param user 		  The user.
+	 * @param body 		  The actual message.
+	 * @param channel 	  The channel, <code>null</code> for the default one.
+	 * @param timestamp   When the message has been created.
+	 * @param sequenceId  The sequence id.
+	 */
+	public ChatMessage(MessageType messageType, String user, String body, String channel, long timestamp, long sequenceId) {
+		this.messageType = messageType;
+		this.user 		 = user;
+		this.body 		 = body;
+		this.channel 	 = channel;
+		this.timestamp 	 = timestamp;
+		this.sequenceId  = sequenceId;
+	}
+	
+	/**
+	 * Returns the message type.
+	 * 
+	 * @return the message type.
+	 */
+	public MessageType getMessageType() {
+		return this.messageType;
+	}
+	
+	/**
+	 * Returns the user.
+	 * 
+	 * @return the user.
+	 */
+	public String getUser() {
+		return this.user;
+	}
+	
+	/**
+	 * Returns the actual message.
+	 * 
+	 * @return the actual message.
+	 */
+	public String getBody() {
+		return this.body;
+	}
+	
+	/**
+	 * Returns the channel, <code>null</code> for the default one.
+	 * 
+	 * @return the channel.
+	 */
+	public String getChannel() {
+		return this.channel;
+	}
+	
+	/**
+	 * Returns when the message has been created, in milliseconds since the epoch.
+	 * 
+	 * @return when the message has been created.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+	
+	/**
+	 * Returns the sequence id.
+	 * 
+	 * @return the sequence id.
 	 */
-	public ChatMessage(Document message) {
-		this.message = message;
+	public long getSequenceId() {
+		return this.sequenceId;
 	}
 
 	/**
-	 * Returns the {@link Document} message.
+	 * Returns the {@link Document} form of this message. It is built the first
+	 * time it is asked for.
+	 * 
+	 * @return 								the {@link Document} form of this message.
+	 * 
+	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
+	 */
+	public Document getDocument() throws ParserConfigurationException {
+		if (this.document == null) {
+			this.document = MessageHandler.getInstance().toDocument(this);
+		}
+		return this.document;
+	}
+	
+	/**
+	 * Write the {@link Document} form on the object stream.
+	 * 
+	 * @param out 		   The object stream.
+	 * 
+	 * @throws IOException Any exception thrown by the underlying OutputStream.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		try {
+			ObjectOutputStream.PutField fields = out.putFields();
+			fields.put("message", this.getDocument());
+			out.writeFields();
+		} catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Read the {@link Document} form from the object stream, and take the
+	 * fields out of it.
+	 * 
+	 * @param in 					  The object stream.
 	 * 
-	 * @return the {@link Document} message.
+	 * @throws IOException 			  Any exception thrown by the underlying InputStream.
+	 * @throws ClassNotFoundException If the class of a serialized object cannot be found.
 	 */
-	public Document getMessage() {
-		return this.message;
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		Document document = (Document) fields.get("message", null);
+		ChatMessage chatMessage = MessageHandler.getInstance().fromDocument(document);
+		this.messageType = chatMessage.messageType;
+		this.user 		 = chatMessage.user;
+		this.body 		 = chatMessage.body;
+		this.channel 	 = chatMessage.channel;
+		this.timestamp 	 = chatMessage.timestamp;
+		this.sequenceId  = chatMessage.sequenceId;
+		this.document 	 = document;
 	}
 }
@@ -0,0 +1,167 @@
+package assistant.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import assistant.handler.BufferPool;
+import assistant.message.codec.CodecType;
+
+/**
+ * {@link EncodedMessage}. A {@link ChatMessage} on its way to many
+ * recipients. It is encoded at most once per codec, however many recipients
+ * there are, and every recipient is handed a view of the same immutable frame.
+ *
+ * The frame can also be copied, once, in a direct buffer borrowed from a
+ * {@link BufferPool} : a channel writes it without copying it again for each
+ * recipient. The buffer goes back to the pool once the last recipient holding
+ * the message has released it, see {@link #retain()} and {@link #release()}.
+ *
+ * @author costi.dumitrescu
+ */
+public class EncodedMessage {
+
+	/**
+	 * The message.
+	 */
+	private final ChatMessage chatMessage;
+
+	/**
+	 * The frames encoded so far, one slot per codec.
+	 */
+	private final ByteBuffer[] frames;
+
+	/**
+	 * The frames copied in direct buffers so far, one slot per codec.
+	 */
+	private final ByteBuffer[] directFrames;
+
+	/**
+	 * The pools the direct buffers have been borrowed from, one slot per codec.
+	 */
+	private final BufferPool[] directFramePools;
+
+	/**
+	 * The number of holders of the message that have not released it yet.
+	 */
+	private final AtomicInteger references;
+
+	/**
+	 * Constructor. Nobody holds the message yet.
+	 *
+	 * @param chatMessage The message.
+	 */
+	public EncodedMessage(ChatMessage chatMessage) {
+		this.chatMessage 	  = chatMessage;
+		this.frames 	 	  = new ByteBuffer[CodecType.values().length];
+		this.directFrames 	  = new ByteBuffer[CodecType.values().length];
+		this.directFramePools = new BufferPool[CodecType.values().length];
+		this.references 	  = new AtomicInteger();
+	}
+
+	/**
+	 * Returns the message.
+	 *
+	 * @return the message.
+	 */
+	public ChatMessage getChatMessage() {
+		return this.chatMessage;
+	}
+
+	/**
+	 * Returns the frame of the message for the given codec. The frame is encoded
+	 * the first time it is asked for; afterwards, only a new view of it is made.
+	 * Each caller gets its own position and limit, so it can be written at its
+	 * own pace. The bytes are shared : they must only be read.
+	 *
+	 * @param codecType    The codec.
+	 *
+	 * @return 			   A view of the frame, ready to be read.
+	 *
+	 * @throws IOException If the message could not be encoded.
+	 */
+	public ByteBuffer getFrame(CodecType codecType) throws IOException {
+
+		// The recipients of a broadcast share this object, the encoding is done only once.
+		ByteBuffer frame;
+		synchronized (this.frames) {
+			frame = this.frames[codecType.ordinal()];
+			if (frame == null) {
+				frame = MessageHandler.getInstance().encodeFrame(this.chatMessage, codecType);
+				this.frames[codecType.ordinal()] = frame;
+			}
+		}
+		return frame.duplicate();
+	}
+
+	/**
+	 * Returns the frame of the message for the given codec, in a direct buffer
+	 * borrowed from the pool. The frame is copied the first time it is asked
+	 * for; afterwards, only a new read-only view of it is made. Only to be
+	 * asked for by a holder of the message, who must not touch the view once
+	 * it has released it. A frame too big for the buffers of the pool is
+	 * handed as it is, on the heap.
+	 *
+	 * @param codecType    The codec.
+	 * @param bufferPool   The pool of direct buffers.
+	 *
+	 * @return 			   A view of the frame, ready to be read.
+	 *
+	 * @throws IOException If the message could not be encoded.
+	 */
+	public ByteBuffer getDirectFrame(CodecType codecType, BufferPool bufferPool) throws IOException {
+
+		ByteBuffer frame = this.getFrame(codecType);
+		if (frame.remaining() > bufferPool.getBufferSize()) {
+			return frame;
+		}
+
+		ByteBuffer directFrame;
+		synchronized (this.frames) {
+			directFrame = this.directFrames[codecType.ordinal()];
+			if (directFrame == null) {
+				directFrame = bufferPool.acquire();
+				directFrame.put(frame);
+				directFrame.flip();
+				this.directFrames[codecType.ordinal()] = directFrame;
+				this.directFramePools[codecType.ordinal()] = bufferPool;
+			}
+		}
+		return directFrame.asReadOnlyBuffer();
+	}
+
+	/**
+	 * One more holder of the message : a queue it waits in, or a broadcast
+	 * still handing it over.
+	 */
+	public void retain() {
+		this.references.incrementAndGet();
+	}
+
+	/**
+	 * A holder is done with the message. Once the last one is, the direct
+	 * buffers go back to their pools; they are copied again if the message is
+	 * held again later, like when it is replayed.
+	 */
+	public void release() {
+
+		// Still held.
+		if (this.references.decrementAndGet() > 0) {
+			return;
+		}
+
+		synchronized (this.frames) {
+			// Held again meanwhile.
+			if (this.references.get() > 0) {
+				return;
+			}
+			for (int i = 0; i < this.directFrames.length; i++) {
+				if (this.directFrames[i] != null) {
+					this.directFramePools[i].release(this.directFrames[i]);
+					this.directFrames[i] = null;
+					this.directFramePools[i] = null;
+				}
+			}
+		}
+	}
+}
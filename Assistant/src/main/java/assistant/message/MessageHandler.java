@@ -1,18 +1,22 @@
 package assistant.message;
 
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
-import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import assistant.handler.Handler;
+import assistant.metrics.Histogram;
+import assistant.metrics.MetricsRegistry;
+import assistant.message.codec.CodecType;
 
 /**
  * {@link MessageHandler}. Factory design pattern implementation.
@@ -21,6 +25,34 @@ import assistant.handler.Handler;
  */
 public class MessageHandler {
 	
+	/**
+	 * The length of a frame header. The header holds the length of the payload,
+	 * followed by the id of the codec the payload is encoded with.
+	 */
+	public static final int FRAME_HEADER_LENGTH = 5;
+	
+	/**
+	 * The biggest payload a frame is allowed to carry. Anything bigger is
+	 * considered a corrupted stream.
+	 */
+	public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+	
+	/**
+	 * Separates the sequence id from the time, in the body of a RESUME message.
+	 */
+	public static final String RESUME_SEPARATOR = ":";
+	
+	/**
+	 * The bits of a sequence id counted within a run. The bits above them
+	 * tell the run : its epoch.
+	 */
+	public static final int SEQUENCE_BITS = 32;
+	
+	/**
+	 * Where the epochs are counted from, in seconds : 2020-01-01, UTC.
+	 */
+	private static final long EPOCH_ORIGIN_SECONDS = 1577836800L;
+	
 	/**
 	 * {@link MessageHandler} Instance. Singleton purpose.
 	 */
@@ -32,10 +64,29 @@ public class MessageHandler {
 	 */
 	private DocumentBuilder documentBuilder;
 	
+	/**
+	 * When this side has started, in seconds since 2020-01-01. Put above the
+	 * sequence ids, so they are not given again by a later run.
+	 */
+	private long epoch;
+	
+	/**
+	 * The last sequence id given to a {@link ChatMessage} created on this side.
+	 */
+	private AtomicLong sequence;
+	
+	/**
+	 * How long the frames take to be decoded, in nanoseconds.
+	 */
+	private Histogram decodeNanos;
+	
 	/**
 	 * Private Constructor. Singleton purpose.
 	 */
 	private MessageHandler() {
+		this.epoch 		 = Math.max(0, System.currentTimeMillis() / 1000 - EPOCH_ORIGIN_SECONDS);
+		this.sequence 	 = new AtomicLong(this.epoch << SEQUENCE_BITS);
+		this.decodeNanos = MetricsRegistry.getInstance().histogram("chat_decode_nanoseconds");
 	}
 	
 	/**
@@ -52,7 +103,89 @@ public class MessageHandler {
 	}
 	
 	/**
-	 * Create a {@link ChatMessage} wrapper for a {@link Document}.
+	 * Create a new {@link ChatMessage}, stamped with the current time and the
+	 * next sequence id. No DOM object is involved.
+	 * 
+	 * @param messageType The type of the new {@link ChatMessage}.
+	 * @param user	 	  The user.
+	 * @param message 	  The actual message.
+	 * 
+	 * @return 			  The new {@link ChatMessage}.
+	 */
+	public ChatMessage createMessage(MessageType messageType, String user, String message) {
+		return this.createMessage(messageType, user, message, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Create a new {@link ChatMessage} for a channel, stamped with the current
+	 * time and the next sequence id.
+	 * 
+	 * @param messageType The type of the new {@link ChatMessage}.
+	 * @param user	 	  The user.
+	 * @param channel 	  The channel, <code>null</code> for the default one.
+	 * @param message 	  The actual message.
+	 * 
+	 * @return 			  The new {@link ChatMessage}.
+	 */
+	public ChatMessage createChannelMessage(MessageType messageType, String user, String channel, String message) {
+		return new ChatMessage(messageType, user, message, channel, System.currentTimeMillis(), this.sequence.incrementAndGet());
+	}
+	
+	/**
+	 * Create a new {@link ChatMessage} sent at a given time, stamped with the
+	 * next sequence id. For the messages read back from the history.
+	 * 
+	 * @param messageType The type of the new {@link ChatMessage}.
+	 * @param user	 	  The user.
+	 * @param message 	  The actual message.
+	 * @param timestamp   When the message has been sent, in milliseconds.
+	 * 
+	 * @return 			  The new {@link ChatMessage}.
+	 */
+	public ChatMessage createMessage(MessageType messageType, String user, String message, long timestamp) {
+		return new ChatMessage(messageType, user, message, timestamp, this.sequence.incrementAndGet());
+	}
+	
+	/**
+	 * Returns the epoch of this side : when it has started, in seconds since
+	 * 2020-01-01.
+	 * 
+	 * @return the epoch of this side.
+	 */
+	public long getEpoch() {
+		return this.epoch;
+	}
+	
+	/**
+	 * Returns the epoch of the run that has given a sequence id.
+	 * 
+	 * @param sequenceId The sequence id.
+	 * 
+	 * @return 			 The epoch. <code>0</code> for the ids given before the
+	 * 					 epochs were put in them.
+	 */
+	public static long epochOf(long sequenceId) {
+		return sequenceId >>> SEQUENCE_BITS;
+	}
+	
+	/**
+	 * Create a RESUME message : the user logs in again after a lost connection,
+	 * and asks only for the messages said after the last one it has got. The
+	 * sequence id tells which run of the server has given it; if the server
+	 * has been started over since, only the time is trusted.
+	 * 
+	 * @param user	 	  The user.
+	 * @param lastMessage The last message the user has got, <code>null</code> if none.
+	 * 
+	 * @return 			  The new {@link ChatMessage}.
+	 */
+	public ChatMessage createResumeMessage(String user, ChatMessage lastMessage) {
+		String body = lastMessage != null ? lastMessage.getSequenceId() + RESUME_SEPARATOR + lastMessage.getTimestamp() : "";
+		return this.createMessage(MessageType.RESUME, user, body);
+	}
+	
+	/**
+	 * Build the {@link Document} form of a {@link ChatMessage}.
 	 *
 	 * {@link Document} example : 
 	 *  
@@ -66,138 +199,286 @@ public class MessageHandler {
 	 *		<Message>
 	 *			message
 	 *		</Message>
+	 *		<Channel>
+	 *			channel
+	 *		</Channel>
+	 *		<Timestamp>
+	 *			timestamp
+	 *		</Timestamp>
+	 *		<Sequence>
+	 *			sequenceId
+	 *		</Sequence>
 	 *	</ChatMessage>
 	 * 
-	 * @param messageType 					The type of the new {@link ChatMessage}.
-	 * @param user	 						The user.
-	 * @param message 						The actual message.
+	 * The 'Channel', 'Timestamp' and 'Sequence' {@link Element}s are new, legacy
+	 * peers just don't look for them. There is no 'Channel' for the default one.
 	 * 
-	 * @return 								The new {@link ChatMessage}.
+	 * @param chatMessage 					The {@link ChatMessage}.
+	 * 
+	 * @return 								The {@link Document} form.
 	 * 
 	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
 	 */
-	public ChatMessage createMessage(String messageType, String user, String message) throws ParserConfigurationException {
+	public Document toDocument(ChatMessage chatMessage) throws ParserConfigurationException {
 	
-		// If null, create one.
-		if (this.documentBuilder == null) {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			this.documentBuilder = factory.newDocumentBuilder();
+		// The {@link Document}. A {@link DocumentBuilder} is not thread safe.
+		Document document;
+		synchronized (this) {
+			// If null, create one.
+			if (this.documentBuilder == null) {
+				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+				this.documentBuilder = factory.newDocumentBuilder();
+			}
+			document = this.documentBuilder.newDocument();
 		}
-	
-		// The {@link Document}
-		Document document = this.documentBuilder.newDocument();
 		
 		// The 'ChatMessage' Root {@link Element}
 		Element chatMessageRootElement = document.createElement("ChatMessage");
 		document.appendChild(chatMessageRootElement);
 
 		// The 'MessageType' {@link Element}
-		Element messageTypeElement = document.createElement("MessageType");
-		messageTypeElement.appendChild(document.createTextNode(messageType));
-		chatMessageRootElement.appendChild(messageTypeElement);
+		this.appendElement(document, chatMessageRootElement, "MessageType", chatMessage.getMessageType().name());
 
 		// The 'User' {@link Element}
-		Element userElement = document.createElement("User");
-		userElement.appendChild(document.createTextNode(user));
-		chatMessageRootElement.appendChild(userElement);
+		this.appendElement(document, chatMessageRootElement, "User", chatMessage.getUser());
 
 		// The 'Message' {@link Element} 
-		Element messageElement = document.createElement("Message");
-		messageElement.appendChild(document.createTextNode(message));
-		chatMessageRootElement.appendChild(messageElement);
+		this.appendElement(document, chatMessageRootElement, "Message", chatMessage.getBody());
+		
+		// The 'Channel' {@link Element} 
+		this.appendElement(document, chatMessageRootElement, "Channel", chatMessage.getChannel());
+		
+		// The 'Timestamp' {@link Element} 
+		this.appendElement(document, chatMessageRootElement, "Timestamp", String.valueOf(chatMessage.getTimestamp()));
+		
+		// The 'Sequence' {@link Element} 
+		this.appendElement(document, chatMessageRootElement, "Sequence", String.valueOf(chatMessage.getSequenceId()));
 
-		// The actual {@link ChatMessage}
-		ChatMessage chatMessage = new ChatMessage(document);
+		return document;
+	}
+	
+	/**
+	 * Take a {@link ChatMessage} out of its {@link Document} form.
+	 * 
+	 * @param document 					The {@link Document} form.
+	 * 
+	 * @return 							The {@link ChatMessage}.
+	 * 
+	 * @throws StreamCorruptedException If the {@link Document} is not a chat message.
+	 */
+	public ChatMessage fromDocument(Document document) throws StreamCorruptedException {
+		
+		// For safety.
+		if (document == null || document.getDocumentElement() == null) {
+			throw new StreamCorruptedException("Not a chat message.");
+		}
+		
+		// {@link Element} Root element of the document.
+		Element root = document.getDocumentElement();
+		
+		String messageType = this.getText(root, "MessageType");
+		String user = this.getText(root, "User");
+		String message = this.getText(root, "Message");
+		String channel = this.getText(root, "Channel");
+		String timestamp = this.getText(root, "Timestamp");
+		String sequence = this.getText(root, "Sequence");
+		
+		try {
+			return new ChatMessage(
+					MessageType.valueOf(messageType), 
+					user, 
+					message,
+					channel,
+					// Legacy peers don't stamp their messages.
+					timestamp != null ? Long.parseLong(timestamp) : System.currentTimeMillis(),
+					sequence != null ? Long.parseLong(sequence) : 0L);
+		} catch (IllegalArgumentException | NullPointerException e) {
+			StreamCorruptedException exception = new StreamCorruptedException("Not a chat message.");
+			exception.initCause(e);
+			throw exception;
+		}
+	}
+	
+	/**
+	 * Append an {@link Element} holding a text.
+	 * 
+	 * @param document The {@link Document}.
+	 * @param parent   The parent {@link Element}.
+	 * @param tag 	   The tag of the new {@link Element}.
+	 * @param text 	   The text. If <code>null</code>, there is nothing to append.
+	 */
+	private void appendElement(Document document, Element parent, String tag, String text) {
+		// For safety.
+		if (text == null) {
+			return;
+		}
+		Element element = document.createElement(tag);
+		element.appendChild(document.createTextNode(text));
+		parent.appendChild(element);
+	}
+	
+	/**
+	 * Returns the text of the first {@link Element} with the given tag.
+	 * 
+	 * @param root The root {@link Element}.
+	 * @param tag  The tag.
+	 * 
+	 * @return 	   The text, or <code>null</code> if there is no such {@link Element}.
+	 */
+	private String getText(Element root, String tag) {
+		// All tags within root element.
+		NodeList nodeList = root.getElementsByTagName(tag);
+		// Extra safety.
+		return nodeList.getLength() > 0 ? nodeList.item(0).getTextContent() : null;
+	}
+	
+	/**
+	 * Encode a {@link ChatMessage} into a self-contained frame : the length of
+	 * the payload and the id of its codec, followed by the payload itself.
+	 * Unlike a long-lived object stream, each frame can be decoded on its own,
+	 * so the frames can be gathered from a non-blocking channel a few bytes at
+	 * a time.
+	 * 
+	 * @param chatMessage  The {@link ChatMessage} to be encoded.
+	 * @param codecType    The codec to encode the payload with.
+	 * 
+	 * @return 			   The frame, ready to be read.
+	 * 
+	 * @throws IOException If the message could not be encoded.
+	 */
+	public ByteBuffer encodeFrame(ChatMessage chatMessage, CodecType codecType) throws IOException {
+		
+		// Encode the message on its own.
+		byte[] payload = codecType.getCodec().encode(chatMessage);
+		
+		// Header + payload.
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + payload.length);
+		frame.putInt(payload.length);
+		frame.put(codecType.getId());
+		frame.put(payload);
+		frame.flip();
 		
+		return frame;
+	}
+	
+	/**
+	 * Decode the payload of a frame back into a {@link ChatMessage}.
+	 * 
+	 * @param codecId 	   The id of the codec, read from the frame header.
+	 * @param payload 	   The bytes holding the payload.
+	 * @param offset  	   Where the payload starts.
+	 * @param length  	   The length of the payload.
+	 * 
+	 * @return 		  	   The decoded {@link ChatMessage}.
+	 * 
+	 * @throws IOException If the codec is unknown, or the payload could not be decoded.
+	 */
+	public ChatMessage decodeFrame(byte codecId, byte[] payload, int offset, int length) throws IOException {
+		long start = System.nanoTime();
+		ChatMessage chatMessage = CodecType.fromId(codecId).getCodec().decode(payload, offset, length);
+		this.decodeNanos.record(System.nanoTime() - start);
 		return chatMessage;
 	}
 	
 	/**
-	 * Parses the {@link ChatMessage} and notifies the handler.
+	 * Checks the length read from a frame header.
+	 * 
+	 * @param length 					The length read from the header.
 	 * 
-	 * @param handler 	 					The handler thread.
-	 * @param chatMessage 					The XML wrapper {@link ChatMessage} to be parsed.
+	 * @throws StreamCorruptedException If the length could not belong to a frame.
+	 */
+	public void checkFrameLength(int length) throws StreamCorruptedException {
+		if (length <= 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length : " + length);
+		}
+	}
+	
+	/**
+	 * Dispatches the {@link ChatMessage} to the handler, according to its type.
+	 * 
+	 * @param handler 	   The handler thread.
+	 * @param chatMessage  The {@link ChatMessage} to be dispatched.
 	 *
-	 * @throws IOException 					Any exception thrown by the underlying OutputStream. 
-	 * @throws ParserConfigurationException If a DocumentBuilder cannot be created which satisfies the configuration requested.
-	 * @throws DOMException 				DOMSTRING_SIZE_ERR: Raised when it would return more characters than fit in a DOMString 
-	 * 										variable on the implementation platform.
+	 * @throws IOException Any exception thrown by the underlying OutputStream. 
 	 */
-	public void handleMessage(Handler handler, ChatMessage chatMessage) throws DOMException, IOException, ParserConfigurationException {
+	public void handleMessage(Handler handler, ChatMessage chatMessage) throws IOException {
 			
 		// For safety.
-		if(handler != null && chatMessage != null) {
-			
-			// {@link Document} XML message.
-			Document xmlMessage = chatMessage.getMessage();
-			
-			// {@link Node} type.
-			Node messageType = null;
-			
-			// {@link Node} user.
-			Node user = null;
-			
-			// {@link Node} message.
-			Node message = null;
-			
-			// {@link Element} Root element of the document.
-			Element root = xmlMessage.getDocumentElement();
-			
-			// {@link NodeList} All MessageType tags within root element. 
-			NodeList messageTypeList = root.getElementsByTagName("MessageType");
-			
-			// Extra safety,
-			if(messageTypeList.getLength() > 0) {
-				messageType = messageTypeList.item(0);
-			}
-
-			// All user tags within root element. 
-			NodeList userList = root.getElementsByTagName("User");
-			
-			// Extra safety,
-			if(userList.getLength() > 0) {
-				user = userList.item(0);
-			}
-
-			// All Message tags within root element. 
-			NodeList messageList = root.getElementsByTagName("Message");
-
-			// Extra safety,
-			if(messageList.getLength() > 0) {
-				message = messageList.item(0);
-			}
+		if(handler != null && chatMessage != null && chatMessage.getMessageType() != null) {
 			
 			// Different behaviors for each message type.
-			switch (messageType.getTextContent()) {
+			switch (chatMessage.getMessageType()) {
 			
 				// "User logged in."
-				case MessageType.LOGIN:
+				case LOGIN:
 					// ServerConnection - Broadcast the message to all others, to say 'user : logged in'
 					//					- Send a WHOISIN message to all clients, to update the list of users with this new one.
 					// ClientConnection - Should log the message on the screen/or somehow the current should be announced that someone has logged in.
-					handler.handleLogin(user.getTextContent(), message.getTextContent());
+					handler.handleLogin(chatMessage.getUser(), chatMessage.getBody());
 					break;
 	
 				// "User asked who is in." 
-				case MessageType.WHOISIN:
+				case WHOISIN:
 					// ServerConnection - Should send the list of clients to the current asking client.
 					// ClientConnection - First clear the users table and recreate it according with the new one.
-					handler.handleWhoIsIn(user.getTextContent(), message.getTextContent());
+					handler.handleWhoIsIn(chatMessage.getUser(), chatMessage.getBody());
 					break;
 	
 				// 'User sent a message for the room.'
-				case MessageType.MESSAGE:
+				case MESSAGE:
 					// ServerConnection - Broadcast the message to all clients.
 					// ClientConnection - Just print/log it.
-					handler.handleMessage(user.getTextContent(), message.getTextContent());
+					handler.handleMessage(chatMessage.getUser(), chatMessage.getChannel(), chatMessage.getBody());
 					break;
 	
 				// "User logged out."
-				case MessageType.LOGOUT:
+				case LOGOUT:
 					// ServerConnection - Should broadcast the message to all others, to say 'user : logged out'
 					//					- Should send a WHOISIN message to update the list of users for each client.
 					// ClientConnection - Change the MainView with the LoginView.
-					handler.handleLogout(user.getTextContent(), message.getTextContent());
+					handler.handleLogout(chatMessage.getUser(), chatMessage.getBody());
+					break;
+		
+				// "User joins a channel."
+				case JOIN:
+					// ServerConnection - Add the user to the channel, replay it the channel's last messages, and tell the members.
+					// ClientConnection - Show who has joined which channel.
+					handler.handleJoin(chatMessage.getUser(), chatMessage.getChannel());
+					break;
+		
+				// "User leaves a channel."
+				case LEAVE:
+					// ServerConnection - Take the user out of the channel, and tell the members.
+					// ClientConnection - Show who has left which channel.
+					handler.handleLeave(chatMessage.getUser(), chatMessage.getChannel());
+					break;
+		
+				// "User asked for the channels."
+				case LIST:
+					// ServerConnection - Send the list of channels to the current asking client.
+					// ClientConnection - Show the channels.
+					handler.handleList(chatMessage.getUser(), chatMessage.getBody());
+					break;
+		
+				// "Users logged in." A presence delta.
+				case JOINED:
+					// ServerConnection - Nothing, the server is the one telling.
+					// ClientConnection - Add the users to the users table.
+					handler.handleJoined(chatMessage.getUser(), chatMessage.getBody());
+					break;
+		
+				// "Users logged out." A presence delta.
+				case LEFT:
+					// ServerConnection - Nothing, the server is the one telling.
+					// ClientConnection - Remove the users from the users table.
+					handler.handleLeft(chatMessage.getUser(), chatMessage.getBody());
+					break;
+		
+				// "User is back, after a lost connection."
+				case RESUME:
+					// ServerConnection - Log the user in again, and replay it only the messages said after the last one it got.
+					// ClientConnection - Nothing, the client is the one asking.
+					handler.handleResume(chatMessage.getUser(), chatMessage.getBody());
 					break;
 	
 				default:
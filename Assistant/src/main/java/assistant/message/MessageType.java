@@ -5,17 +5,35 @@ package assistant.message;
  * 
  * @author costi.dumitrescu
  */
-public interface MessageType {
+public enum MessageType {
 
 	// Login type.
-	String LOGIN = "LOGIN";
+	LOGIN,
 
 	// Who-is-in type.
-	String WHOISIN = "WHOISIN";
+	WHOISIN,
 
 	// Message type.
-	String MESSAGE = "MESSAGE";
+	MESSAGE,
 
 	// Logout type.
-	String LOGOUT = "LOGOUT";
+	LOGOUT,
+
+	// Join a channel type.
+	JOIN,
+
+	// Leave a channel type.
+	LEAVE,
+
+	// List the channels type.
+	LIST,
+
+	// Users logged in type. A presence delta.
+	JOINED,
+
+	// Users logged out type. A presence delta.
+	LEFT,
+
+	// Log in again after a lost connection, and get only what was missed.
+	RESUME;
 }
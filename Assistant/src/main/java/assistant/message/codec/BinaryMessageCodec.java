@@ -0,0 +1,259 @@
+package assistant.message.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+
+import assistant.message.ChatMessage;
+import assistant.message.MessageType;
+
+/**
+ * {@link BinaryMessageCodec}. A compact encoding of a {@link ChatMessage} :
+ * 
+ *	+------+----------+-----------+-------------+------+-------------+------+----------------+---------+
+ *	| type | sequence | timestamp | user length | user | body length | body | channel length | channel |
+ *	+------+----------+-----------+-------------+------+-------------+------+----------------+---------+
+ *	 1 byte   varint     varint       varint     UTF-8     varint     UTF-8       varint         UTF-8
+ * 
+ * A length is written as (number of bytes + 1), so that 0 stands for a
+ * <code>null</code> text. The channel is only written when there is one : a
+ * message of the default channel ends with its body, as it always has.
+ * 
+ * @author costi.dumitrescu
+ */
+public class BinaryMessageCodec implements MessageCodec {
+	
+	/**
+	 * The encoding of the texts.
+	 */
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/**
+	 * {@link BinaryMessageCodec} Instance. Singleton purpose.
+	 */
+	private static BinaryMessageCodec INSTANCE;
+	
+	/**
+	 * Private constructor. Singleton purpose.
+	 */
+	private BinaryMessageCodec() {
+	}
+	
+	/**
+	 * Returns the single reference for the {@link BinaryMessageCodec} instance.
+	 * Singleton purpose.
+	 * 
+	 * @return The single reference for the {@link BinaryMessageCodec} instance.
+	 */
+	public static synchronized BinaryMessageCodec getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new BinaryMessageCodec();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * @see assistant.message.codec.MessageCodec.encode(ChatMessage)
+	 */
+	@Override
+	public byte[] encode(ChatMessage chatMessage) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		bytes.write(this.toTypeByte(chatMessage.getMessageType()));
+		this.writeVarint(bytes, chatMessage.getSequenceId());
+		this.writeVarint(bytes, chatMessage.getTimestamp());
+		this.writeText(bytes, chatMessage.getUser());
+		this.writeText(bytes, chatMessage.getBody());
+		if (chatMessage.getChannel() != null) {
+			this.writeText(bytes, chatMessage.getChannel());
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @see assistant.message.codec.MessageCodec.decode(byte[], int, int)
+	 */
+	@Override
+	public ChatMessage decode(byte[] payload, int offset, int length) throws IOException {
+		
+		// Where the reading is, and where it has to stop.
+		int[] position = new int[] { offset };
+		int limit = offset + length;
+		
+		if (length < 1) {
+			throw new StreamCorruptedException("Empty message.");
+		}
+		MessageType messageType = this.fromTypeByte(payload[position[0]++]);
+		long sequenceId = this.readVarint(payload, position, limit);
+		long timestamp = this.readVarint(payload, position, limit);
+		String user = this.readText(payload, position, limit);
+		String message = this.readText(payload, position, limit);
+		String channel = position[0] < limit ? this.readText(payload, position, limit) : null;
+		
+		return new ChatMessage(messageType, user, message, channel, timestamp, sequenceId);
+	}
+	
+	/**
+	 * Write a text : its length as a varint, followed by its UTF-8 bytes.
+	 * 
+	 * @param bytes The output.
+	 * @param text  The text, could be <code>null</code>.
+	 */
+	private void writeText(ByteArrayOutputStream bytes, String text) {
+		if (text == null) {
+			this.writeVarint(bytes, 0);
+			return;
+		}
+		byte[] encoded = text.getBytes(UTF_8);
+		this.writeVarint(bytes, encoded.length + 1);
+		bytes.write(encoded, 0, encoded.length);
+	}
+	
+	/**
+	 * Read a text written by {@link #writeText(ByteArrayOutputStream, String)}.
+	 * 
+	 * @param payload 					The bytes.
+	 * @param position 					Where the reading is. Moved past the text.
+	 * @param limit 					Where the reading has to stop.
+	 * 
+	 * @return 							The text, could be <code>null</code>.
+	 * 
+	 * @throws StreamCorruptedException If the length of the text is malformed, or the text goes past the limit.
+	 */
+	private String readText(byte[] payload, int[] position, int limit) throws StreamCorruptedException {
+		long length = this.readVarint(payload, position, limit);
+		if (length == 0) {
+			return null;
+		}
+		length--;
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new StreamCorruptedException("Malformed text length : " + length);
+		}
+		if (length > limit - position[0]) {
+			throw new StreamCorruptedException("Text goes past the message.");
+		}
+		String text = new String(payload, position[0], (int) length, UTF_8);
+		position[0] += (int) length;
+		return text;
+	}
+	
+	/**
+	 * Write an unsigned varint : 7 bits per byte, the highest bit set while more bytes follow.
+	 * 
+	 * @param bytes The output.
+	 * @param value The value, not negative.
+	 */
+	private void writeVarint(ByteArrayOutputStream bytes, long value) {
+		while ((value & ~0x7FL) != 0) {
+			bytes.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes.write((int) value);
+	}
+	
+	/**
+	 * Read an unsigned varint written by {@link #writeVarint(ByteArrayOutputStream, long)}.
+	 * It takes 10 bytes at most.
+	 * 
+	 * @param payload 					The bytes.
+	 * @param position 					Where the reading is. Moved past the varint.
+	 * @param limit 					Where the reading has to stop.
+	 * 
+	 * @return 							The value.
+	 * 
+	 * @throws StreamCorruptedException If the varint is longer than 10 bytes, overflows, or goes past the limit.
+	 */
+	private long readVarint(byte[] payload, int[] position, int limit) throws StreamCorruptedException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position[0] >= limit) {
+				throw new StreamCorruptedException("Varint goes past the message.");
+			}
+			byte b = payload[position[0]++];
+			// The tenth byte only has room for the highest bit.
+			if (shift == 63 && (b & 0x7E) != 0) {
+				throw new StreamCorruptedException("Varint overflows.");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varint.");
+	}
+	
+	/**
+	 * Returns the byte standing for a message type.
+	 * 
+	 * @param messageType 				The message type.
+	 * 
+	 * @return 			  				The byte standing for it.
+	 * 
+	 * @throws StreamCorruptedException If the message type is unknown.
+	 */
+	private int toTypeByte(MessageType messageType) throws StreamCorruptedException {
+		if (messageType != null) {
+			switch (messageType) {
+				case LOGIN:
+					return 1;
+				case WHOISIN:
+					return 2;
+				case MESSAGE:
+					return 3;
+				case LOGOUT:
+					return 4;
+				case JOIN:
+					return 5;
+				case LEAVE:
+					return 6;
+				case LIST:
+					return 7;
+				case JOINED:
+					return 8;
+				case LEFT:
+					return 9;
+				case RESUME:
+					return 10;
+				default:
+					break;
+			}
+		}
+		throw new StreamCorruptedException("Unknown message type : " + messageType);
+	}
+	
+	/**
+	 * Returns the message type a byte stands for.
+	 * 
+	 * @param typeByte 					The byte.
+	 * 
+	 * @return 		   					The message type.
+	 * 
+	 * @throws StreamCorruptedException If the byte stands for no message type.
+	 */
+	private MessageType fromTypeByte(byte typeByte) throws StreamCorruptedException {
+		switch (typeByte) {
+			case 1:
+				return MessageType.LOGIN;
+			case 2:
+				return MessageType.WHOISIN;
+			case 3:
+				return MessageType.MESSAGE;
+			case 4:
+				return MessageType.LOGOUT;
+			case 5:
+				return MessageType.JOIN;
+			case 6:
+				return MessageType.LEAVE;
+			case 7:
+				return MessageType.LIST;
+			case 8:
+				return MessageType.JOINED;
+			case 9:
+				return MessageType.LEFT;
+			case 10:
+				return MessageType.RESUME;
+			default:
+				throw new StreamCorruptedException("Unknown message type : " + typeByte);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package assistant.message.codec;
+
+import java.io.StreamCorruptedException;
+
+/**
+ * The codecs a frame can be encoded with. The id travels in the header of each
+ * frame, so the other side always knows how to decode it.
+ * 
+ * @author costi.dumitrescu
+ */
+public enum CodecType {
+
+	// The XML {@link Document}, serialized as it has always been.
+	XML((byte) 0),
+
+	// The compact binary format.
+	BINARY((byte) 1);
+	
+	/**
+	 * The id written in the frame header.
+	 */
+	private final byte id;
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param id The id written in the frame header.
+	 */
+	private CodecType(byte id) {
+		this.id = id;
+	}
+	
+	/**
+	 * Returns the id written in the frame header.
+	 * 
+	 * @return the id written in the frame header.
+	 */
+	public byte getId() {
+		return this.id;
+	}
+	
+	/**
+	 * Returns the {@link MessageCodec} for this type.
+	 * 
+	 * @return the {@link MessageCodec} for this type.
+	 */
+	public MessageCodec getCodec() {
+		switch (this) {
+			case BINARY:
+				return BinaryMessageCodec.getInstance();
+			case XML:
+			default:
+				return XmlMessageCodec.getInstance();
+		}
+	}
+	
+	/**
+	 * Returns the {@link CodecType} with the given id.
+	 * 
+	 * @param id 						The id read from a frame header.
+	 * 
+	 * @return 							The {@link CodecType} with the given id.
+	 * 
+	 * @throws StreamCorruptedException If there is no codec with such id.
+	 */
+	public static CodecType fromId(byte id) throws StreamCorruptedException {
+		for (CodecType codecType : values()) {
+			if (codecType.id == id) {
+				return codecType;
+			}
+		}
+		throw new StreamCorruptedException("Unknown codec : " + id);
+	}
+}
@@ -0,0 +1,38 @@
+package assistant.message.codec;
+
+import java.io.IOException;
+
+import assistant.message.ChatMessage;
+
+/**
+ * {@link MessageCodec}. Turns a {@link ChatMessage} into the payload of a frame,
+ * and back.
+ * 
+ * @author costi.dumitrescu
+ */
+public interface MessageCodec {
+
+	/**
+	 * Encode a {@link ChatMessage}.
+	 * 
+	 * @param chatMessage  The {@link ChatMessage} to be encoded.
+	 * 
+	 * @return 			   The encoded bytes.
+	 * 
+	 * @throws IOException If the message could not be encoded.
+	 */
+	byte[] encode(ChatMessage chatMessage) throws IOException;
+
+	/**
+	 * Decode a {@link ChatMessage}.
+	 * 
+	 * @param payload 	   The bytes holding the encoded message.
+	 * @param offset  	   Where the encoded message starts.
+	 * @param length  	   The length of the encoded message.
+	 * 
+	 * @return 			   The decoded {@link ChatMessage}.
+	 * 
+	 * @throws IOException If the bytes do not hold a message encoded by this codec.
+	 */
+	ChatMessage decode(byte[] payload, int offset, int length) throws IOException;
+}
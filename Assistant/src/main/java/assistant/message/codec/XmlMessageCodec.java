@@ -0,0 +1,74 @@
+package assistant.message.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+import org.w3c.dom.Document;
+
+import assistant.message.ChatMessage;
+
+/**
+ * {@link XmlMessageCodec}. The {@link ChatMessage} and its XML {@link Document}
+ * go through Java serialization, exactly as on the object stream.
+ * 
+ * @author costi.dumitrescu
+ */
+public class XmlMessageCodec implements MessageCodec {
+	
+	/**
+	 * {@link XmlMessageCodec} Instance. Singleton purpose.
+	 */
+	private static XmlMessageCodec INSTANCE;
+	
+	/**
+	 * Private constructor. Singleton purpose.
+	 */
+	private XmlMessageCodec() {
+	}
+	
+	/**
+	 * Returns the single reference for the {@link XmlMessageCodec} instance.
+	 * Singleton purpose.
+	 * 
+	 * @return The single reference for the {@link XmlMessageCodec} instance.
+	 */
+	public static synchronized XmlMessageCodec getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new XmlMessageCodec();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * @see assistant.message.codec.MessageCodec.encode(ChatMessage)
+	 */
+	@Override
+	public byte[] encode(ChatMessage chatMessage) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+		objectOutputStream.writeObject(chatMessage);
+		objectOutputStream.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @see assistant.message.codec.MessageCodec.decode(byte[], int, int)
+	 */
+	@Override
+	public ChatMessage decode(byte[] payload, int offset, int length) throws IOException {
+		ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length));
+		try {
+			return (ChatMessage) objectInputStream.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			StreamCorruptedException exception = new StreamCorruptedException("Not a chat message.");
+			exception.initCause(e);
+			throw exception;
+		} finally {
+			objectInputStream.close();
+		}
+	}
+}
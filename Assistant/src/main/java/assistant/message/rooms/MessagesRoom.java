@@ -1,46 +1,176 @@
 package assistant.message.rooms;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * {@link MessagesRoom}
+ * {@link MessagesRoom}. Messages from many producers (the handler threads),
+ * to be read by a single consumer (a view, the persistence). A message added
+ * before the consumer starts waiting is not lost : it is simply there when it
+ * asks.
+ * 
+ * When the room is full, what happens depends on the room. The rooms read by a
+ * view only show what is recent, so the oldest message gives way and the
+ * producers never wait. The
+ * {@link assistant.message.rooms.arrivals.NormalMessagesRoom} feeds the
+ * persistence, so it keeps what is waiting, in order, and drops the new
+ * message instead; the producers that may block wait a little for the
+ * consumer first. Either way the messages dropped are counted.
  * 
  * @author Costi.Dumitrescu
  */
 public abstract class MessagesRoom<T> {
+	
+	/**
+	 * The most messages a room holds, if nobody reads them.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+	
+	/**
+	 * The most messages handed to the consumer at once.
+	 */
+	public static final int MAX_BATCH_SIZE = 256;
+	
+	/**
+	 * How long the consumer waits for a message, before it can check whether it
+	 * should still be waiting.
+	 */
+	public static final long WAIT_MILLIS = 500;
 
 	/**
-	 * List with messages from one side, to be read on the other side.
-	 * {@link ConcurrentLinkedQueue} would have been the best choice.
+	 * Queue with messages from one side, to be read on the other side.
 	 */
-	protected List<T> messages;
+	protected BlockingQueue<T> messages;
+	
+	/**
+	 * The number of messages dropped so far, because the room was full.
+	 */
+	private final AtomicLong droppedMessages = new AtomicLong();
 	
 	/**
 	 * Constructor
 	 */
 	public MessagesRoom() {
-		// Initialize the list of strings.
-		this.messages = new ArrayList<>();
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity The most messages the room holds.
+	 */
+	public MessagesRoom(int capacity) {
+		// Initialize the queue of messages.
+		this.messages = new LinkedBlockingQueue<>(capacity);
 	}
 
 	/**
-	 * Add a message in the list.
+	 * Add a message in the queue. If nobody has read the messages for so long
+	 * that the room is full, the room decides what gives way.
 	 * 
 	 * @param message The message.
+	 * 
+	 * @see #overflow(Object)
 	 */
 	public void addMessage(T message) {
-		// Add the message in the list.`
-		this.messages.add(message);
+		// Add the message in the queue.
+		if (!this.messages.offer(message)) {
+			this.overflow(message);
+		}
+	}
+	
+	/**
+	 * Called when a message is added to a full room. Never blocks : the oldest
+	 * message gives way.
+	 * 
+	 * @param message The message that did not fit.
+	 */
+	protected void overflow(T message) {
+		while (!this.messages.offer(message)) {
+			if (this.messages.poll() != null) {
+				this.dropped();
+			}
+		}
+	}
+	
+	/**
+	 * Count a message dropped.
+	 * 
+	 * @return The number of messages dropped so far.
+	 */
+	protected long dropped() {
+		return this.droppedMessages.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the number of messages dropped so far, because the room was full.
+	 * 
+	 * @return the number of messages dropped so far.
+	 */
+	public long getDroppedMessages() {
+		return this.droppedMessages.get();
 	}
 
 	/**
-	 * Returns the list with all messages.
+	 * Returns the messages added so far, and takes them out of the room. Never blocks.
 	 * 
-	 * @return the list with all messages.
+	 * @return the messages added so far, at most {@link #MAX_BATCH_SIZE}.
 	 */
 	public List<T> getMessages() {
-		return this.messages;
+		List<T> batch = new ArrayList<>();
+		this.messages.drainTo(batch, MAX_BATCH_SIZE);
+		return batch;
+	}
+	
+	/**
+	 * Waits for messages, at most {@link #WAIT_MILLIS}, then returns all that
+	 * have arrived, and takes them out of the room.
+	 * 
+	 * @return 						the messages, at most {@link #MAX_BATCH_SIZE}. Empty if none has arrived in time.
+	 * 
+	 * @throws InterruptedException If the consumer has been interrupted while waiting.
+	 */
+	public List<T> waitForMessages() throws InterruptedException {
+		return this.waitForMessages(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Waits for messages, at most the given time, then returns all that have
+	 * arrived, and takes them out of the room.
+	 * 
+	 * @param timeout 				How long to wait for the first message.
+	 * @param unit 					The unit of the timeout.
+	 * 
+	 * @return 						the messages, at most {@link #MAX_BATCH_SIZE}. Empty if none has arrived in time.
+	 * 
+	 * @throws InterruptedException If the consumer has been interrupted while waiting.
+	 */
+	public List<T> waitForMessages(long timeout, TimeUnit unit) throws InterruptedException {
+		
+		// The first one is waited for.
+		T message = this.messages.poll(timeout, unit);
+		if (message == null) {
+			return Collections.emptyList();
+		}
+		
+		// The others, if any, come along without waiting.
+		List<T> batch = new ArrayList<>();
+		batch.add(message);
+		this.messages.drainTo(batch, MAX_BATCH_SIZE - 1);
+		return batch;
+	}
+	
+	/**
+	 * Returns the number of messages waiting to be read.
+	 * 
+	 * @return the number of messages waiting to be read.
+	 */
+	public int size() {
+		return this.messages.size();
 	}
 }
@@ -1,17 +1,44 @@
 package assistant.message.rooms.arrivals;
 
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+import assistant.message.ChatMessage;
+import assistant.message.rooms.MessagesRoom;
+
 /**
- * {@link NormalMessagesRoom}
+ * {@link NormalMessagesRoom}. The messages to be persisted, whole : each one
+ * is written with the time it has been sent at. Nothing may go missing from
+ * the history quietly : when the room is full, the message is dropped, counted
+ * and logged. A producer that is allowed to block can wait for the
+ * persistence to catch up first, a bounded time, with
+ * {@link #addMessage(ChatMessage, long, TimeUnit)}; a selector thread never
+ * waits, it serves too many clients.
  * 
  * @author Costi.Dumitrescu
  */
-public class NormalMessagesRoom extends IncomingMessagesRoom {
+public class NormalMessagesRoom extends MessagesRoom<ChatMessage> {
+
+	/**
+	 * How long a producer that may block waits for room, before the message
+	 * is dropped. The producers are the threads that serve the clients, so it
+	 * is kept short.
+	 */
+	public static final long OVERFLOW_WAIT_MILLIS = 100;
 
 	/**
 	 * {@link LogoutMessagesRoom} Instance. Singleton purpose.
 	 */
 	protected static NormalMessagesRoom INSTANCE;
 	
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(NormalMessagesRoom.class);
+	
 	/**
 	 * Private constructor. Singleton purpose.
 	 */
@@ -30,4 +57,42 @@ public class NormalMessagesRoom extends IncomingMessagesRoom {
 		}
 		return INSTANCE;
 	}
+	
+	/**
+	 * Add a message in the queue. If the room is full, waits for the
+	 * persistence to make room, at most the given time, then drops the
+	 * message. The messages already waiting are kept, in order. Never to be
+	 * called from a thread that serves many clients.
+	 * 
+	 * @param message The message.
+	 * @param timeout How long to wait for room.
+	 * @param unit 	  The unit of the timeout.
+	 */
+	public void addMessage(ChatMessage message, long timeout, TimeUnit unit) {
+		try {
+			if (this.messages.offer(message, timeout, unit)) {
+				return;
+			}
+		} catch (InterruptedException e) {
+			// Dropped, but the thread still knows it has been interrupted.
+			Thread.currentThread().interrupt();
+		}
+		this.overflow(message);
+	}
+	
+	/**
+	 * Drops the message that did not fit, without waiting. The messages
+	 * already waiting are kept, in order.
+	 * 
+	 * @see assistant.message.rooms.MessagesRoom.overflow(Object)
+	 */
+	@Override
+	protected void overflow(ChatMessage message) {
+		// Logged the first time, then once every room full, not to flood the log.
+		long droppedMessages = this.dropped();
+		if (droppedMessages == 1 || droppedMessages % DEFAULT_CAPACITY == 0) {
+			this.logger.warn(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("MessagesNotPersisted"), droppedMessages));
+		}
+	}
 }
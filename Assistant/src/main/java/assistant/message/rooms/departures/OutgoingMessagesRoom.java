@@ -1,7 +1,5 @@
 package assistant.message.rooms.departures;
 
-import java.util.ArrayList;
-
 import assistant.message.ChatMessage;
 import assistant.message.rooms.MessagesRoom;
 import assistant.message.rooms.arrivals.IncomingMessagesRoom;
@@ -23,8 +21,6 @@ public class OutgoingMessagesRoom extends MessagesRoom<ChatMessage> {
 	 * Private constructor. Singleton purpose.
 	 */
 	private OutgoingMessagesRoom() {
-		// Initialize the list of {@link ChatMessage}.
-		this.messages = new ArrayList<>();
 	}
 
 	/**
@@ -0,0 +1,17 @@
+package assistant.metrics;
+
+/**
+ * {@link Gauge}. A value read when the metrics are reported, like the number of
+ * clients connected, rather than counted as it changes.
+ *
+ * @author costi.dumitrescu
+ */
+public interface Gauge {
+
+	/**
+	 * Returns the current value.
+	 *
+	 * @return the current value.
+	 */
+	long getValue();
+}
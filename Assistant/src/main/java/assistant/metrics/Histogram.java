@@ -0,0 +1,202 @@
+package assistant.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link Histogram}. Counts values, like latencies in nanoseconds, in buckets
+ * that grow with the values, the way an HDR histogram does : each power of two
+ * is split in {@link #SUB_BUCKETS} buckets, so a value is known within about
+ * 1.5%, from a nanosecond up to the largest long, for a fixed few kilobytes.
+ * Recording is a couple of atomic additions, with no lock and no allocation,
+ * so any number of threads can record at once.
+ *
+ * @author costi.dumitrescu
+ */
+public class Histogram {
+
+	/**
+	 * The number of buckets each power of two is split in.
+	 */
+	private static final int SUB_BUCKETS = 64;
+
+	/**
+	 * The values below this one have a bucket each.
+	 */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+	/**
+	 * log2(SUB_BUCKETS).
+	 */
+	private static final int SUB_BUCKET_BITS = 6;
+
+	/**
+	 * The number of buckets : the linear ones, then SUB_BUCKETS for each power of two up to 2^63.
+	 */
+	private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	/**
+	 * The number of values in each bucket.
+	 */
+	private final AtomicLongArray counts;
+
+	/**
+	 * The number of values.
+	 */
+	private final LongAdder count;
+
+	/**
+	 * The sum of the values.
+	 */
+	private final LongAdder sum;
+
+	/**
+	 * The largest value.
+	 */
+	private final AtomicLong max;
+
+	/**
+	 * Constructor.
+	 */
+	public Histogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count 	= new LongAdder();
+		this.sum 	= new LongAdder();
+		this.max 	= new AtomicLong();
+	}
+
+	/**
+	 * Count a value. A negative value is counted as <code>0</code>.
+	 *
+	 * @param value The value.
+	 */
+	public void record(long value) {
+		long positiveValue = Math.max(0, value);
+		this.counts.incrementAndGet(bucketOf(positiveValue));
+		this.count.increment();
+		this.sum.add(positiveValue);
+		long currentMax = this.max.get();
+		while (positiveValue > currentMax && !this.max.compareAndSet(currentMax, positiveValue)) {
+			currentMax = this.max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of values.
+	 *
+	 * @return the number of values.
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	/**
+	 * Returns the largest value, <code>0</code> if there is none.
+	 *
+	 * @return the largest value.
+	 */
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * Returns the sum of the values.
+	 *
+	 * @return the sum of the values.
+	 */
+	public long getSum() {
+		return this.sum.sum();
+	}
+
+	/**
+	 * Returns the mean of the values, <code>0</code> if there is none.
+	 *
+	 * @return the mean of the values.
+	 */
+	public double getMean() {
+		long count = this.count.sum();
+		return count == 0 ? 0 : (double) this.sum.sum() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the values fall, as
+	 * the upper end of its bucket : never lower than the exact one.
+	 *
+	 * @param percentile The percentage, from <code>0</code> to <code>100</code>.
+	 *
+	 * @return 			 The value, <code>0</code> if there is none.
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		// Read once : the values keep coming while the buckets are walked.
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Forget every value. The values recorded meanwhile may be half forgotten.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.counts.set(i, 0);
+		}
+		this.count.reset();
+		this.sum.reset();
+		this.max.set(0);
+	}
+
+	/**
+	 * Returns the bucket a value goes in.
+	 *
+	 * @param value The value, not negative.
+	 *
+	 * @return 		The bucket.
+	 */
+	private static int bucketOf(long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		// Keep the highest SUB_BUCKET_BITS + 1 bits of the value.
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns the largest value that goes in a bucket.
+	 *
+	 * @param bucket The bucket.
+	 *
+	 * @return 		 The largest value.
+	 */
+	private static long highestValueOf(int bucket) {
+		if (bucket < LINEAR_LIMIT) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long highest = ((subBucket + 1) << shift) - 1;
+		// The very last bucket ends with the longs.
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
@@ -0,0 +1,187 @@
+package assistant.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Singleton {@link MetricsRegistry} java class which holds every metric of
+ * the process, by name : the counters, the histograms and the gauges. The hot
+ * paths look their metric up once, keep it in a field, and then only pay for
+ * an addition : the counters are {@link LongAdder}s, striped across the
+ * threads that update them, and the {@link Histogram}s take no lock.
+ *
+ * The metrics are written as plain text, one <code>name value</code> per line,
+ * sorted by name, the way a scraper reads them.
+ *
+ * @author costi.dumitrescu
+ */
+public class MetricsRegistry {
+
+	/**
+	 * The quantiles written for each histogram.
+	 */
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * Singleton instance.
+	 */
+	private static MetricsRegistry INSTANCE = null;
+
+	/**
+	 * The counters, by name.
+	 */
+	private final ConcurrentMap<String, LongAdder> counters;
+
+	/**
+	 * The histograms, by name.
+	 */
+	private final ConcurrentMap<String, Histogram> histograms;
+
+	/**
+	 * The gauges, by name.
+	 */
+	private final ConcurrentMap<String, Gauge> gauges;
+
+	/**
+	 * The sources of metrics of their own, by name.
+	 */
+	private final ConcurrentMap<String, MetricsSource> sources;
+
+	/**
+	 * Private constructor. Singleton purpose.
+	 */
+	private MetricsRegistry() {
+		this.counters 	= new ConcurrentSkipListMap<>();
+		this.histograms = new ConcurrentSkipListMap<>();
+		this.gauges 	= new ConcurrentSkipListMap<>();
+		this.sources 	= new ConcurrentSkipListMap<>();
+	}
+
+	/**
+	 * Returns the single reference for the {@link MetricsRegistry} instance.
+	 * Singleton purpose.
+	 *
+	 * @return The single reference for the {@link MetricsRegistry} instance.
+	 */
+	public static synchronized MetricsRegistry getInstance() {
+		if (INSTANCE == null) {
+			INSTANCE = new MetricsRegistry();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the counter by that name, made if there is none.
+	 *
+	 * @param name The name, labels included, like <code>messages_total{type="LOGIN"}</code>.
+	 *
+	 * @return 	   The counter.
+	 */
+	public LongAdder counter(String name) {
+		LongAdder counter = this.counters.get(name);
+		if (counter == null) {
+			LongAdder newCounter = new LongAdder();
+			counter = this.counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Returns the histogram by that name, made if there is none.
+	 *
+	 * @param name The name.
+	 *
+	 * @return 	   The histogram.
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = this.histograms.get(name);
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram();
+			histogram = this.histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Register a gauge, in place of the one by the same name if any.
+	 *
+	 * @param name  The name.
+	 * @param gauge The gauge.
+	 */
+	public void registerGauge(String name, Gauge gauge) {
+		this.gauges.put(name, gauge);
+	}
+
+	/**
+	 * Register a source of metrics, in place of the one by the same name if any.
+	 *
+	 * @param name   The name, only used to tell the sources apart.
+	 * @param source The source.
+	 */
+	public void registerSource(String name, MetricsSource source) {
+		this.sources.put(name, source);
+	}
+
+	/**
+	 * Returns every metric as plain text, one <code>name value</code> per line.
+	 * A histogram gives its count, sum, max and quantiles.
+	 *
+	 * @return every metric as plain text.
+	 */
+	public StringBuilder render() {
+
+		StringBuilder out = new StringBuilder();
+
+		for (Map.Entry<String, LongAdder> counter : this.counters.entrySet()) {
+			appendLine(out, counter.getKey(), counter.getValue().sum());
+		}
+		for (Map.Entry<String, Gauge> gauge : this.gauges.entrySet()) {
+			appendLine(out, gauge.getKey(), gauge.getValue().getValue());
+		}
+		for (Map.Entry<String, Histogram> entry : this.histograms.entrySet()) {
+			String name = entry.getKey();
+			Histogram histogram = entry.getValue();
+			appendLine(out, name + "_count", histogram.getCount());
+			appendLine(out, name + "_sum", histogram.getSum());
+			appendLine(out, name + "_max", histogram.getMax());
+			for (double quantile : QUANTILES) {
+				appendLine(out, name + "{quantile=\"" + quantile + "\"}", histogram.getValueAtPercentile(quantile * 100));
+			}
+		}
+		for (MetricsSource source : this.sources.values()) {
+			source.appendTo(out);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Append a metric.
+	 *
+	 * @param out 	Where the metric goes.
+	 * @param name 	The name.
+	 * @param value The value.
+	 */
+	public static void appendLine(StringBuilder out, String name, long value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Append a metric that is not a whole number, like an average.
+	 *
+	 * @param out 	Where the metric goes.
+	 * @param name 	The name.
+	 * @param value The value.
+	 */
+	public static void appendLine(StringBuilder out, String name, double value) {
+		out.append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,17 @@
+package assistant.metrics;
+
+/**
+ * {@link MetricsSource}. Writes a few metrics of its own when the metrics are
+ * reported, like a value for each client, which can't be known in advance.
+ *
+ * @author costi.dumitrescu
+ */
+public interface MetricsSource {
+
+	/**
+	 * Append the metrics, one <code>name value</code> per line.
+	 *
+	 * @param out Where the metrics go.
+	 */
+	void appendTo(StringBuilder out);
+}
@@ -0,0 +1,168 @@
+package assistant.message.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import org.junit.Test;
+
+import assistant.message.ChatMessage;
+import assistant.message.MessageType;
+
+/**
+ * {@link BinaryMessageCodecTest}. The payloads come from the network : a
+ * malformed or truncated one must be told apart with a
+ * {@link StreamCorruptedException}, never with anything else.
+ *
+ * @author costi.dumitrescu
+ */
+public class BinaryMessageCodecTest {
+
+	/**
+	 * The codec.
+	 */
+	private final BinaryMessageCodec codec = BinaryMessageCodec.getInstance();
+
+	/**
+	 * A message comes back as it was.
+	 *
+	 * @throws IOException Not expected.
+	 */
+	@Test
+	public void decodesWhatItEncodes() throws IOException {
+		ChatMessage message = new ChatMessage(MessageType.MESSAGE, "alice", "h\u00e9llo", "dev", 1234567890123L, 42);
+		byte[] payload = this.codec.encode(message);
+
+		ChatMessage decoded = this.codec.decode(payload, 0, payload.length);
+
+		assertEquals(MessageType.MESSAGE, decoded.getMessageType());
+		assertEquals("alice", decoded.getUser());
+		assertEquals("h\u00e9llo", decoded.getBody());
+		assertEquals("dev", decoded.getChannel());
+		assertEquals(1234567890123L, decoded.getTimestamp());
+		assertEquals(42, decoded.getSequenceId());
+	}
+
+	/**
+	 * A message of the default channel has no channel.
+	 *
+	 * @throws IOException Not expected.
+	 */
+	@Test
+	public void decodesTheDefaultChannel() throws IOException {
+		byte[] payload = this.codec.encode(new ChatMessage(MessageType.LOGIN, "alice", null, 1, 1));
+
+		ChatMessage decoded = this.codec.decode(payload, 0, payload.length);
+
+		assertNull(decoded.getBody());
+		assertNull(decoded.getChannel());
+	}
+
+	/**
+	 * An empty payload.
+	 *
+	 * @throws IOException Expected.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsAnEmptyPayload() throws IOException {
+		this.codec.decode(new byte[0], 0, 0);
+	}
+
+	/**
+	 * A text length that reads as a negative number.
+	 *
+	 * @throws IOException Expected.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsANegativeTextLength() throws IOException {
+		byte[] payload = bytes(3, 0, 0, 0xF0, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0x01, 'A', 'A');
+		this.codec.decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * A text length bigger than any array.
+	 *
+	 * @throws IOException Expected.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsATextLengthOverAnInt() throws IOException {
+		// 2^32 + 1.
+		byte[] payload = bytes(3, 0, 0, 0x81, 0x80, 0x80, 0x80, 0x10, 'A', 'A');
+		this.codec.decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * A varint of more than 10 bytes.
+	 *
+	 * @throws IOException Expected.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsAVarintTooLong() throws IOException {
+		byte[] payload = bytes(3, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x81, 0x00, 0, 0, 0);
+		this.codec.decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * A varint whose tenth byte goes past 64 bits.
+	 *
+	 * @throws IOException Expected.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsAVarintThatOverflows() throws IOException {
+		byte[] payload = bytes(3, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x02, 0, 0, 0);
+		this.codec.decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * An unknown message type.
+	 *
+	 * @throws IOException Expected.
+	 */
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsAnUnknownType() throws IOException {
+		byte[] payload = bytes(99, 0, 0, 0, 0);
+		this.codec.decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * Every cut of a message either ends where a message may end, or is rejected.
+	 *
+	 * @throws IOException Not expected.
+	 */
+	@Test
+	public void rejectsEveryTruncation() throws IOException {
+		byte[] payload = this.codec.encode(new ChatMessage(MessageType.MESSAGE, "alice", "hello", "dev", 300, 300));
+
+		int decoded = 0;
+		for (int length = 0; length < payload.length; length++) {
+			// Shifted, so that whatever lies past the limit is never read.
+			byte[] shifted = new byte[payload.length + 1];
+			System.arraycopy(payload, 0, shifted, 1, payload.length);
+			try {
+				this.codec.decode(shifted, 1, length);
+				decoded++;
+			} catch (StreamCorruptedException e) {
+				// Rejected.
+			}
+		}
+		// Only the message without its channel.
+		assertEquals(1, decoded);
+	}
+
+	/**
+	 * Returns the given values as bytes.
+	 *
+	 * @param values The values, from 0 to 255.
+	 *
+	 * @return 		 The bytes.
+	 */
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+}
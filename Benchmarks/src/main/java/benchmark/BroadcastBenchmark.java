@@ -0,0 +1,86 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.connection.PresenceCoalescer;
+import server.connection.ServerRoom;
+import assistant.message.ChatMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+
+/**
+ * {@link BroadcastBenchmark}. What {@link ServerRoom#broadcast(ChatMessage)}
+ * costs as the room grows : the message is fanned out to in-process clients,
+ * so the cost is the room's own, not the network's.
+ *
+ * @author costi.dumitrescu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+	/**
+	 * The number of clients logged in.
+	 */
+	@Param({ "10", "100", "1000" })
+	private int recipients;
+
+	/**
+	 * The message broadcast.
+	 */
+	private ChatMessage message;
+
+	/**
+	 * Log the clients in, all of them in the default channel.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() {
+		// The logins are told right away, there is no scheduler left running.
+		ServerRoom.getInstance().setPresenceCoalescer(new PresenceCoalescer(0));
+		for (int i = 0; i < this.recipients; i++) {
+			InProcessClient client = new InProcessClient();
+			ServerRoom.getInstance().addClient(client);
+			ServerRoom.getInstance().login(client, "user" + i);
+		}
+		this.message = MessageHandler.getInstance().createMessage(MessageType.MESSAGE, "user0", "hello everybody");
+	}
+
+	/**
+	 * Log the clients out, the room is shared by the trials.
+	 *
+	 * @throws IOException Not thrown by the in-process clients.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		ServerRoom.getInstance().closeAllClients();
+	}
+
+	/**
+	 * Broadcast a message said in the default channel.
+	 *
+	 * @throws IOException Not thrown by the in-process clients.
+	 */
+	@Benchmark
+	public void broadcast() throws IOException {
+		ServerRoom.getInstance().broadcast(this.message);
+	}
+}
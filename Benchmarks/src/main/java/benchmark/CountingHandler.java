@@ -0,0 +1,106 @@
+package benchmark;
+
+import assistant.handler.Handler;
+
+/**
+ * {@link CountingHandler}. A {@link Handler} that only counts the messages it
+ * is handed, so a benchmark measures the dispatch, not what is done after it.
+ *
+ * @author costi.dumitrescu
+ */
+public class CountingHandler implements Handler {
+
+	/**
+	 * The number of messages handled so far.
+	 */
+	private long count;
+
+	/**
+	 * @see assistant.handler.Handler.handleLogin(String, String)
+	 */
+	@Override
+	public void handleLogin(String username, String message) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleWhoIsIn(String, String)
+	 */
+	@Override
+	public void handleWhoIsIn(String username, String message) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleMessage(String, String, String)
+	 */
+	@Override
+	public void handleMessage(String username, String channel, String message) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLogout(String, String)
+	 */
+	@Override
+	public void handleLogout(String username, String message) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoin(String, String)
+	 */
+	@Override
+	public void handleJoin(String username, String channel) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeave(String, String)
+	 */
+	@Override
+	public void handleLeave(String username, String channel) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleList(String, String)
+	 */
+	@Override
+	public void handleList(String username, String channels) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoined(String, String)
+	 */
+	@Override
+	public void handleJoined(String username, String users) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeft(String, String)
+	 */
+	@Override
+	public void handleLeft(String username, String users) {
+		this.count++;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleResume(String, String)
+	 */
+	@Override
+	public void handleResume(String username, String message) {
+		this.count++;
+	}
+
+	/**
+	 * Returns the number of messages handled so far.
+	 *
+	 * @return the number of messages handled so far.
+	 */
+	public long getCount() {
+		return this.count;
+	}
+}
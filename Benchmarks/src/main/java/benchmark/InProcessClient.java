@@ -0,0 +1,103 @@
+package benchmark;
+
+import server.connection.OutboundQueue;
+import server.connection.ServerClient;
+import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+
+/**
+ * {@link InProcessClient}. A {@link ServerClient} without a socket, that only
+ * counts the messages it is offered, so a broadcast is measured without any
+ * network in the way.
+ *
+ * @author costi.dumitrescu
+ */
+public class InProcessClient implements ServerClient {
+
+	/**
+	 * The user.
+	 */
+	private String user;
+
+	/**
+	 * The number of messages offered so far.
+	 */
+	private long offeredMessages;
+
+	/**
+	 * @see server.connection.ServerClient.getUser()
+	 */
+	@Override
+	public String getUser() {
+		return this.user;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.setUser(String)
+	 */
+	@Override
+	public void setUser(String username) {
+		this.user = username;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.send(ChatMessage)
+	 */
+	@Override
+	public void send(ChatMessage message) {
+		this.offeredMessages++;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.offer(EncodedMessage)
+	 */
+	@Override
+	public boolean offer(EncodedMessage message) {
+		this.offeredMessages++;
+		return true;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.isObjectStream()
+	 */
+	@Override
+	public boolean isObjectStream() {
+		return false;
+	}
+
+	/**
+	 * Nothing is ever queued.
+	 *
+	 * @see server.connection.ServerClient.getOutboundQueue()
+	 */
+	@Override
+	public OutboundQueue getOutboundQueue() {
+		return null;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.stopClient()
+	 */
+	@Override
+	public void stopClient() {
+		// Nothing to close.
+	}
+
+	/**
+	 * @see server.connection.ServerClient.awaitTermination(long)
+	 */
+	@Override
+	public boolean awaitTermination(long timeoutMillis) {
+		// No thread of its own.
+		return true;
+	}
+
+	/**
+	 * Returns the number of messages offered so far.
+	 *
+	 * @return the number of messages offered so far.
+	 */
+	public long getOfferedMessages() {
+		return this.offeredMessages;
+	}
+}
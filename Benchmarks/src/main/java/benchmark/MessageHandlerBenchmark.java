@@ -0,0 +1,76 @@
+package benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import assistant.message.ChatMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+
+/**
+ * {@link MessageHandlerBenchmark}. What every message costs before it reaches
+ * a socket : being created, then being dispatched to the handler of its type.
+ *
+ * @author costi.dumitrescu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageHandlerBenchmark {
+
+	/**
+	 * The message dispatched.
+	 */
+	private ChatMessage message;
+
+	/**
+	 * The handler the message is dispatched to.
+	 */
+	private CountingHandler handler;
+
+	/**
+	 * Build the message and the handler once, outside of the measurement.
+	 */
+	@Setup
+	public void setUp() {
+		this.message = MessageHandler.getInstance().createMessage(MessageType.MESSAGE, "alice", "hello everybody");
+		this.handler = new CountingHandler();
+	}
+
+	/**
+	 * Create a message, as each sender and the server do.
+	 *
+	 * @return The message, so it is not optimized away.
+	 */
+	@Benchmark
+	public ChatMessage createMessage() {
+		return MessageHandler.getInstance().createMessage(MessageType.MESSAGE, "alice", "hello everybody");
+	}
+
+	/**
+	 * Dispatch a message to the handler of its type.
+	 *
+	 * @return The number of messages handled, so it is not optimized away.
+	 *
+	 * @throws IOException Not thrown by the counting handler.
+	 */
+	@Benchmark
+	public long handleMessage() throws IOException {
+		MessageHandler.getInstance().handleMessage(this.handler, this.message);
+		return this.handler.getCount();
+	}
+}
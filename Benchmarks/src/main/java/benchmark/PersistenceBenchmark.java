@@ -0,0 +1,151 @@
+package benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.persistence.HistoryEntry;
+import server.persistence.Persistence;
+
+/**
+ * {@link PersistenceBenchmark}. What a message costs to be inserted in the
+ * DATA BASE, one at a time and in batches. The DATA BASE is an in-memory one,
+ * set in the credentials file of this module, so the numbers compare the
+ * insert paths between themselves rather than tell how fast PostgreSQL is.
+ *
+ * @author costi.dumitrescu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+
+	/**
+	 * The number of messages in a batch, the default batch size of the server.
+	 */
+	private static final int BATCH_SIZE = 100;
+
+	/**
+	 * The credentials the {@link Persistence} is connected with.
+	 */
+	private Properties credentials;
+
+	/**
+	 * The batch inserted.
+	 */
+	private List<HistoryEntry> entries;
+
+	/**
+	 * Create the table, then connect the {@link Persistence} to it.
+	 *
+	 * @throws IOException  If the credentials file could not be read.
+	 * @throws SQLException If the table could not be created.
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, SQLException {
+
+		// The very file the {@link Persistence} reads.
+		this.credentials = new Properties();
+		InputStream in = Persistence.class.getResourceAsStream("credentials.properties");
+		try {
+			this.credentials.load(in);
+		} finally {
+			in.close();
+		}
+
+		// The same columns as in queries.sql.
+		this.execute("CREATE TABLE IF NOT EXISTS ChatHistory (t_ID BIGINT AUTO_INCREMENT PRIMARY KEY, "
+				+ "t_username VARCHAR, t_message VARCHAR, t_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+
+		if (Persistence.getInstance() == null) {
+			throw new IllegalStateException("The persistence could not connect to " + this.credentials.getProperty("db_url"));
+		}
+
+		this.entries = new ArrayList<>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			this.entries.add(new HistoryEntry(0, "user" + i, "hello everybody", new Timestamp(System.currentTimeMillis())));
+		}
+	}
+
+	/**
+	 * Empty the table, so every iteration inserts in a table of the same size.
+	 *
+	 * @throws SQLException If the table could not be emptied.
+	 */
+	@TearDown(Level.Iteration)
+	public void truncate() throws SQLException {
+		this.execute("TRUNCATE TABLE ChatHistory");
+	}
+
+	/**
+	 * Give the connections back.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		Persistence.getInstance().closeConnection();
+	}
+
+	/**
+	 * Insert one message with a prepared statement, one round-trip each.
+	 */
+	@Benchmark
+	public void insertMessagePreparedStatement() {
+		Persistence.getInstance().insertMessagePreparedStatement("alice", "hello everybody", new Timestamp(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Insert a batch of messages. The time is given per message, to compare
+	 * with the inserts one at a time.
+	 *
+	 * @return <code>true</code> if the batch has been inserted, so it is not optimized away.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public boolean insertMessagesBatch() {
+		return Persistence.getInstance().insertMessagesBatch(this.entries);
+	}
+
+	/**
+	 * Run a statement on a connection of its own.
+	 *
+	 * @param sql 			The statement.
+	 *
+	 * @throws SQLException If the statement failed.
+	 */
+	private void execute(String sql) throws SQLException {
+		Connection connection = DriverManager.getConnection(this.credentials.getProperty("db_url"),
+				this.credentials.getProperty("user"), this.credentials.getProperty("password"));
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute(sql);
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+}
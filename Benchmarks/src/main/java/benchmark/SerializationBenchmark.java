@@ -0,0 +1,95 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import assistant.message.ChatMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+
+/**
+ * {@link SerializationBenchmark}. What a {@link ChatMessage} costs on an object
+ * stream, the way the old clients still talk to the server.
+ *
+ * @author costi.dumitrescu
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+	/**
+	 * The message serialized.
+	 */
+	private ChatMessage message;
+
+	/**
+	 * The bytes of the message, for the reading.
+	 */
+	private byte[] serializedMessage;
+
+	/**
+	 * Where the message is written. Reused, so only the serialization is measured.
+	 */
+	private ByteArrayOutputStream byteArrayOutputStream;
+
+	/**
+	 * Build the message and its bytes once, outside of the measurement.
+	 *
+	 * @throws IOException Not expected in memory.
+	 */
+	@Setup
+	public void setUp() throws IOException {
+		this.message = MessageHandler.getInstance().createMessage(MessageType.MESSAGE, "alice", "hello everybody");
+		this.byteArrayOutputStream = new ByteArrayOutputStream(4096);
+		this.serializedMessage = this.writeObject();
+	}
+
+	/**
+	 * Write the message on a new object stream.
+	 *
+	 * @return The bytes, so they are not optimized away.
+	 *
+	 * @throws IOException Not expected in memory.
+	 */
+	@Benchmark
+	public byte[] writeObject() throws IOException {
+		this.byteArrayOutputStream.reset();
+		ObjectOutputStream objectOutputStream = new ObjectOutputStream(this.byteArrayOutputStream);
+		objectOutputStream.writeObject(this.message);
+		objectOutputStream.flush();
+		return this.byteArrayOutputStream.toByteArray();
+	}
+
+	/**
+	 * Read the message back from its bytes.
+	 *
+	 * @return The message, so it is not optimized away.
+	 *
+	 * @throws IOException 			  Not expected in memory.
+	 * @throws ClassNotFoundException Not expected, the class is on the class path.
+	 */
+	@Benchmark
+	public Object readObject() throws IOException, ClassNotFoundException {
+		ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(this.serializedMessage));
+		return objectInputStream.readObject();
+	}
+}
@@ -2,28 +2,133 @@ package connection;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.log4j.Logger;
 
 import assistant.connection.Connection;
 import assistant.connection.ConnectionInfoPack;
+import assistant.connection.ConnectionListener;
+import assistant.i18n.ResourceBundleHandler;
+import assistant.message.ChatMessage;
 
 /**
- * {@link ClientConnection}
- * 
+ * {@link ClientConnection}. A lost connection is got back on its own : the
+ * client waits a little, longer after each failed attempt, then asks the
+ * server only for what it has missed.
+ *
+ * The listener thread tells the connection what arrives, and the connection
+ * tells the view. Whatever arrives before the view listens is kept, and
+ * handed over when it starts to.
+ *
  * @author costi.dumitrescu
  */
-public class ClientConnection extends Connection{
+public class ClientConnection extends Connection implements ConnectionListener {
+
+	/**
+	 * How long the sender of a lost connection is waited for, in milliseconds.
+	 */
+	private static final long SENDER_STOP_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(ClientConnection.class);
 
 	/**
 	 * The listener thread.
 	 */
-	private ClientHandlerThread clientHandlerThread;
+	private volatile ClientHandlerThread clientHandlerThread;
+
+	/**
+	 * <code>true</code> once the connection has been stopped on purpose. It is
+	 * not got back then.
+	 */
+	private volatile boolean isStopped;
+
+	/**
+	 * The next wait before reconnecting, in milliseconds. It only starts over
+	 * once a connection has held for a while, so a server that accepts and
+	 * drops right away is not hammered.
+	 */
+	private long reconnectDelayMillis;
+
+	/**
+	 * When the last connection has been made, in milliseconds.
+	 */
+	private volatile long connectedAtMillis;
+
+	/**
+	 * The lines arrived before the view listens. Also the lock the view is
+	 * handed over under, so nothing slips in between.
+	 */
+	private List<String> pendingLines;
+
+	/**
+	 * The changes of users arrived before the view listens.
+	 */
+	private List<ChatMessage> pendingUsers;
 
 	/**
 	 * Constructor.
 	 */
 	public ClientConnection() {
+		this.pendingLines = new ArrayList<>();
+		this.pendingUsers = new ArrayList<>();
+	}
+
+	/**
+	 * Sets the view told about what arrives, and hands it over what has
+	 * arrived before.
+	 *
+	 * @see assistant.connection.Connection.setConnectionListener(ConnectionListener)
+	 */
+	@Override
+	public void setConnectionListener(ConnectionListener connectionListener) {
+		synchronized (this.pendingLines) {
+			for (String line : this.pendingLines) {
+				connectionListener.lineArrived(line);
+			}
+			for (ChatMessage message : this.pendingUsers) {
+				connectionListener.usersArrived(message);
+			}
+			this.pendingLines.clear();
+			this.pendingUsers.clear();
+			this.connectionListener = connectionListener;
+		}
+	}
+
+	/**
+	 * @see assistant.connection.ConnectionListener.lineArrived(String)
+	 */
+	@Override
+	public void lineArrived(String line) {
+		synchronized (this.pendingLines) {
+			if (this.connectionListener == null) {
+				this.pendingLines.add(line);
+			} else {
+				this.connectionListener.lineArrived(line);
+			}
+		}
+	}
+
+	/**
+	 * @see assistant.connection.ConnectionListener.usersArrived(ChatMessage)
+	 */
+	@Override
+	public void usersArrived(ChatMessage message) {
+		synchronized (this.pendingLines) {
+			if (this.connectionListener == null) {
+				this.pendingUsers.add(message);
+			} else {
+				this.connectionListener.usersArrived(message);
+			}
+		}
 	}
-	
+
 	/**
 	 * @see assistant.connection.Connection.start(ConnectionInfoPack)
      *
@@ -32,34 +137,151 @@ public class ClientConnection extends Connection{
 	 * @throws InterruptedException If any thread has interrupted the current thread. The
 	 *				                interrupted status of the current thread is cleared when this
 	 *				                exception is thrown.
-	 * @throws IOException 			If an I/O error occurs when opening the socket, or 
+	 * @throws IOException 			If an I/O error occurs when opening the socket, or
 	 * 								if an I/O error has occurred while closing the connections.
 	 */
 	public void start(ConnectionInfoPack connectionInfoPack) throws IOException, InterruptedException {
 
 		// Set the connection information.
 		this.connectionInfoPack = connectionInfoPack;
+		this.isStopped = false;
+
+		// Creates the thread to listen from the server.
+		this.clientHandlerThread = this.connect();
+
+		// Start the thread.
+		this.clientHandlerThread.start();
+	}
+
+	/**
+	 * Tries to connect to the server, and creates the thread to listen from it.
+	 *
+	 * @return 			   The thread, not started yet.
+	 *
+	 * @throws IOException If the server could not be reached.
+	 */
+	private ClientHandlerThread connect() throws IOException {
 
 		/*
 		 * Tries to connect to the server.. If the port number is already
 		 * occupied, then the connection will be interrupted.
 		 */
 		Socket socket = new Socket(this.connectionInfoPack.getServerAddress(), this.connectionInfoPack.getPortNumber());
+		this.connectedAtMillis = System.currentTimeMillis();
 
-		// Creates the thread to listen from the server.
-		this.clientHandlerThread = new ClientHandlerThread(socket, this.connectionInfoPack.getUser());
-		
-		// Start the thread.
-		this.clientHandlerThread.start();
+		// The messages travel as frames, which both transports of the server understand.
+		return new ClientHandlerThread(socket, this.connectionInfoPack.getUser(),
+				this.connectionInfoPack.getCodecType(), this.connectionInfoPack.getThreadMode(), this);
+	}
+
+	/**
+	 * The connection of a listener thread has been lost. Get a new one, on a
+	 * thread of its own, unless it has been stopped on purpose.
+	 *
+	 * @param lostThread The listener thread whose connection has been lost.
+	 */
+	void connectionLost(final ClientHandlerThread lostThread) {
+
+		// Stopped on purpose, or already replaced, or never to be got back.
+		if (this.isStopped || lostThread != this.clientHandlerThread || this.connectionInfoPack.getReconnectBaseDelayMillis() <= 0) {
+			return;
+		}
+
+		// Give a sign the connection has been lost.
+		this.lineArrived(ResourceBundleHandler.getInstance().getResourceBundle().getString("ConnectionLostReconnecting"));
+
+		this.connectionInfoPack.getThreadMode().newThread("Reconnect-Thread", new Runnable() {
+			/**
+			 * @see java.lang.Runnable.run()
+			 */
+			@Override
+			public void run() {
+				ClientConnection.this.reconnect(lostThread);
+			}
+		}).start();
 	}
-	
+
+	/**
+	 * Try to connect again until it works, or until the connection is stopped.
+	 * The wait doubles after each failed attempt, up to the longest one. Only
+	 * half of it is fixed, the other half is random : the clients of a server
+	 * that went down come back spread, not all at once.
+	 *
+	 * The lost connection's sender is waited for first : what it has not sent
+	 * is handed to the new connection, to be sent before anything newer.
+	 *
+	 * @param lostThread The listener thread whose connection has been lost.
+	 */
+	private void reconnect(ClientHandlerThread lostThread) {
+
+		// The sender has been told to stop, and takes nothing more from the room.
+		try {
+			if (!lostThread.awaitSender(SENDER_STOP_TIMEOUT_MILLIS)) {
+				this.logger.warn(ResourceBundleHandler.getInstance().getResourceBundle().getString("SenderNotStopped"));
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+		ChatMessage lastMessage = lostThread.getLastMessage();
+		List<ChatMessage> unsentMessages = lostThread.getUnsentMessages();
+
+		long baseDelayMillis = this.connectionInfoPack.getReconnectBaseDelayMillis();
+		long maxDelayMillis = Math.max(baseDelayMillis, this.connectionInfoPack.getReconnectMaxDelayMillis());
+
+		// Start over, unless the lost connection has barely held.
+		if (this.reconnectDelayMillis <= 0 || System.currentTimeMillis() - this.connectedAtMillis > maxDelayMillis) {
+			this.reconnectDelayMillis = baseDelayMillis;
+		}
+
+		for (int attempt = 1; !this.isStopped; attempt++) {
+
+			// Wait.
+			long delayMillis = this.reconnectDelayMillis;
+			this.reconnectDelayMillis = Math.min(maxDelayMillis, delayMillis * 2);
+			long waitMillis = delayMillis / 2 + ThreadLocalRandom.current().nextLong(delayMillis / 2 + 1);
+			try {
+				Thread.sleep(waitMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				// Ask for what has been missed, instead of a login.
+				ClientHandlerThread newThread = this.connect();
+				newThread.resumeAfter(lastMessage, unsentMessages);
+
+				synchronized (this) {
+					// Stopped meanwhile.
+					if (this.isStopped) {
+						newThread.stopClient();
+						return;
+					}
+					this.clientHandlerThread = newThread;
+				}
+				newThread.start();
+
+				// Give a sign the connection is back.
+				this.lineArrived(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("Reconnected"), attempt));
+				return;
+
+			} catch (IOException e) {
+				this.logger.warn(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("ReconnectFailed"),
+						attempt, e.getLocalizedMessage()));
+			}
+		}
+	}
+
 	/**
 	 * @see assistant.connection.Connection.stop()
-	 * 
-	 * @throws IOException if an I/O error occurs when creating the socket or, 
+	 *
+	 * @throws IOException if an I/O error occurs when creating the socket or,
 	 * 					   if the IP address of the host could not be determined.
 	 */
-	public void stop() throws IOException {
+	public synchronized void stop() throws IOException {
+		// Not to be got back.
+		this.isStopped = true;
 		// TODO - When a LOGOUT action occurs.
 		this.clientHandlerThread.stopClient();
 		// TODO - release the client from the input stream.
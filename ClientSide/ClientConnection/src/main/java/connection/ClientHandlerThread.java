@@ -3,28 +3,33 @@ package connection;
 import java.io.IOException;
 import java.net.Socket;
 import java.text.MessageFormat;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.DOMException;
 
+import assistant.connection.ThreadMode;
 import assistant.handler.HandlerThread;
 import assistant.i18n.ResourceBundleHandler;
 import assistant.message.ChatMessage;
 import assistant.message.MessageHandler;
 import assistant.message.MessageType;
-import assistant.message.rooms.arrivals.LoginMessagesRoom;
-import assistant.message.rooms.arrivals.LogoutMessagesRoom;
-import assistant.message.rooms.arrivals.NormalMessagesRoom;
-import assistant.message.rooms.arrivals.WhoisinMessagesRoom;
+import assistant.message.codec.CodecType;
 import assistant.message.rooms.departures.OutgoingMessagesRoom;
 
 /**
  * {@link ClientHandlerThread} is a {@link HandlerThread} with additional tasks.
  * 
+ * Two threads per connection : this one reads from the server, and hands
+ * each message to the {@link ClientConnection} as soon as it is decoded; the
+ * other one writes to the server whatever is waiting in the
+ * {@link OutgoingMessagesRoom}, the login first.
+ * 
+ * A message taken from the room stays with the connection until it has been
+ * sent. If the connection is lost, the next one sends it first, before
+ * anything newer : nothing is sent out of order.
+ * 
  * @author costi.dumitrescu
  */
 public class ClientHandlerThread extends HandlerThread {
@@ -34,157 +39,254 @@ public class ClientHandlerThread extends HandlerThread {
 	 */
 	private Logger logger = Logger.getLogger(ClientHandlerThread.class);
 	
+	/**
+	 * The kind of thread the sending runs on.
+	 */
+	private ThreadMode threadMode;
+	
+	/**
+	 * Told what arrives, and when the connection is lost, to get a new one.
+	 */
+	private ClientConnection clientConnection;
+	
+	/**
+	 * The last message of the default channel got from the server, the one to
+	 * resume from if the connection is lost.
+	 */
+	private volatile ChatMessage lastMessage;
+	
+	/**
+	 * <code>true</code> if this connection replaces a lost one : the server is
+	 * asked to resume, instead of a login.
+	 */
+	private boolean isResuming;
+	
+	/**
+	 * <code>true</code> once the user has asked to log out. The connection
+	 * the server closes then is not lost.
+	 */
+	private volatile boolean isLoggingOut;
+	
+	/**
+	 * <code>true</code> once the connection has been found lost. It is only told once.
+	 */
+	private AtomicBoolean isLost;
+	
+	/**
+	 * The thread that sends the messages.
+	 */
+	private volatile Thread senderThread;
+	
+	/**
+	 * The messages taken from the {@link OutgoingMessagesRoom}, or left by a
+	 * lost connection, and not sent yet, in order. Only touched by the sender.
+	 */
+	private List<ChatMessage> unsentMessages;
+	
 	/**
 	 * Constructor
 	 * 
-	 * @param socket   The {@link Socket} to read and write to.
-	 * @param user	   The user.
+	 * @param socket     	   The {@link Socket} to read and write to.
+	 * @param user	     	   The user.
+	 * @param codecType  	   The codec to log in with.
+	 * @param threadMode 	   The kind of thread the sending runs on.
+	 * @param clientConnection Told what arrives, and when the connection is lost.
 	 */
-	public ClientHandlerThread(Socket socket, String user ) throws IOException {
+	public ClientHandlerThread(Socket socket, String user, CodecType codecType, ThreadMode threadMode,
+			ClientConnection clientConnection) throws IOException {
 		// Delegate to super constructor.
-		super(socket, user);
+		super(socket, user, codecType);
+		this.setName("Listener-From-The-Server-Thread");
+		this.threadMode 	  = threadMode;
+		this.clientConnection = clientConnection;
+		this.isLost 		  = new AtomicBoolean();
+		this.unsentMessages   = new ArrayList<>();
 	}
 	
 	/**
-	 * This thread handles the client. There are actually two threads started by
-	 * this one. One of the two listens for messages from the server, and the
-	 * other sends messages. Both get notified or notifies 3rd party messages
-	 * room, and these rooms notify other threads that handles the information
-	 * presented on the UI.
+	 * This connection replaces a lost one. Instead of logging in, the server
+	 * is asked for the messages said after the last one got. To be called
+	 * before the thread is started.
 	 * 
-	 * @see java.lang.Runnable.run()
+	 * @param lastMessage 	 The last message got over the lost connection, <code>null</code> if none.
+	 * @param unsentMessages The messages the lost connection has not sent, in order. Sent first.
 	 */
-	@Override
-	public void run() {
+	void resumeAfter(ChatMessage lastMessage, List<ChatMessage> unsentMessages) {
+		this.isResuming  = true;
+		this.lastMessage = lastMessage;
+		this.unsentMessages.addAll(unsentMessages);
+	}
+	
+	/**
+	 * Wait for the thread that sends the messages to end, once the connection
+	 * has been lost.
+	 * 
+	 * @param timeoutMillis 		The longest time to wait, in milliseconds.
+	 * 
+	 * @return 						<code>true</code> if it has ended.
+	 * 
+	 * @throws InterruptedException If the waiting thread has been interrupted.
+	 */
+	boolean awaitSender(long timeoutMillis) throws InterruptedException {
+		Thread sender = this.senderThread;
+		if (sender != null) {
+			sender.join(Math.max(1, timeoutMillis));
+			return !sender.isAlive();
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the messages this connection has not sent, in order. To be
+	 * called once the sender has ended.
+	 * 
+	 * @return the messages not sent.
+	 */
+	List<ChatMessage> getUnsentMessages() {
+		return this.unsentMessages;
+	}
+	
+	/**
+	 * Returns the last message of the default channel got from the server.
+	 * 
+	 * @return the last message of the default channel, <code>null</code> if none.
+	 */
+	ChatMessage getLastMessage() {
+		return this.lastMessage;
+	}
+	
+	/**
+	 * The connection is lost : clear rubbish, and let the {@link ClientConnection}
+	 * get a new one. Whichever thread finds it first tells, the others don't.
+	 * 
+	 * @param cause The reason.
+	 */
+	private void connectionLost(Exception cause) {
+		
+		// Already told.
+		if (!this.isLost.compareAndSet(false, true)) {
+			return;
+		}
+		
+		this.logger.error(ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread")
+				+ MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),
+						cause.getLocalizedMessage()));
 		
-		// Let the views to synchronize them self.
+		// The handler thread has terminated.
+		// It has to clear rubbish.
 		try {
-			Thread.sleep(100);
-		} catch (InterruptedException e1) {
-			// Not much we can do.
+			this.stopClient();
+		} catch (IOException ioe) {
+			this.logger.error(ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread")
+					+ MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),
+							ioe.getLocalizedMessage()));
 		}
 		
+		// The sender stops waiting for the room, and takes nothing more.
+		Thread sender = this.senderThread;
+		if (sender != null && sender != Thread.currentThread()) {
+			sender.interrupt();
+		}
+		
+		// Nothing to get back, if the user is leaving.
+		if (!this.isLoggingOut) {
+			this.clientConnection.connectionLost(this);
+		}
+	}
+	
+	/**
+	 * This thread handles the client. It starts the thread that sends the
+	 * messages, then listens for messages from the server itself, and hands
+	 * them over as they come : no room, and no other thread, in between.
+	 * 
+	 * @see java.lang.Runnable.run()
+	 */
+	@Override
+	public void run() {
+		
 		/*
-		 * Listener-From-The-Server-Thread.
+		 * Sender-To-The-Server-Thread.
 		 */
-		new Thread("Listener-From-The-Server-Thread") {
+		this.senderThread = this.threadMode.newThread("Sender-To-The-Server-Thread", new Runnable() {
 			/**
 			 * @see java.lang.Runnable.run()
 			 */
 			@Override
 			public void run() {
-				try {
-					// Loop until the condition is no longer met.
-					while (ClientHandlerThread.this.isConnectionOpened) {
-						ChatMessage chatMessage = (ChatMessage) ClientHandlerThread.this.objectInputStream.readObject();
-						// Ask the {@link MessageHandler} to handle the message.
-						MessageHandler.getInstance().handleMessage(ClientHandlerThread.this, chatMessage);
-					}
-				} catch (DOMException | ClassNotFoundException | IOException | ParserConfigurationException e) {
-					ClientHandlerThread.this.logger.error(
-							ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread")
-									+ MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
-											.getString("ErrorMessage"), e.getLocalizedMessage()));
-					// The handler thread has terminated.
-					// It has to clear rubbish.
-					try {
-						ClientHandlerThread.this.stopClient();
-					} catch (IOException ioe) {
-						ClientHandlerThread.this.logger.error(ResourceBundleHandler.getInstance().getResourceBundle()
-								.getString("ExceptionInClientThread")
-								+ MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
-										.getString("ErrorMessage"), ioe.getLocalizedMessage()));
-					}
-				}
+				ClientHandlerThread.this.sendMessages();
 			};
-		}.start();
+		});
+		this.senderThread.start();
 		
-		/*
-		 * Login executor.
-		 */
-		ExecutorService executorService = Executors.newSingleThreadExecutor();
-		executorService.execute(new Runnable() {
-		    public void run() {
-		    	try {
-					// Send LOGIN message.
-					ChatMessage loginMessage = MessageHandler.getInstance().createMessage(
-							MessageType.LOGIN,
-							ClientHandlerThread.this.user, 
-							ResourceBundleHandler.getInstance().getResourceBundle().getString("USER_IN"));
-					ClientHandlerThread.this.send(loginMessage);
-				} catch (ParserConfigurationException | IOException e) {
-					ClientHandlerThread.this.logger.error(
-							ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread")
-									+ MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
-											.getString("ErrorMessage"), e.getLocalizedMessage()));
-					// The handler thread has terminated.
-					// It has to clear rubbish
-					try {
-						ClientHandlerThread.this.stopClient();
-					} catch (IOException ioe) {
-						ClientHandlerThread.this.logger.error(ResourceBundleHandler.getInstance().getResourceBundle()
-								.getString("ExceptionInClientThread")
-								+ MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
-										.getString("ErrorMessage"), ioe.getLocalizedMessage()));
-					}
+		try {
+			// Loop until the condition is no longer met.
+			while (this.isConnectionOpened) {
+				ChatMessage chatMessage = this.receive();
+				// Where to resume from, if the connection gets lost.
+				if (chatMessage.getMessageType() == MessageType.MESSAGE && chatMessage.getChannel() == null) {
+					this.lastMessage = chatMessage;
 				}
-		    }
-		});
-		executorService.shutdown();
+				// Ask the {@link MessageHandler} to handle the message.
+				MessageHandler.getInstance().handleMessage(this, chatMessage);
+			}
+		} catch (ClassNotFoundException | IOException e) {
+			this.connectionLost(e);
+		}
+	}
+	
+	/**
+	 * Send the LOGIN message, or RESUME if this connection replaces a lost
+	 * one, then what the lost one has not sent, then whatever is added to the
+	 * {@link OutgoingMessagesRoom}, doesn't matter what kind of message that
+	 * is, in the order it has been added.
+	 */
+	private void sendMessages() {
 		
-		/*
-		 * Sender-To-The-Server-Thread.
-		 */
-		new Thread("Sender-To-The-Server-Thread") {
-			/**
-			 * @see java.lang.Runnable.run()
-			 */
-			@Override
-			public void run() {
-				
-				// Wait until a message needs to be sent, doesn't matter what
-				// kind of message that is :
-				// - login message	||
-				// - normal message || => ChatMessage is a wrapper class for all kind of messages.
-				// - logout message ||
-				// - etc.
-				
-				// This thread will rise from the ashes whenever it gets notified by the lockable object.
-				// Whenever someone notifies this thread, it  will send that chat message to the server.
-				
-				while (ClientHandlerThread.this.isConnectionOpened) {
-					// The lockable object to acquire lock on.
-					synchronized (OutgoingMessagesRoom.getInstance()) {
-						try {
-							OutgoingMessagesRoom.getInstance().wait();
-						}  catch (InterruptedException e) {
-							ClientHandlerThread.this.logger.error("Exception in client thread. Error Message : ", e);
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if (OutgoingMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Send all messages to the server.
-							for (ChatMessage chatMessage : OutgoingMessagesRoom.getInstance().getMessages()) {
-								try {
-									ClientHandlerThread.this.send(chatMessage);
-								} catch (IOException e) {
-									ClientHandlerThread.this.logger
-											.error(ResourceBundleHandler.getInstance().getResourceBundle()
-													.getString("ExceptionInClientThread")
-													+ MessageFormat.format(
-															ResourceBundleHandler.getInstance().getResourceBundle()
-																	.getString("ErrorMessage"),
-															e.getLocalizedMessage()));
-									continue;
-								}
-							}
-							// Remove all chat messages.
-							OutgoingMessagesRoom.getInstance().getMessages().clear();
-						}
-					}
+		try {
+			ChatMessage loginMessage;
+			if (this.isResuming) {
+				loginMessage = MessageHandler.getInstance().createResumeMessage(this.user, this.lastMessage);
+			} else {
+				loginMessage = MessageHandler.getInstance().createMessage(MessageType.LOGIN, this.user,
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("USER_IN"));
+			}
+			this.send(loginMessage);
+			
+			// What the lost connection has not sent, first.
+			this.sendUnsentMessages();
+			
+			while (this.isConnectionOpened) {
+				// The messages to be sent so far, in one batch.
+				try {
+					this.unsentMessages.addAll(OutgoingMessagesRoom.getInstance().waitForMessages());
+				} catch (InterruptedException e) {
+					// The connection has been lost meanwhile, or not : the loop tells.
+					continue;
 				}
-			};
-		}.start();
+				this.sendUnsentMessages();
+			}
+		} catch (IOException e) {
+			this.connectionLost(e);
+		}
+	}
+	
+	/**
+	 * Send the messages not sent yet, in order, each one taken out once it has
+	 * been sent. Stops as soon as the connection is closed : the rest is left
+	 * for the next one.
+	 * 
+	 * @throws IOException If a message could not be sent. It is kept, with the ones after it.
+	 */
+	private void sendUnsentMessages() throws IOException {
+		while (this.isConnectionOpened && !this.unsentMessages.isEmpty()) {
+			ChatMessage chatMessage = this.unsentMessages.get(0);
+			// The server closes the connection of a user that logs out.
+			if (chatMessage.getMessageType() == MessageType.LOGOUT) {
+				this.isLoggingOut = true;
+			}
+			this.send(chatMessage);
+			this.unsentMessages.remove(0);
+		}
 	}
 
 	/**
@@ -192,10 +294,7 @@ public class ClientHandlerThread extends HandlerThread {
 	 */
 	public void handleLogin(String user, String message) {
 		// Give a sign a login message has arrived.
-		synchronized (LoginMessagesRoom.getInstance()) {
-			LoginMessagesRoom.getInstance().addMessage(user + " : " + message);
-			LoginMessagesRoom.getInstance().notify();
-		}
+		this.clientConnection.lineArrived(user + " : " + message);
 	}
 
 	/**
@@ -203,20 +302,19 @@ public class ClientHandlerThread extends HandlerThread {
 	 */
 	public void handleWhoIsIn(String user, String message) {
 		// Give a sign a who-is-in message has arrived.
-		synchronized (WhoisinMessagesRoom.getInstance()) {
-			WhoisinMessagesRoom.getInstance().addMessage(message);
-			WhoisinMessagesRoom.getInstance().notify();
-		}
+		this.clientConnection.usersArrived(MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, message));
 	}
 
 	/**
 	 * @see assistant.connection.ConnectionHandler.handleMessage()
 	 */
-	public void handleMessage(String user, String message) {
-		// Give a sign a message has arrived.
-		synchronized (NormalMessagesRoom.getInstance()) {
-			NormalMessagesRoom.getInstance().addMessage(user + " : " + message);
-			NormalMessagesRoom.getInstance().notify();
+	public void handleMessage(String user, String channel, String message) {
+		// Give a sign a message has arrived. The channel is only shown if it is not the default one.
+		if (channel == null) {
+			this.clientConnection.lineArrived(user + " : " + message);
+		} else {
+			this.clientConnection.lineArrived(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("MessageInChannel"), user, channel, message));
 		}
 	}
 
@@ -225,9 +323,59 @@ public class ClientHandlerThread extends HandlerThread {
 	 */
 	public void handleLogout(String user, String message) {
 		// Give a sign a logout message has arrived.
-		synchronized (LogoutMessagesRoom.getInstance()) {
-			LogoutMessagesRoom.getInstance().addMessage(user + " : " + message);
-			LogoutMessagesRoom.getInstance().notify();
-		}
+		this.clientConnection.lineArrived(user + " : " + message);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoin(String, String)
+	 */
+	public void handleJoin(String user, String channel) {
+		// Give a sign a join message has arrived.
+		this.clientConnection.lineArrived(MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("UserJoinedChannel"), user,
+				channel != null ? channel : ChatMessage.DEFAULT_CHANNEL));
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeave(String, String)
+	 */
+	public void handleLeave(String user, String channel) {
+		// Give a sign a leave message has arrived.
+		this.clientConnection.lineArrived(MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("UserLeftChannel"), user,
+				channel != null ? channel : ChatMessage.DEFAULT_CHANNEL));
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleList(String, String)
+	 */
+	public void handleList(String user, String channels) {
+		// Give a sign the list of channels has arrived. The names come separated by comma.
+		String list = channels != null ? channels.replaceAll(",$", "").replace(",", ", ") : "";
+		this.clientConnection.lineArrived(MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("ChannelsList"), list));
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoined(String, String)
+	 */
+	public void handleJoined(String user, String users) {
+		// Give a sign a presence delta has arrived.
+		this.clientConnection.usersArrived(MessageHandler.getInstance().createMessage(MessageType.JOINED, user, users));
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeft(String, String)
+	 */
+	public void handleLeft(String user, String users) {
+		// Give a sign a presence delta has arrived.
+		this.clientConnection.usersArrived(MessageHandler.getInstance().createMessage(MessageType.LEFT, user, users));
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleResume(String, String)
+	 */
+	public void handleResume(String user, String message) {
+		// Nothing, the client is the one asking.
 	}
-}
\ No newline at end of file
+}
@@ -7,6 +7,10 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JButton;
 import javax.swing.JLabel;
@@ -14,34 +18,44 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
-import javax.xml.parsers.ParserConfigurationException;
 
 import assistant.connection.Connection;
+import assistant.connection.ConnectionListener;
 import assistant.i18n.ResourceBundleHandler;
 import assistant.message.ChatMessage;
 import assistant.message.MessageHandler;
 import assistant.message.MessageType;
-import assistant.message.rooms.arrivals.LoginMessagesRoom;
-import assistant.message.rooms.arrivals.LogoutMessagesRoom;
-import assistant.message.rooms.arrivals.NormalMessagesRoom;
-import assistant.message.rooms.arrivals.WhoisinMessagesRoom;
 import assistant.message.rooms.departures.OutgoingMessagesRoom;
 import view.NotifiableView;
 
 /**
  * The main view.
  * 
+ * The thread that reads from the server never touches the components : it
+ * queues what arrives, and the event dispatch thread shows all that has been
+ * queued within a frame in one go, the lines with a single insert into the
+ * document.
+ * 
  * @author costi.dumitrescu
  */
-public class ChatWindow extends Window {
+public class ChatWindow extends Window implements ConnectionListener {
 
 	/**
 	 * Default serial version ID.
 	 */
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * How long the lines are gathered before being shown, in milliseconds. About one frame.
+	 */
+	private static final int RENDER_DELAY_MILLIS = 16;
+	
 	/**
 	 * The chat text area.
 	 */
@@ -64,11 +78,30 @@ public class ChatWindow extends Window {
 	private JButton sendButton;
 	
 	/**
-	 * <code>true</code> as long as the connection is opened.
-	 * 
-	 * TODO : on stop/logout this should go to false.
+	 * The lines not shown yet.
+	 */
+	private ConcurrentLinkedQueue<String> pendingLines;
+	
+	/**
+	 * The changes of users not shown yet, in the order they have arrived : a
+	 * delta only makes sense on top of the list that came before it.
+	 */
+	private ConcurrentLinkedQueue<ChatMessage> pendingUsers;
+	
+	/**
+	 * <code>true</code> while the render timer is on its way.
+	 */
+	private AtomicBoolean isRenderScheduled;
+	
+	/**
+	 * Shows the pending lines, once, on the event dispatch thread.
+	 */
+	private Timer renderTimer;
+	
+	/**
+	 * The number of lines the chat text area keeps.
 	 */
-	private boolean isConnectionOpened;
+	private int chatHistoryLines;
 
 	/**
 	 * Constructor.
@@ -79,20 +112,26 @@ public class ChatWindow extends Window {
 	public ChatWindow(Connection connection, NotifiableView notifiableView) {
 		super(connection, notifiableView);
 		
-		// GO
-		this.isConnectionOpened = true;
-		
-		// login messages listener thread.
-		this.createListenerThreadForIncomingLoginMessages();
-		
-		// messages listener thread.
-		this.createListenerThreadForIncomingMessages();
-		
-		// users listener thread.
-		this.createListenerThreadForIncomingUsers();
+		// What arrives is shown a frame at a time.
+		this.pendingLines 	   = new ConcurrentLinkedQueue<>();
+		this.pendingUsers 	   = new ConcurrentLinkedQueue<>();
+		this.isRenderScheduled = new AtomicBoolean();
+		this.chatHistoryLines  = Math.max(1, notifiableView.getConnectionInfoPack().getChatHistoryLines());
+		this.renderTimer 	   = new Timer(RENDER_DELAY_MILLIS, new ActionListener() {
+			/**
+			 * @see java.awt.event.ActionListener.actionPerformed(ActionEvent)
+			 */
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				ChatWindow.this.renderPending();
+			}
+		});
+		this.renderTimer.setRepeats(false);
+		// Started again while it is still rendering, it must fire again.
+		this.renderTimer.setCoalesce(false);
 		
-		// logout messages listener thread.
-		this.createListenerThreadForIncomingLogoutMessages();
+		// GO : whatever has arrived so far, then the rest as it comes.
+		this.connection.setConnectionListener(this);
 	}
 
 	/**
@@ -214,125 +253,119 @@ public class ChatWindow extends Window {
 	}
 	
 	/**
-	 * This thread listens on the {@link LoginMessagesRoom} list and update the
-	 * chat text area.
+	 * Queue a line for the chat text area.
+	 * 
+	 * @see assistant.connection.ConnectionListener.lineArrived(String)
 	 */
-	private void createListenerThreadForIncomingLoginMessages() {
-		// create a new thread to handle this.
-		new Thread("Listener-Thread-For-Login-Messages") {
-			/**
-			 * @see java.lang.Runnable.run()
-			 */
-			@Override
-			public void run() {
-				// forever.
-				while (ChatWindow.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (LoginMessagesRoom.getInstance()) {
-						try {
-							LoginMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(LoginMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							for (String message : LoginMessagesRoom.getInstance().getMessages()) {
-								// Append message in the chat text area.
-								ChatWindow.this.chatTextArea.append(message + "\n");
-								// Put the caret at the end.
-								ChatWindow.this.chatTextArea.setCaretPosition(ChatWindow.this.chatTextArea.getDocument().getLength());
-							}
-							// Remove all messages.
-							LoginMessagesRoom.getInstance().getMessages().clear();
-						}
-					}
-				}
-			};
-		}.start();
+	@Override
+	public void lineArrived(String line) {
+		this.pendingLines.add(line);
+		this.scheduleRender();
 	}
 	
 	/**
-	 * This thread listens on the {@link NormalMessagesRoom} list and update the
-	 * chat text area.
+	 * Queue a change of users for the users table.
+	 * 
+	 * @see assistant.connection.ConnectionListener.usersArrived(ChatMessage)
 	 */
-	private void createListenerThreadForIncomingMessages() {
-		// create a new thread to handle this.
-		new Thread("Listener-Thread-For-Messages") {
-			/**
-			 * @see java.lang.Runnable.run()
-			 */
-			@Override
-			public void run() {
-				// forever.
-				while (ChatWindow.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (NormalMessagesRoom.getInstance()) {
-						try {
-							NormalMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(NormalMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							for (String message : NormalMessagesRoom.getInstance().getMessages()) {
-								// Append message in the chat text area.
-								ChatWindow.this.chatTextArea.append(message + "\n");
-								// Put the caret at the end.
-								ChatWindow.this.chatTextArea.setCaretPosition(ChatWindow.this.chatTextArea.getDocument().getLength());
-							}
-							// Remove all messages.
-							NormalMessagesRoom.getInstance().getMessages().clear();
-						}
-					}
-				}
-			};
-		}.start();
+	@Override
+	public void usersArrived(ChatMessage message) {
+		this.pendingUsers.add(message);
+		this.scheduleRender();
 	}
 	
 	/**
-	 * This thread listens on the {@link WhoisinMessagesRoom} list and update the
-	 * users table.
+	 * The first thing queued since the last frame starts the render timer;
+	 * the others just wait for it.
 	 */
-	private void createListenerThreadForIncomingUsers() {
-		// create a new thread to handle this.
-		new Thread("Listener-Thread-For-Users") {
-			/**
-			 * @see java.lang.Runnable.run()
-			 */
-			@Override
-			public void run() {
-				// forever.
-				while (ChatWindow.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (WhoisinMessagesRoom.getInstance()) {
-						try {
-							WhoisinMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(WhoisinMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							// A message represents the list of users, separated by comma.
-							for (String message : WhoisinMessagesRoom.getInstance().getMessages()) {
-								ChatWindow.this.removeAllUsers();
-								String[] users = message.split(",");
-								for (String user : users) {
-									ChatWindow.this.appendUser(user);
-								}
-							}
-							// Remove all messages.
-							WhoisinMessagesRoom.getInstance().getMessages().clear();
-						}
-					}
+	private void scheduleRender() {
+		if (this.isRenderScheduled.compareAndSet(false, true)) {
+			this.renderTimer.start();
+		}
+	}
+	
+	/**
+	 * Show what has been queued : the changes of users, then the lines.
+	 * 
+	 * Called only on the event dispatch thread.
+	 */
+	private void renderPending() {
+		// What is queued from now on needs another frame.
+		this.isRenderScheduled.set(false);
+		
+		ChatMessage message;
+		while ((message = this.pendingUsers.poll()) != null) {
+			this.renderUsers(message);
+		}
+		this.renderPendingLines();
+	}
+	
+	/**
+	 * Apply a change of users to the users table. A whole list of users
+	 * rebuilds the table; a presence delta only adds or removes the users it
+	 * names. The users are separated by comma.
+	 * 
+	 * @param message The change of users.
+	 */
+	private void renderUsers(ChatMessage message) {
+		String[] users = message.getBody() != null ? message.getBody().split(",") : new String[0];
+		switch (message.getMessageType()) {
+			case WHOISIN:
+				this.removeAllUsers();
+				for (String user : users) {
+					this.appendUser(user);
+				}
+				break;
+			case JOINED:
+				for (String user : users) {
+					this.appendUser(user);
 				}
-			};
-		}.start();
+				break;
+			case LEFT:
+				for (String user : users) {
+					this.removeUser(user);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+	
+	/**
+	 * Show the pending lines, with a single insert into the document, then
+	 * drop the oldest lines beyond the ones kept, and put the caret at the end.
+	 */
+	private void renderPendingLines() {
+		List<String> lines = new ArrayList<>();
+		String line;
+		while ((line = this.pendingLines.poll()) != null) {
+			lines.add(line);
+		}
+		if (lines.isEmpty()) {
+			return;
+		}
+		
+		// The lines that would be dropped right away are not even inserted.
+		StringBuilder text = new StringBuilder();
+		for (String pendingLine : lines.subList(Math.max(0, lines.size() - this.chatHistoryLines), lines.size())) {
+			text.append(pendingLine).append('\n');
+		}
+		
+		Document document = this.chatTextArea.getDocument();
+		try {
+			document.insertString(document.getLength(), text.toString(), null);
+			
+			// The text always ends with a new line, so the last line is empty.
+			Element root = document.getDefaultRootElement();
+			int extraLines = root.getElementCount() - 1 - this.chatHistoryLines;
+			if (extraLines > 0) {
+				document.remove(0, root.getElement(extraLines - 1).getEndOffset());
+			}
+		} catch (BadLocationException e) {
+			// Not possible, the offsets come from the document itself.
+		}
+		// Put the caret at the end.
+		this.chatTextArea.setCaretPosition(document.getLength());
 	}
 	
 	/**
@@ -347,14 +380,43 @@ public class ChatWindow extends Window {
 		}
 	}
 	
+	/**
+	 * Remove a user-name from the table of users.
+	 * 
+	 * @param username The user-name to be removed.
+	 */
+	private void removeUser(String username) {
+		int row = this.findUser(username);
+		if (row >= 0) {
+			((DefaultTableModel) this.usersTable.getModel()).removeRow(row);
+		}
+	}
+	
+	/**
+	 * Returns the row of a user-name in the table of users.
+	 * 
+	 * @param username The user-name.
+	 * 
+	 * @return 		   The row, or <code>-1</code> if the user-name is not there.
+	 */
+	private int findUser(String username) {
+		DefaultTableModel tableModel = (DefaultTableModel) this.usersTable.getModel();
+		for (int i = 0; i < tableModel.getRowCount(); i++) {
+			if (username.equals(tableModel.getValueAt(i, 0))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	/**
 	 * Add another user-name in the table of users.
 	 * 
 	 * @param username The user-name to be added.
 	 */
 	private void appendUser(String username) {
-		// Add this username only if it is not null or empty.
-		if (username != null && !("".equals(username))) {
+		// Add this username only if it is not null or empty, and not already there.
+		if (username != null && !("".equals(username)) && this.findUser(username) < 0) {
 			// Get the model.
 			DefaultTableModel usersTableModel = (DefaultTableModel) this.usersTable.getModel();
 			// Append the user-name.
@@ -362,46 +424,6 @@ public class ChatWindow extends Window {
 		}
 	}
 	
-	/**
-	 * This thread listens on the {@link LogoutMessagesRoom} list and update the
-	 * chat text area.
-	 */
-	private void createListenerThreadForIncomingLogoutMessages() {
-		// create a new thread to handle this.
-		new Thread() {
-			/**
-			 * @see java.lang.Runnable.run()
-			 */
-			@Override
-			public void run() {
-				// forever.
-				while (ChatWindow.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (LogoutMessagesRoom.getInstance()) {
-						try {
-							LogoutMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(LogoutMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							for (String message : LogoutMessagesRoom.getInstance().getMessages()) {
-								// Append message in the chat text area.
-								ChatWindow.this.chatTextArea.append(message + "\n");
-								// Put the caret at the end.
-								ChatWindow.this.chatTextArea.setCaretPosition(ChatWindow.this.chatTextArea.getDocument().getLength());
-							}
-							// Remove all messages.
-							LogoutMessagesRoom.getInstance().getMessages().clear();
-						}
-					}
-				}
-			};
-		}.start();
-	}
-	
 	/**
 	 * To be done when the 'Send' button was pressed. This method is also called
 	 * when ENTER is pressed inside input text area. If there is no text in the
@@ -414,34 +436,48 @@ public class ChatWindow extends Window {
 	 */
 	private void doSendNormalMessage() {
 		// The message to be sent, a little bit modified.
-		final String message = this.inputTextArea.getText().replace("\n", " ").replace("\r", " ").trim();
+		String message = this.inputTextArea.getText().replace("\n", " ").replace("\r", " ").trim();
 		// Check to see if the input text area is empty
 		if (!("".equals(message))) {
-			// create a new thread to handle this.
-			new Thread("Do-Send-Normal-Message-Thread") {
-				/**
-				 * @see java.lang.Runnable.run()
-				 */
-				@Override
-				public void run() {
-					try {
-						String user = ChatWindow.this.notifiableView.getConnectionInfoPack().getUser();
-						// Create the {@link ChatMessage}.
-						ChatMessage chatMessage = MessageHandler.getInstance().createMessage(MessageType.MESSAGE, user, message);
-						// The chosen lockable object
-						synchronized (OutgoingMessagesRoom.getInstance()) {
-							// Add the message
-							OutgoingMessagesRoom.getInstance().getMessages().add(chatMessage);
-							// Notify the waiter
-							OutgoingMessagesRoom.getInstance().notify();
-						}
-					} catch (ParserConfigurationException e) {
-						// Not much we can do.
-					}
-				}
-			}.start();
+			String user = this.notifiableView.getConnectionInfoPack().getUser();
+			// Add the message, the sender will pick it up. Never blocks.
+			OutgoingMessagesRoom.getInstance().addMessage(this.createOutgoingMessage(user, message));
 			// After the message is sent, clear the input text area.
 			this.inputTextArea.setText(null);
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Returns the {@link ChatMessage} for what the user has typed. A few
+	 * commands deal with the channels :
+	 * 
+	 * 	/join channel 		  - join a channel, or make it.
+	 * 	/leave channel 		  - leave a channel.
+	 * 	/list 				  - list the channels.
+	 * 	/msg channel message  - say something in a channel.
+	 * 
+	 * Anything else is said in the default channel.
+	 * 
+	 * @param user 	  The user.
+	 * @param message What the user has typed.
+	 * 
+	 * @return 		  The {@link ChatMessage}.
+	 */
+	private ChatMessage createOutgoingMessage(String user, String message) {
+		// command, channel, message
+		String[] splited = message.split("\\s+", 3);
+		if ("/join".equals(splited[0]) && splited.length > 1) {
+			return MessageHandler.getInstance().createChannelMessage(MessageType.JOIN, user, splited[1], null);
+		}
+		if ("/leave".equals(splited[0]) && splited.length > 1) {
+			return MessageHandler.getInstance().createChannelMessage(MessageType.LEAVE, user, splited[1], null);
+		}
+		if ("/list".equals(splited[0])) {
+			return MessageHandler.getInstance().createMessage(MessageType.LIST, user, null);
+		}
+		if ("/msg".equals(splited[0]) && splited.length > 2) {
+			return MessageHandler.getInstance().createChannelMessage(MessageType.MESSAGE, user, splited[1], splited[2]);
+		}
+		return MessageHandler.getInstance().createMessage(MessageType.MESSAGE, user, message);
+	}
+}
@@ -0,0 +1,280 @@
+package loadgenerator;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import assistant.connection.ThreadMode;
+import assistant.connection.TransportMode;
+import assistant.i18n.ResourceBundleHandler;
+import assistant.message.codec.CodecType;
+
+/**
+ * {@link HeapSoak}. Sends millions of messages through a few long lived
+ * connections, and watches the heap : what a connection holds must not grow
+ * with what it has carried. The server is started in the same JVM, so both
+ * ends of every connection are weighed.
+ *
+ * The settings are given as <code>name=value</code> arguments :
+ * <ul>
+ * <li>clients : the number of clients, 2 by default. Each one sends in turn,
+ * and receives what the others send.</li>
+ * <li>messages : the messages sent, all clients together, 2000000 by default.</li>
+ * <li>messageSize : the size of the body of the messages, 64 by default.</li>
+ * <li>samples : how many times the heap is weighed, 10 by default. The first
+ * weighing is the reference, once everything is loaded and warm.</li>
+ * <li>maxGrowthMegabytes : how much the heap may grow after the first weighing, 16 by default.</li>
+ * <li>codec : the codec the clients log in with, OBJECT_STREAM by default : the
+ * clients talk through a continuous object stream, as the older clients did.</li>
+ * <li>transport : the transport of the server, BLOCKING by default : only the
+ * blocking one understands the object stream.</li>
+ * <li>port, threadMode : as for the {@link LoadGenerator}.</li>
+ * </ul>
+ *
+ * The messages are sent as fast as they are delivered, a window ahead at most :
+ * the queues of the server stay short, and whatever grows is what the
+ * connections keep.
+ *
+ * @author costi.dumitrescu
+ */
+public class HeapSoak {
+
+	/**
+	 * Logger for logging.
+	 */
+	private static Logger logger = Logger.getLogger(HeapSoak.class);
+
+	/**
+	 * The setting of the codec which stands for the continuous object stream.
+	 */
+	private static final String OBJECT_STREAM = "OBJECT_STREAM";
+
+	/**
+	 * The most messages sent and not delivered yet.
+	 */
+	private static final int WINDOW = 1000;
+
+	/**
+	 * The bytes in a megabyte.
+	 */
+	private static final double MEGABYTE = 1024 * 1024;
+
+	/**
+	 * The settings.
+	 */
+	private final Properties settings;
+
+	/**
+	 * Starts the server and prints the lines.
+	 */
+	private final LoadGenerator loadGenerator;
+
+	/**
+	 * What the clients have seen.
+	 */
+	private final LoadStatistics statistics;
+
+	/**
+	 * The clients.
+	 */
+	private final List<LoadClient> clients;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param settings The settings.
+	 */
+	public HeapSoak(Properties settings) {
+		if (!settings.containsKey("transport")) {
+			settings.setProperty("transport", TransportMode.BLOCKING.name());
+		}
+		this.settings 	   = settings;
+		this.loadGenerator = new LoadGenerator(settings);
+		this.statistics    = new LoadStatistics();
+		this.clients 	   = new ArrayList<>();
+	}
+
+	/**
+	 * Main method. Exits with 1 if the heap has grown more than allowed.
+	 *
+	 * @param args The settings, as <code>name=value</code>.
+	 */
+	public static void main(String[] args) {
+
+		Properties settings = new Properties();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator > 0) {
+				settings.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+			}
+		}
+
+		boolean isFlat = false;
+		try {
+			isFlat = new HeapSoak(settings).run();
+		} catch (IOException | InterruptedException e) {
+			logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"), e.getLocalizedMessage()), e);
+		}
+
+		// The clients and the embedded server don't stop on their own.
+		System.exit(isFlat ? 0 : 1);
+	}
+
+	/**
+	 * Connect the clients, send the messages while weighing the heap, and report.
+	 *
+	 * @return 						<code>true</code> if the heap has stayed flat.
+	 *
+	 * @throws IOException 			If the server could not be reached.
+	 * @throws InterruptedException If the soak has been interrupted.
+	 */
+	public boolean run() throws IOException, InterruptedException {
+
+		int port = this.getInt("port", 1500);
+		this.loadGenerator.startEmbeddedServer(port);
+		this.connectClients(port);
+
+		long messages = Math.max(1, this.getLong("messages", 2000000));
+		int samples = Math.max(2, this.getInt("samples", 10));
+		long maxGrowthMegabytes = this.getLong("maxGrowthMegabytes", 16);
+
+		char[] padding = new char[Math.max(0, this.getInt("messageSize", 64) - 24)];
+		Arrays.fill(padding, 'x');
+		String paddingText = new String(padding);
+
+		long recipients = this.clients.size() - 1;
+		double firstMegabytes = 0;
+		double lastMegabytes = 0;
+		for (long sent = 0; sent < messages;) {
+
+			// Send up to the next weighing.
+			long nextSample = Math.min(messages, sent + messages / samples + 1);
+			for (; sent < nextSample; sent++) {
+				// A window ahead at most.
+				while (this.statistics.getReceivedMessages().sum() < (sent - WINDOW) * recipients) {
+					Thread.sleep(1);
+				}
+				this.clients.get((int) (sent % this.clients.size())).sendMessage(System.nanoTime(), paddingText);
+			}
+
+			// Weigh what is still referenced, once everything sent has arrived.
+			this.waitForDelivery(sent * recipients);
+			lastMegabytes = usedHeap() / MEGABYTE;
+			if (firstMegabytes == 0) {
+				firstMegabytes = lastMegabytes;
+			}
+			this.loadGenerator.print("SoakSample", this.statistics.getSentMessages().sum(),
+					this.statistics.getReceivedMessages().sum(), lastMegabytes);
+		}
+
+		for (LoadClient client : this.clients) {
+			client.stopClient();
+		}
+
+		// Report.
+		double growthMegabytes = lastMegabytes - firstMegabytes;
+		if (growthMegabytes > maxGrowthMegabytes) {
+			this.loadGenerator.print("SoakGrowing", growthMegabytes, messages, maxGrowthMegabytes);
+			return false;
+		}
+		this.loadGenerator.print("SoakFlat", firstMegabytes, lastMegabytes, messages);
+		return true;
+	}
+
+	/**
+	 * Connect and log in the clients.
+	 *
+	 * @param port 					The server port.
+	 *
+	 * @throws IOException 			If a client could not connect.
+	 * @throws InterruptedException If interrupted while waiting for the logins.
+	 */
+	private void connectClients(int port) throws IOException, InterruptedException {
+
+		int clientCount = Math.max(2, this.getInt("clients", 2));
+		String codec = this.settings.getProperty("codec", OBJECT_STREAM);
+		CodecType codecType = OBJECT_STREAM.equals(codec) ? null : CodecType.valueOf(codec);
+		ThreadMode threadMode = ThreadMode.valueOf(this.settings.getProperty("threadMode", ThreadMode.PLATFORM.name()));
+
+		this.loadGenerator.print("LoadConnecting", clientCount, "127.0.0.1", String.valueOf(port), 1);
+
+		long start = System.nanoTime();
+		CountDownLatch ready = new CountDownLatch(clientCount);
+		for (int i = 0; i < clientCount; i++) {
+			LoadClient client = new LoadClient(new Socket("127.0.0.1", port), "soak-user-" + i, codecType, threadMode,
+					null, this.statistics, ready);
+			this.clients.add(client);
+			client.start();
+		}
+
+		ready.await(30, TimeUnit.SECONDS);
+		this.loadGenerator.print("LoadClientsReady", clientCount - ready.getCount(), clientCount,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Wait until the messages expected have arrived, or until they stop arriving.
+	 *
+	 * @param expectedMessages 		The messages the clients should have received.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private void waitForDelivery(long expectedMessages) throws InterruptedException {
+		long received = -1;
+		while (this.statistics.getReceivedMessages().sum() < expectedMessages && this.statistics.getReceivedMessages().sum() != received) {
+			received = this.statistics.getReceivedMessages().sum();
+			Thread.sleep(100);
+		}
+	}
+
+	/**
+	 * Returns the heap still referenced, after a few full collections.
+	 *
+	 * @return 						The bytes in use.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the collections.
+	 */
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns a setting as an int.
+	 *
+	 * @param name 		   The name of the setting.
+	 * @param defaultValue The value if it is not set.
+	 *
+	 * @return 			   The value.
+	 */
+	private int getInt(String name, int defaultValue) {
+		String value = this.settings.getProperty(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * Returns a setting as a long.
+	 *
+	 * @param name 		   The name of the setting.
+	 * @param defaultValue The value if it is not set.
+	 *
+	 * @return 			   The value.
+	 */
+	private long getLong(String name, long defaultValue) {
+		String value = this.settings.getProperty(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+}
@@ -0,0 +1,228 @@
+package loadgenerator;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import assistant.connection.ThreadMode;
+import assistant.handler.HandlerThread;
+import assistant.message.ChatMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+import assistant.message.codec.CodecType;
+
+/**
+ * {@link LoadClient}. A chat client without a window : it logs in, gets in its
+ * channel, sends what it is told to, and times what the others send. It
+ * talks the protocol of the real client, frames included, or the object
+ * stream of the older clients.
+ *
+ * @author costi.dumitrescu
+ */
+public class LoadClient extends HandlerThread {
+
+	/**
+	 * Starts the body of the messages sent by the load generator, followed by the time they were due.
+	 */
+	private static final String MARKER = "load:";
+
+	/**
+	 * The channel the client talks in, <code>null</code> for the default one.
+	 */
+	private final String channel;
+
+	/**
+	 * Where the latencies and the counts go.
+	 */
+	private final LoadStatistics statistics;
+
+	/**
+	 * Counted down once the client is logged in and in its channel.
+	 */
+	private final CountDownLatch ready;
+
+	/**
+	 * Reads the messages of the server. Runs {@link #run()}.
+	 */
+	private final Thread readerThread;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param socket 	 The socket to read and write to.
+	 * @param user 		 The user.
+	 * @param codecType  The codec to log in with, <code>null</code> to talk through a continuous
+	 * 					 object stream, as the clients did before the frames.
+	 * @param threadMode The kind of thread the reading runs on.
+	 * @param channel 	 The channel to talk in, <code>null</code> for the default one.
+	 * @param statistics Where the latencies and the counts go.
+	 * @param ready 	 Counted down once the client is logged in and in its channel.
+	 *
+	 * @throws IOException If the streams could not be created.
+	 */
+	public LoadClient(Socket socket, String user, CodecType codecType, ThreadMode threadMode, String channel,
+			LoadStatistics statistics, CountDownLatch ready) throws IOException {
+		// Delegate to super constructor.
+		super(socket, socket.getInputStream(), user, codecType != null, codecType, DEFAULT_BUFFER_POOL);
+		this.channel 	  = channel;
+		this.statistics   = statistics;
+		this.ready 		  = ready;
+		this.readerThread = threadMode.newThread("Load-Client-" + user, this);
+	}
+
+	/**
+	 * Start the reading, then log in.
+	 *
+	 * @see java.lang.Thread.start()
+	 */
+	@Override
+	public synchronized void start() {
+		this.readerThread.start();
+		try {
+			this.send(MessageHandler.getInstance().createMessage(MessageType.LOGIN, this.user, "in"));
+		} catch (IOException e) {
+			this.statistics.getSendErrors().increment();
+		}
+	}
+
+	/**
+	 * Send a message, in the channel of the client.
+	 *
+	 * @param dueNanos The time the message was due, as of {@link System#nanoTime()}. The latency
+	 * 				   is measured from then, not from when the sending could actually happen.
+	 * @param padding  Added to the body, to get the size wanted.
+	 */
+	public void sendMessage(long dueNanos, String padding) {
+		String body = MARKER + dueNanos + ":" + padding;
+		ChatMessage message = this.channel == null
+				? MessageHandler.getInstance().createMessage(MessageType.MESSAGE, this.user, body)
+				: MessageHandler.getInstance().createChannelMessage(MessageType.MESSAGE, this.user, this.channel, body);
+		try {
+			this.send(message);
+			this.statistics.getSentMessages().increment();
+		} catch (IOException e) {
+			this.statistics.getSendErrors().increment();
+		}
+	}
+
+	/**
+	 * @see java.lang.Runnable.run()
+	 */
+	@Override
+	public void run() {
+		try {
+			// Loop until the condition is no longer met.
+			while (this.isConnectionOpened) {
+				ChatMessage message = this.receive();
+				// Ask the {@link MessageHandler} to handle the message.
+				MessageHandler.getInstance().handleMessage(this, message);
+			}
+		} catch (ClassNotFoundException | IOException e) {
+			// Stopped by the server, not by the load generator.
+			if (this.isConnectionOpened) {
+				this.statistics.getDisconnections().increment();
+				this.isConnectionOpened = false;
+			}
+		}
+	}
+
+	/**
+	 * Once its own login is seen, the client gets in its channel.
+	 *
+	 * @see assistant.handler.Handler.handleLogin(String, String)
+	 */
+	@Override
+	public void handleLogin(String user, String message) throws IOException {
+		if (!this.user.equals(user)) {
+			return;
+		}
+		if (this.channel == null) {
+			this.ready.countDown();
+		} else {
+			this.send(MessageHandler.getInstance().createChannelMessage(MessageType.JOIN, this.user, this.channel, null));
+		}
+	}
+
+	/**
+	 * Time the messages of the other clients.
+	 *
+	 * @see assistant.handler.Handler.handleMessage(String, String, String)
+	 */
+	@Override
+	public void handleMessage(String user, String channel, String message) {
+		if (this.user.equals(user) || message == null || !message.startsWith(MARKER)) {
+			return;
+		}
+		long receivedNanos = System.nanoTime();
+		int end = message.indexOf(':', MARKER.length());
+		long dueNanos = Long.parseLong(message.substring(MARKER.length(), end < 0 ? message.length() : end));
+		this.statistics.getLatencies().record(receivedNanos - dueNanos);
+		this.statistics.getReceivedMessages().increment();
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoin(String, String)
+	 */
+	@Override
+	public void handleJoin(String user, String channel) {
+		if (this.user.equals(user)) {
+			this.ready.countDown();
+		}
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleWhoIsIn(String, String)
+	 */
+	@Override
+	public void handleWhoIsIn(String user, String message) {
+		// Not timed.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLogout(String, String)
+	 */
+	@Override
+	public void handleLogout(String user, String message) {
+		// Not timed.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeave(String, String)
+	 */
+	@Override
+	public void handleLeave(String user, String channel) {
+		// Not timed.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleList(String, String)
+	 */
+	@Override
+	public void handleList(String user, String channels) {
+		// Not timed.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoined(String, String)
+	 */
+	@Override
+	public void handleJoined(String user, String users) {
+		// Not timed.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeft(String, String)
+	 */
+	@Override
+	public void handleLeft(String user, String users) {
+		// Not timed.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleResume(String, String)
+	 */
+	@Override
+	public void handleResume(String user, String message) {
+		// Never sent by the server.
+	}
+}
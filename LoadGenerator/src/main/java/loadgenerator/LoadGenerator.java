@@ -0,0 +1,375 @@
+package loadgenerator;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import assistant.connection.ConnectionInfoPack;
+import assistant.connection.ThreadMode;
+import assistant.connection.TransportMode;
+import assistant.i18n.ResourceBundleHandler;
+import assistant.metrics.Histogram;
+import assistant.message.codec.CodecType;
+import server.connection.ServerConnection;
+
+/**
+ * {@link LoadGenerator}. Simulates thousands of chat clients against a server
+ * on the loopback, and tells how long the messages take from one client to the
+ * others. The server is started in the same JVM by default.
+ *
+ * The settings are given as <code>name=value</code> arguments :
+ * <ul>
+ * <li>clients : the number of clients, 1000 by default.</li>
+ * <li>senders : how many of them send, all of them by default. The fewer the
+ * senders, the more the traffic fans in from a few users.</li>
+ * <li>channels : the number of channels the clients are spread in, round-robin.
+ * 1 by default : everybody in the default channel, each message goes to all.</li>
+ * <li>rate : the messages sent per second, all senders together, 1000 by default.</li>
+ * <li>messageSize : the size of the body of the messages, 64 by default.</li>
+ * <li>warmupSeconds, durationSeconds : 5 and 30 by default.</li>
+ * <li>host, port : 127.0.0.1 and 1500 by default.</li>
+ * <li>codec : the codec the clients log in with, BINARY by default.</li>
+ * <li>threadMode : the kind of threads the clients read on, PLATFORM by default.</li>
+ * <li>embeddedServer : start the server in this JVM, true by default.</li>
+ * <li>transport : the transport of the embedded server, SELECTOR by default.</li>
+ * <li>metricsPort : the port the embedded server serves its metrics on, none by default.</li>
+ * </ul>
+ *
+ * The messages are sent at a steady rate, and each one carries the time it was
+ * due : a server that stalls the senders shows in the latencies, instead of
+ * hiding behind messages that were never sent.
+ *
+ * @author costi.dumitrescu
+ */
+public class LoadGenerator {
+
+	/**
+	 * Logger for logging.
+	 */
+	private static Logger logger = Logger.getLogger(LoadGenerator.class);
+
+	/**
+	 * The percentiles reported.
+	 */
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	/**
+	 * How long the messages still on their way are waited for, once the sending is over.
+	 */
+	private static final long DRAIN_MILLIS = 5000;
+
+	/**
+	 * The settings.
+	 */
+	private final Properties settings;
+
+	/**
+	 * What the clients have seen.
+	 */
+	private final LoadStatistics statistics;
+
+	/**
+	 * The clients.
+	 */
+	private final List<LoadClient> clients;
+
+	/**
+	 * The number of clients in each channel.
+	 */
+	private int[] channelSizes;
+
+	/**
+	 * The messages the other clients should receive, for the messages sent so far.
+	 */
+	private long expectedMessages;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param settings The settings.
+	 */
+	public LoadGenerator(Properties settings) {
+		this.settings 	= settings;
+		this.statistics = new LoadStatistics();
+		this.clients 	= new ArrayList<>();
+	}
+
+	/**
+	 * Main method.
+	 *
+	 * @param args The settings, as <code>name=value</code>.
+	 */
+	public static void main(String[] args) {
+
+		Properties settings = new Properties();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator > 0) {
+				settings.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+			}
+		}
+
+		try {
+			new LoadGenerator(settings).run();
+		} catch (IOException | InterruptedException e) {
+			logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"), e.getLocalizedMessage()), e);
+		}
+
+		// The clients and the embedded server don't stop on their own.
+		System.exit(0);
+	}
+
+	/**
+	 * Connect the clients, send for the warm-up and then for the duration, and report.
+	 *
+	 * @throws IOException 			If the server could not be reached.
+	 * @throws InterruptedException If the load generator has been interrupted.
+	 */
+	public void run() throws IOException, InterruptedException {
+
+		String host = this.settings.getProperty("host", "127.0.0.1");
+		int port = this.getInt("port", 1500);
+
+		if (Boolean.parseBoolean(this.settings.getProperty("embeddedServer", "true"))) {
+			this.startEmbeddedServer(port);
+		}
+
+		this.connectClients(host, port);
+
+		// The first messages pay for the classes loaded and the code compiled.
+		this.send(TimeUnit.SECONDS.toNanos(this.getInt("warmupSeconds", 5)));
+		this.waitForDrain();
+		this.statistics.reset();
+		this.expectedMessages = 0;
+
+		long start = System.nanoTime();
+		this.send(TimeUnit.SECONDS.toNanos(this.getInt("durationSeconds", 30)));
+		long sendingNanos = System.nanoTime() - start;
+		this.waitForDrain();
+
+		this.report(sendingNanos);
+
+		for (LoadClient client : this.clients) {
+			client.stopClient();
+		}
+	}
+
+	/**
+	 * Start a server in this JVM, and wait until it accepts clients.
+	 *
+	 * @param port 					The port to listen to.
+	 *
+	 * @throws InterruptedException If interrupted while waiting for the server.
+	 */
+	void startEmbeddedServer(int port) throws InterruptedException {
+
+		final ServerConnection serverConnection = new ServerConnection();
+		final ConnectionInfoPack connectionInfoPack = new ConnectionInfoPack.ConnectionInfoPackBuilder()
+				.withTransportMode(TransportMode.valueOf(this.settings.getProperty("transport", TransportMode.SELECTOR.name())))
+				.withThreadMode(ThreadMode.valueOf(this.settings.getProperty("threadMode", ThreadMode.PLATFORM.name())))
+				.withMetricsPort(this.getInt("metricsPort", 0))
+				.build(null, null, port);
+
+		Thread serverThread = new Thread("Embedded-Server") {
+			/**
+			 * @see java.lang.Runnable.run()
+			 */
+			@Override
+			public void run() {
+				try {
+					serverConnection.start(connectionInfoPack);
+				} catch (IOException | InterruptedException e) {
+					logger.error(MessageFormat.format(
+							ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"), e.getLocalizedMessage()), e);
+				}
+			}
+		};
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		// Wait until the port is taken.
+		while (true) {
+			try {
+				new Socket("127.0.0.1", port).close();
+				break;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+
+		this.print("LoadEmbeddedServer", String.valueOf(port), connectionInfoPack.getTransportMode());
+	}
+
+	/**
+	 * Connect and log in the clients, spread round-robin in the channels.
+	 *
+	 * @param host 					The server address.
+	 * @param port 					The server port.
+	 *
+	 * @throws IOException 			If a client could not connect.
+	 * @throws InterruptedException If interrupted while waiting for the logins.
+	 */
+	private void connectClients(String host, int port) throws IOException, InterruptedException {
+
+		int clientCount = Math.max(2, this.getInt("clients", 1000));
+		int channelCount = Math.max(1, this.getInt("channels", 1));
+		CodecType codecType = CodecType.valueOf(this.settings.getProperty("codec", CodecType.BINARY.name()));
+		ThreadMode threadMode = ThreadMode.valueOf(this.settings.getProperty("threadMode", ThreadMode.PLATFORM.name()));
+
+		this.print("LoadConnecting", clientCount, host, String.valueOf(port), channelCount);
+
+		long start = System.nanoTime();
+		CountDownLatch ready = new CountDownLatch(clientCount);
+		this.channelSizes = new int[channelCount];
+		for (int i = 0; i < clientCount; i++) {
+			// One channel only : the default one.
+			String channel = channelCount == 1 ? null : "load" + (i % channelCount);
+			this.channelSizes[i % channelCount]++;
+			LoadClient client = new LoadClient(new Socket(host, port), "load-user-" + i, codecType, threadMode,
+					channel, this.statistics, ready);
+			this.clients.add(client);
+			client.start();
+		}
+
+		// The logins are told to everybody, it takes a while with thousands of clients.
+		ready.await(Math.max(30, clientCount / 100), TimeUnit.SECONDS);
+		this.print("LoadClientsReady", clientCount - ready.getCount(), clientCount,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * Send the messages at the steady rate, the senders taking turns.
+	 *
+	 * @param durationNanos How long to send.
+	 */
+	private void send(long durationNanos) {
+
+		int senderCount = Math.min(this.clients.size(), Math.max(1, this.getInt("senders", this.clients.size())));
+		double intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(0.001, this.getDouble("rate", 1000));
+
+		char[] padding = new char[Math.max(0, this.getInt("messageSize", 64) - 24)];
+		Arrays.fill(padding, 'x');
+		String paddingText = new String(padding);
+
+		long start = System.nanoTime();
+		long nextProgress = start + TimeUnit.SECONDS.toNanos(1);
+		long sent = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now - start >= durationNanos) {
+				return;
+			}
+			// Catch up with the messages due so far.
+			long dueNanos = start + (long) (sent * intervalNanos);
+			while (dueNanos <= now) {
+				int sender = (int) (sent % senderCount);
+				this.clients.get(sender).sendMessage(dueNanos, paddingText);
+				this.expectedMessages += this.channelSizes[sender % this.channelSizes.length] - 1;
+				sent++;
+				dueNanos = start + (long) (sent * intervalNanos);
+			}
+			if (now >= nextProgress) {
+				nextProgress += TimeUnit.SECONDS.toNanos(1);
+				this.print("LoadProgress", this.statistics.getSentMessages().sum(), this.statistics.getReceivedMessages().sum(),
+						toMillis(this.statistics.getLatencies().getValueAtPercentile(99)));
+			}
+			LockSupport.parkNanos(Math.min(dueNanos - now, TimeUnit.MILLISECONDS.toNanos(1)));
+		}
+	}
+
+	/**
+	 * Wait a little for the messages still on their way.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	private void waitForDrain() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+		while (this.statistics.getReceivedMessages().sum() < this.expectedMessages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Tell what has been seen.
+	 *
+	 * @param sendingNanos How long the sending has lasted.
+	 */
+	private void report(long sendingNanos) {
+
+		long sent = this.statistics.getSentMessages().sum();
+		long received = this.statistics.getReceivedMessages().sum();
+		double seconds = sendingNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+		this.print("LoadReport", sent, received, this.expectedMessages,
+				this.expectedMessages == 0 ? 100 : 100.0 * received / this.expectedMessages,
+				seconds, received / seconds);
+
+		Histogram latencies = this.statistics.getLatencies();
+		Object[] values = new Object[PERCENTILES.length + 2];
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			values[i] = toMillis(latencies.getValueAtPercentile(PERCENTILES[i]));
+		}
+		values[PERCENTILES.length] = toMillis(latencies.getMax());
+		values[PERCENTILES.length + 1] = toMillis((long) latencies.getMean());
+		this.print("LoadLatency", values);
+
+		this.print("LoadErrors", this.statistics.getSendErrors().sum(), this.statistics.getDisconnections().sum());
+	}
+
+	/**
+	 * Print a line of the report.
+	 *
+	 * @param key 	 The key of the label.
+	 * @param values The values of the label.
+	 */
+	void print(String key, Object... values) {
+		System.out.println(MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString(key), values));
+	}
+
+	/**
+	 * Returns nanoseconds in milliseconds, with the microseconds.
+	 *
+	 * @param nanos The nanoseconds.
+	 *
+	 * @return 		The milliseconds.
+	 */
+	private static double toMillis(long nanos) {
+		return nanos / 1000 / 1000.0;
+	}
+
+	/**
+	 * Returns a setting as an int.
+	 *
+	 * @param name 		   The name of the setting.
+	 * @param defaultValue The value if it is not set.
+	 *
+	 * @return 			   The value.
+	 */
+	private int getInt(String name, int defaultValue) {
+		String value = this.settings.getProperty(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * Returns a setting as a double.
+	 *
+	 * @param name 		   The name of the setting.
+	 * @param defaultValue The value if it is not set.
+	 *
+	 * @return 			   The value.
+	 */
+	private double getDouble(String name, double defaultValue) {
+		String value = this.settings.getProperty(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+}
@@ -0,0 +1,94 @@
+package loadgenerator;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import assistant.metrics.Histogram;
+
+/**
+ * {@link LoadStatistics}. What the simulated clients have seen, all of them
+ * together.
+ *
+ * @author costi.dumitrescu
+ */
+public class LoadStatistics {
+
+	/**
+	 * From the time a message was due to be sent, to its receipt by another client, in nanoseconds.
+	 */
+	private final Histogram latencies = new Histogram();
+
+	/**
+	 * The number of messages sent.
+	 */
+	private final LongAdder sentMessages = new LongAdder();
+
+	/**
+	 * The number of messages received from other clients.
+	 */
+	private final LongAdder receivedMessages = new LongAdder();
+
+	/**
+	 * The number of messages that could not be sent.
+	 */
+	private final LongAdder sendErrors = new LongAdder();
+
+	/**
+	 * The number of clients the server has disconnected.
+	 */
+	private final LongAdder disconnections = new LongAdder();
+
+	/**
+	 * Forget everything seen so far, at the end of the warm-up.
+	 */
+	public void reset() {
+		this.latencies.reset();
+		this.sentMessages.reset();
+		this.receivedMessages.reset();
+		this.sendErrors.reset();
+	}
+
+	/**
+	 * Returns the latencies, in nanoseconds.
+	 *
+	 * @return the latencies.
+	 */
+	public Histogram getLatencies() {
+		return this.latencies;
+	}
+
+	/**
+	 * Returns the number of messages sent.
+	 *
+	 * @return the number of messages sent.
+	 */
+	public LongAdder getSentMessages() {
+		return this.sentMessages;
+	}
+
+	/**
+	 * Returns the number of messages received from other clients.
+	 *
+	 * @return the number of messages received.
+	 */
+	public LongAdder getReceivedMessages() {
+		return this.receivedMessages;
+	}
+
+	/**
+	 * Returns the number of messages that could not be sent.
+	 *
+	 * @return the number of messages that could not be sent.
+	 */
+	public LongAdder getSendErrors() {
+		return this.sendErrors;
+	}
+
+	/**
+	 * Returns the number of clients the server has disconnected.
+	 *
+	 * @return the number of clients disconnected.
+	 */
+	public LongAdder getDisconnections() {
+		return this.disconnections;
+	}
+}
@@ -0,0 +1,199 @@
+package server.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import assistant.message.EncodedMessage;
+import assistant.message.MessageType;
+
+/**
+ * {@link Channel}. A named room inside the server : its members, and its last
+ * messages. A message said in a channel only goes to its members, so the cost
+ * of a broadcast grows with the size of the channel, not with the number of
+ * users on the server.
+ *
+ * A member either gets a message in the replay it is given when it joins, or
+ * in a broadcast afterwards, never both : joining and broadcasting a message
+ * take the same lock.
+ *
+ * @author costi.dumitrescu
+ */
+public class Channel {
+
+	/**
+	 * The name.
+	 */
+	private final String name;
+
+	/**
+	 * The members. Copied on each change, so it can be iterated over without a lock.
+	 */
+	private final CopyOnWriteArrayList<ServerClient> members;
+
+	/**
+	 * The last messages, replayed to the members that join.
+	 */
+	private final RecentHistory recentHistory;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name 					The name.
+	 * @param recentHistoryCapacity The number of messages replayed to the members that join.
+	 */
+	public Channel(String name, int recentHistoryCapacity) {
+		this.name 		   = name;
+		this.members 	   = new CopyOnWriteArrayList<>();
+		this.recentHistory = new RecentHistory(recentHistoryCapacity);
+	}
+
+	/**
+	 * Add a member, and replay it the last messages.
+	 *
+	 * @param client The new member.
+	 *
+	 * @return 		 <code>false</code> if it already was a member.
+	 */
+	public boolean join(ServerClient client) {
+		synchronized (this.recentHistory) {
+			if (!this.members.addIfAbsent(client)) {
+				return false;
+			}
+			this.replay(client, this.recentHistory.snapshot());
+			return true;
+		}
+	}
+
+	/**
+	 * Add a member back, after its connection was lost, and replay it only
+	 * the messages said after the last one it got, even if the server has been
+	 * started over since.
+	 *
+	 * @param client 	 The member.
+	 * @param sequenceId The sequence id of the last message it got.
+	 * @param timestamp  The time of the last message it got.
+	 *
+	 * @return 			 <code>false</code> if it already was a member.
+	 */
+	public boolean resume(ServerClient client, long sequenceId, long timestamp) {
+		synchronized (this.recentHistory) {
+			if (!this.members.addIfAbsent(client)) {
+				return false;
+			}
+			this.replay(client, this.recentHistory.snapshotAfter(sequenceId, timestamp));
+			return true;
+		}
+	}
+
+	/**
+	 * Queue the given messages for a member, as long as it keeps up.
+	 *
+	 * @param client   The member.
+	 * @param messages The messages, oldest first.
+	 */
+	private void replay(ServerClient client, List<EncodedMessage> messages) {
+		for (EncodedMessage message : messages) {
+			// The replay never gets a client disconnected, it just stops.
+			if (!client.offer(message)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Take a member out.
+	 *
+	 * @param client The member.
+	 *
+	 * @return 		 <code>false</code> if it was not a member.
+	 */
+	public boolean leave(ServerClient client) {
+		return this.members.remove(client);
+	}
+
+	/**
+	 * Queue a message for each member. The messages said in the channel are
+	 * kept for the replay; the others, like the joins and the leaves, are not.
+	 *
+	 * @param encodedMessage The message.
+	 *
+	 * @return 				 The members that could not keep up, or <code>null</code> if there is none.
+	 */
+	public List<ServerClient> broadcast(EncodedMessage encodedMessage) {
+		if (encodedMessage.getChatMessage().getMessageType() == MessageType.MESSAGE) {
+			synchronized (this.recentHistory) {
+				this.recentHistory.add(encodedMessage);
+				return this.offer(encodedMessage);
+			}
+		}
+		return this.offer(encodedMessage);
+	}
+
+	/**
+	 * Queue a message for each member.
+	 *
+	 * @param encodedMessage The message.
+	 *
+	 * @return 				 The members that could not keep up, or <code>null</code> if there is none.
+	 */
+	private List<ServerClient> offer(EncodedMessage encodedMessage) {
+		List<ServerClient> slowClients = null;
+		for (ServerClient client : this.members) {
+			if (!client.offer(encodedMessage)) {
+				if (slowClients == null) {
+					slowClients = new ArrayList<>();
+				}
+				slowClients.add(client);
+			}
+		}
+		return slowClients;
+	}
+
+	/**
+	 * Returns <code>true</code> if the client is a member.
+	 *
+	 * @param client The client.
+	 *
+	 * @return 		 <code>true</code> if the client is a member.
+	 */
+	public boolean isMember(ServerClient client) {
+		return this.members.contains(client);
+	}
+
+	/**
+	 * Returns <code>true</code> if there is no member left.
+	 *
+	 * @return <code>true</code> if there is no member left.
+	 */
+	public boolean isEmpty() {
+		return this.members.isEmpty();
+	}
+
+	/**
+	 * Returns the number of members.
+	 *
+	 * @return the number of members.
+	 */
+	public int size() {
+		return this.members.size();
+	}
+
+	/**
+	 * Returns the name.
+	 *
+	 * @return the name.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the last messages, replayed to the members that join.
+	 *
+	 * @return the last messages.
+	 */
+	public RecentHistory getRecentHistory() {
+		return this.recentHistory;
+	}
+}
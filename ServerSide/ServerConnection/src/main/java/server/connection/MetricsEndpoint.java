@@ -0,0 +1,110 @@
+package server.connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+import assistant.metrics.MetricsRegistry;
+
+/**
+ * {@link MetricsEndpoint}. Serves the metrics as plain text over HTTP, on a port
+ * of its own, so a scraper never competes with the chat clients. Whatever the
+ * path asked for, the answer is the whole {@link MetricsRegistry}.
+ *
+ * @author costi.dumitrescu
+ */
+public class MetricsEndpoint extends Thread {
+
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(MetricsEndpoint.class);
+
+	/**
+	 * How long a scraper has to send its request, in milliseconds.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * The socket the scrapers connect to.
+	 */
+	private final ServerSocket serverSocket;
+
+	/**
+	 * Constructor. The port is taken right away.
+	 *
+	 * @param port 		   The port to listen to.
+	 *
+	 * @throws IOException If the port could not be taken.
+	 */
+	public MetricsEndpoint(int port) throws IOException {
+		super("Metrics-Endpoint");
+		this.setDaemon(true);
+		this.serverSocket = new ServerSocket(port);
+	}
+
+	/**
+	 * Answer the scrapers, one after the other, until stopped.
+	 *
+	 * @see java.lang.Runnable.run()
+	 */
+	@Override
+	public void run() {
+		while (!this.serverSocket.isClosed()) {
+			try (Socket socket = this.serverSocket.accept()) {
+				this.answer(socket);
+			} catch (SocketException e) {
+				// Closed by stopEndpoint(), or the scraper went away.
+			} catch (IOException e) {
+				this.logger.error(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"), e.getLocalizedMessage()), e);
+			}
+		}
+	}
+
+	/**
+	 * Read the request up to its blank line, then write the metrics.
+	 *
+	 * @param socket 	   The scraper.
+	 *
+	 * @throws IOException If the scraper could not be read from or written to.
+	 */
+	private void answer(Socket socket) throws IOException {
+
+		socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		String line = reader.readLine();
+		while (line != null && !line.isEmpty()) {
+			line = reader.readLine();
+		}
+
+		byte[] body = MetricsRegistry.getInstance().render().toString().getBytes(StandardCharsets.UTF_8);
+		String header = "HTTP/1.0 200 OK\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+
+		OutputStream outputStream = socket.getOutputStream();
+		outputStream.write(header.getBytes(StandardCharsets.US_ASCII));
+		outputStream.write(body);
+		outputStream.flush();
+	}
+
+	/**
+	 * Stop answering, and let the port go.
+	 *
+	 * @throws IOException If the socket could not be closed.
+	 */
+	public void stopEndpoint() throws IOException {
+		this.serverSocket.close();
+	}
+}
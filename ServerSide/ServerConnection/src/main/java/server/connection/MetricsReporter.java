@@ -0,0 +1,75 @@
+package server.connection;
+
+import java.text.MessageFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+import assistant.metrics.MetricsRegistry;
+
+/**
+ * {@link MetricsReporter}. Writes every metric of the {@link MetricsRegistry}
+ * to the log, at a fixed interval, for a server that nobody scrapes.
+ *
+ * @author costi.dumitrescu
+ */
+public class MetricsReporter {
+
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(MetricsReporter.class);
+
+	/**
+	 * Writes the metrics.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Constructor. The reporting starts right away.
+	 *
+	 * @param intervalMillis How often the metrics are written, in milliseconds.
+	 */
+	public MetricsReporter(long intervalMillis) {
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			/**
+			 * @see java.util.concurrent.ThreadFactory.newThread(Runnable)
+			 */
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Metrics-Reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.scheduler.scheduleAtFixedRate(new Runnable() {
+			/**
+			 * @see java.lang.Runnable.run()
+			 */
+			@Override
+			public void run() {
+				MetricsReporter.this.report();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write the metrics to the log.
+	 */
+	public void report() {
+		this.logger.info(MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("MetricsDump"),
+				MetricsRegistry.getInstance().render()));
+	}
+
+	/**
+	 * Stop the reporting.
+	 */
+	public void stop() {
+		this.scheduler.shutdownNow();
+	}
+}
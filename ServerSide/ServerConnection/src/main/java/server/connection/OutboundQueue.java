@@ -0,0 +1,272 @@
+package server.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import assistant.connection.OverflowPolicy;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+
+/**
+ * {@link OutboundQueue}. The messages waiting to be written to one client. A
+ * broadcast only queues the message and moves on to the next client; the
+ * writing is done by the client's own writer, so a slow client can only fall
+ * behind, never stall the others. The queue is bounded by a high-water mark,
+ * and an {@link OverflowPolicy} decides what happens when it is reached.
+ *
+ * The queue holds each message it takes, see {@link EncodedMessage#retain()} :
+ * the message is released once it has been dropped, cleared, or written.
+ *
+ * @author costi.dumitrescu
+ */
+public class OutboundQueue {
+
+	/**
+	 * The messages, oldest first.
+	 */
+	private BlockingDeque<EncodedMessage> messages;
+
+	/**
+	 * The high-water mark.
+	 */
+	private int highWaterMark;
+
+	/**
+	 * What to do when the high-water mark is reached.
+	 */
+	private OverflowPolicy overflowPolicy;
+
+	/**
+	 * The number of messages dropped so far.
+	 */
+	private AtomicLong droppedMessages;
+
+	/**
+	 * The messages queued and not written yet, the one being written included.
+	 */
+	private AtomicInteger unwrittenMessages;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param highWaterMark  The most messages the client can fall behind.
+	 * @param overflowPolicy What to do when the high-water mark is reached.
+	 */
+	public OutboundQueue(int highWaterMark, OverflowPolicy overflowPolicy) {
+		this.highWaterMark 	 = Math.max(1, highWaterMark);
+		this.overflowPolicy  = overflowPolicy;
+		this.messages 		 = new LinkedBlockingDeque<>(this.highWaterMark);
+		this.droppedMessages = new AtomicLong();
+		this.unwrittenMessages = new AtomicInteger();
+	}
+
+	/**
+	 * Queue a message. Never blocks.
+	 *
+	 * @param message The message.
+	 *
+	 * @return 		  <code>false</code> if the client has reached the high-water mark
+	 * 				  and has to be disconnected.
+	 */
+	public boolean offer(EncodedMessage message) {
+
+		// Counted and held before it can be taken, so it is never written before.
+		this.unwrittenMessages.incrementAndGet();
+		message.retain();
+
+		// Make room, as long as the policy allows it.
+		while (!this.messages.offerLast(message)) {
+			if (this.overflowPolicy == OverflowPolicy.DISCONNECT) {
+				this.unwrittenMessages.decrementAndGet();
+				message.release();
+				return false;
+			}
+			if (this.overflowPolicy == OverflowPolicy.COALESCE_WHOISIN && this.coalescePresence(message)) {
+				continue;
+			}
+			EncodedMessage droppedMessage = this.messages.pollFirst();
+			if (droppedMessage != null) {
+				this.dropped(droppedMessage);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Fold the queued presence messages into one. A WHOISIN carries the whole
+	 * list of users, a JOINED or a LEFT only the change : once the client is
+	 * behind, one list of the users as they are now tells it as much as all of
+	 * them. If the message about to be queued is a WHOISIN itself, it is that
+	 * list; otherwise a new one takes the place of the queued ones.
+	 *
+	 * @param message The message about to be queued.
+	 *
+	 * @return 		  <code>true</code> if room has been made.
+	 */
+	private boolean coalescePresence(EncodedMessage message) {
+
+		boolean isNewWhoIsIn = message.getChatMessage().getMessageType() == MessageType.WHOISIN;
+		List<EncodedMessage> staleMessages = new ArrayList<>();
+		for (EncodedMessage queuedMessage : this.messages) {
+			if (isPresence(queuedMessage)) {
+				staleMessages.add(queuedMessage);
+			}
+		}
+
+		// Nothing to gain : one list would take the place of one message.
+		if (staleMessages.isEmpty() || (!isNewWhoIsIn && staleMessages.size() < 2)) {
+			return false;
+		}
+
+		// Only the ones the writer has not taken meanwhile are dropped, and released.
+		int droppedMessages = 0;
+		for (EncodedMessage staleMessage : staleMessages) {
+			if (this.messages.removeFirstOccurrence(staleMessage)) {
+				this.dropped(staleMessage);
+				droppedMessages++;
+			}
+		}
+		if (droppedMessages == 0) {
+			return false;
+		}
+
+		// The users as they are now, in their place.
+		if (!isNewWhoIsIn) {
+			EncodedMessage whoisinMessage = new EncodedMessage(MessageHandler.getInstance().createMessage(
+					MessageType.WHOISIN, null, ServerRoom.getInstance().listAllClients().toString()));
+			this.unwrittenMessages.incrementAndGet();
+			whoisinMessage.retain();
+			// Filled up meanwhile by another broadcast.
+			if (!this.messages.offerLast(whoisinMessage)) {
+				this.dropped(whoisinMessage);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the message tells who is in.
+	 *
+	 * @param message The message.
+	 *
+	 * @return 		  <code>true</code> for a WHOISIN, a JOINED or a LEFT.
+	 */
+	private static boolean isPresence(EncodedMessage message) {
+		MessageType messageType = message.getChatMessage().getMessageType();
+		return messageType == MessageType.WHOISIN || messageType == MessageType.JOINED || messageType == MessageType.LEFT;
+	}
+
+	/**
+	 * A message has been taken out of the queue, and will never be written.
+	 *
+	 * @param message The message.
+	 */
+	private void dropped(EncodedMessage message) {
+		this.droppedMessages.incrementAndGet();
+		this.unwrittenMessages.decrementAndGet();
+		message.release();
+	}
+
+	/**
+	 * Returns the oldest message, or <code>null</code> if there is none. Never blocks.
+	 *
+	 * @return the oldest message, or <code>null</code> if there is none.
+	 */
+	public EncodedMessage poll() {
+		return this.messages.pollFirst();
+	}
+
+	/**
+	 * Returns the oldest message. Blocks until there is one.
+	 *
+	 * @return 						the oldest message.
+	 *
+	 * @throws InterruptedException If the writer has been interrupted while waiting.
+	 */
+	public EncodedMessage take() throws InterruptedException {
+		return this.messages.takeFirst();
+	}
+
+	/**
+	 * The writer has written a message it has taken, to the last byte. The
+	 * message is released.
+	 *
+	 * @param message The message.
+	 */
+	public void written(EncodedMessage message) {
+		this.unwrittenMessages.decrementAndGet();
+		message.release();
+	}
+
+	/**
+	 * The writer has written a few messages it has taken, to the last byte. The
+	 * writer has released them itself, as soon as it had copied them.
+	 *
+	 * @param messages The number of messages.
+	 */
+	public void written(int messages) {
+		this.unwrittenMessages.addAndGet(-messages);
+	}
+
+	/**
+	 * Returns <code>true</code> once every message queued so far has been
+	 * written, the one the writer holds included. Unlike {@link #isEmpty()}.
+	 *
+	 * @return <code>true</code> if everything has been written.
+	 */
+	public boolean isDrained() {
+		return this.unwrittenMessages.get() <= 0;
+	}
+
+	/**
+	 * Returns <code>true</code> if there is nothing to write.
+	 *
+	 * @return <code>true</code> if there is nothing to write.
+	 */
+	public boolean isEmpty() {
+		return this.messages.isEmpty();
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written.
+	 *
+	 * @return the number of messages waiting to be written.
+	 */
+	public int getDepth() {
+		return this.messages.size();
+	}
+
+	/**
+	 * Returns the high-water mark.
+	 *
+	 * @return the high-water mark.
+	 */
+	public int getHighWaterMark() {
+		return this.highWaterMark;
+	}
+
+	/**
+	 * Returns the number of messages dropped so far.
+	 *
+	 * @return the number of messages dropped so far.
+	 */
+	public long getDroppedMessages() {
+		return this.droppedMessages.get();
+	}
+
+	/**
+	 * Forget every message. The client is gone.
+	 */
+	public void clear() {
+		EncodedMessage message;
+		while ((message = this.messages.pollFirst()) != null) {
+			message.release();
+		}
+		this.unwrittenMessages.set(0);
+	}
+}
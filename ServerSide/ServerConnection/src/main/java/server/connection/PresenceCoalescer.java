@@ -0,0 +1,189 @@
+package server.connection;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+import assistant.message.MessageType;
+
+/**
+ * {@link PresenceCoalescer}. Tells the clients who has logged in and out, with
+ * the changed users only, instead of the whole list of users each time. The
+ * changes are gathered for a short window and sent together : a storm of
+ * logins costs a few messages, and a user that logs out and back in within the
+ * window costs none at all.
+ *
+ * @author costi.dumitrescu
+ */
+public class PresenceCoalescer {
+
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(PresenceCoalescer.class);
+
+	/**
+	 * How long the changes are gathered, in milliseconds. <code>0</code> sends each change right away.
+	 */
+	private final long windowMillis;
+
+	/**
+	 * The changes not sent yet, by user : {@link MessageType#JOINED} or {@link MessageType#LEFT}.
+	 */
+	private final Map<String, MessageType> pendingChanges;
+
+	/**
+	 * Sends the changes once the window is over.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * <code>true</code> while a sending is scheduled.
+	 */
+	private boolean isFlushScheduled;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param windowMillis How long the changes are gathered, in milliseconds.
+	 */
+	public PresenceCoalescer(long windowMillis) {
+		this.windowMillis 	= Math.max(0, windowMillis);
+		this.pendingChanges = new LinkedHashMap<>();
+		if (this.windowMillis > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				/**
+				 * @see java.util.concurrent.ThreadFactory.newThread(Runnable)
+				 */
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Presence-Coalescer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * A user has logged in.
+	 *
+	 * @param user The user.
+	 */
+	public void joined(String user) {
+		this.change(user, MessageType.JOINED);
+	}
+
+	/**
+	 * A user has logged out, or has been disconnected.
+	 *
+	 * @param user The user.
+	 */
+	public void left(String user) {
+		this.change(user, MessageType.LEFT);
+	}
+
+	/**
+	 * Keep a change until the window is over. A change undoes the opposite one
+	 * still waiting, for the same user.
+	 *
+	 * @param user 		 The user.
+	 * @param changeType {@link MessageType#JOINED} or {@link MessageType#LEFT}.
+	 */
+	private void change(String user, MessageType changeType) {
+
+		// For safety.
+		if (user == null) {
+			return;
+		}
+
+		// Right away.
+		if (this.scheduler == null) {
+			this.send(changeType == MessageType.LEFT ? user + "," : null, changeType == MessageType.JOINED ? user + "," : null);
+			return;
+		}
+
+		synchronized (this) {
+			// The server is going down, nobody is left to tell.
+			if (this.scheduler.isShutdown()) {
+				return;
+			}
+			MessageType pendingChange = this.pendingChanges.remove(user);
+			if (pendingChange == null || pendingChange == changeType) {
+				this.pendingChanges.put(user, changeType);
+			}
+			if (!this.isFlushScheduled && !this.pendingChanges.isEmpty()) {
+				this.isFlushScheduled = true;
+				this.scheduler.schedule(new Runnable() {
+					/**
+					 * @see java.lang.Runnable.run()
+					 */
+					@Override
+					public void run() {
+						PresenceCoalescer.this.flush();
+					}
+				}, this.windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Send the changes gathered so far : one message for the users that have
+	 * left, then one for the users that have joined.
+	 */
+	public void flush() {
+
+		// The users, separated by comma.
+		StringBuilder leftUsers = new StringBuilder();
+		StringBuilder joinedUsers = new StringBuilder();
+
+		synchronized (this) {
+			for (Map.Entry<String, MessageType> pendingChange : this.pendingChanges.entrySet()) {
+				StringBuilder users = pendingChange.getValue() == MessageType.JOINED ? joinedUsers : leftUsers;
+				users.append(pendingChange.getKey());
+				users.append(",");
+			}
+			this.pendingChanges.clear();
+			this.isFlushScheduled = false;
+		}
+
+		if (leftUsers.length() > 0 || joinedUsers.length() > 0) {
+			this.send(leftUsers.length() > 0 ? leftUsers.toString() : null, joinedUsers.length() > 0 ? joinedUsers.toString() : null);
+		}
+	}
+
+	/**
+	 * Stop gathering. The changes still waiting are sent.
+	 */
+	public void stop() {
+		if (this.scheduler != null) {
+			synchronized (this) {
+				this.scheduler.shutdownNow();
+			}
+		}
+		this.flush();
+	}
+
+	/**
+	 * Broadcast the presence deltas to every client.
+	 *
+	 * @param leftUsers   The users that have left, separated by comma. <code>null</code> if none.
+	 * @param joinedUsers The users that have joined, separated by comma. <code>null</code> if none.
+	 */
+	private void send(String leftUsers, String joinedUsers) {
+		try {
+			ServerRoom.getInstance().broadcastPresence(leftUsers, joinedUsers);
+		} catch (IOException e) {
+			this.logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"), e.getLocalizedMessage()), e);
+		}
+	}
+}
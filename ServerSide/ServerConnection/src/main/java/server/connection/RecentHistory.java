@@ -0,0 +1,117 @@
+package server.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageHandler;
+
+/**
+ * {@link RecentHistory}. The last messages said in a room, kept in memory in a
+ * ring buffer, so a client that joins can be shown what was said before it
+ * without asking the DATA BASE. The messages are kept already encoded : the
+ * replay hands the very same frames to the newcomer as the broadcast did to
+ * the others.
+ *
+ * @author costi.dumitrescu
+ */
+public class RecentHistory {
+
+	/**
+	 * The messages. The oldest one is overwritten once the buffer is full.
+	 */
+	private final EncodedMessage[] messages;
+
+	/**
+	 * Where the next message goes.
+	 */
+	private int next;
+
+	/**
+	 * The number of messages in the buffer.
+	 */
+	private int size;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity The most messages kept. <code>0</code> keeps none.
+	 */
+	public RecentHistory(int capacity) {
+		this.messages = new EncodedMessage[Math.max(0, capacity)];
+	}
+
+	/**
+	 * Keep a message, in place of the oldest one if the buffer is full.
+	 *
+	 * @param message The message.
+	 */
+	public synchronized void add(EncodedMessage message) {
+
+		// Nothing is kept.
+		if (this.messages.length == 0) {
+			return;
+		}
+
+		this.messages[this.next] = message;
+		this.next = (this.next + 1) % this.messages.length;
+		this.size = Math.min(this.size + 1, this.messages.length);
+	}
+
+	/**
+	 * Returns the messages kept, oldest first.
+	 *
+	 * @return the messages kept, oldest first.
+	 */
+	public synchronized List<EncodedMessage> snapshot() {
+		List<EncodedMessage> snapshot = new ArrayList<>(this.size);
+		// The oldest one is right after the newest one, once the buffer has wrapped.
+		int oldest = (this.next - this.size + this.messages.length) % Math.max(1, this.messages.length);
+		for (int i = 0; i < this.size; i++) {
+			snapshot.add(this.messages[(oldest + i) % this.messages.length]);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the messages kept after a given one, oldest first. The ids of
+	 * this run of the server tell what came after. Those of an earlier run
+	 * don't : the history has been read back from the DATA BASE with new ids,
+	 * so only the time tells.
+	 *
+	 * @param sequenceId The sequence id of the given message.
+	 * @param timestamp  The time of the given message.
+	 *
+	 * @return 			 the messages kept after the given one, oldest first.
+	 */
+	public synchronized List<EncodedMessage> snapshotAfter(long sequenceId, long timestamp) {
+		boolean isThisRun = MessageHandler.epochOf(sequenceId) == MessageHandler.getInstance().getEpoch();
+		List<EncodedMessage> snapshot = new ArrayList<>();
+		for (EncodedMessage encodedMessage : this.snapshot()) {
+			ChatMessage message = encodedMessage.getChatMessage();
+			if (isThisRun ? message.getSequenceId() > sequenceId : message.getTimestamp() > timestamp) {
+				snapshot.add(encodedMessage);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the number of messages kept.
+	 *
+	 * @return the number of messages kept.
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the most messages kept.
+	 *
+	 * @return the most messages kept.
+	 */
+	public int getCapacity() {
+		return this.messages.length;
+	}
+}
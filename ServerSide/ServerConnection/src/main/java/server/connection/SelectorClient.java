@@ -0,0 +1,376 @@
+package server.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+import assistant.handler.BufferPool;
+import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageHandler;
+import assistant.message.codec.CodecType;
+
+/**
+ * {@link SelectorClient}. A client served by a {@link SelectorLoop}, over a
+ * non-blocking {@link SocketChannel}. The messages travel as length-prefixed
+ * frames, so they can be gathered a few bytes at a time. The frames are sent
+ * with the codec the client logs in with, several in one gathering write.
+ * Each frame is a read-only view of a direct buffer shared by all the
+ * recipients of the message : nothing is copied on the way to the socket.
+ * 
+ * @author costi.dumitrescu
+ */
+public class SelectorClient implements ServerClient {
+	
+	/**
+	 * The initial size of the read buffer. It grows up to the biggest frame.
+	 */
+	private static final int INITIAL_READ_BUFFER_SIZE = 4 * 1024;
+	
+	/**
+	 * The most frames written at once.
+	 */
+	private static final int MAX_FRAMES_PER_WRITE = 64;
+
+	/**
+	 * The non-blocking channel to read from and write to.
+	 */
+	private SocketChannel channel;
+	
+	/**
+	 * The loop serving this client.
+	 */
+	private SelectorLoop selectorLoop;
+	
+	/**
+	 * The registration of the channel with the loop's {@link Selector}.
+	 */
+	private SelectionKey selectionKey;
+	
+	/**
+	 * The server side behavior for each message type.
+	 */
+	private ServerHandler serverHandler;
+	
+	/**
+	 * Holds the bytes read so far, until they make whole frames.
+	 */
+	private ByteBuffer readBuffer;
+	
+	/**
+	 * Messages waiting to be written on the channel.
+	 */
+	private OutboundQueue outboundQueue;
+	
+	/**
+	 * The frames being written, in one gathering write. Only touched by the loop thread.
+	 */
+	private ByteBuffer[] pendingFrames;
+	
+	/**
+	 * The messages of the frames being written, held until their frame is written
+	 * whole. Those of a client stopped in the middle are not released : the loop
+	 * could still be writing them, so their buffers are left to the garbage collector.
+	 */
+	private EncodedMessage[] pendingMessages;
+	
+	/**
+	 * The number of frames being written.
+	 */
+	private int pendingFrameCount;
+	
+	/**
+	 * The first frame not written whole yet, if the channel could not take them all.
+	 */
+	private int pendingFrameOffset;
+	
+	/**
+	 * The bytes gathered in one write, at most.
+	 */
+	private int flushBytes;
+	
+	/**
+	 * The direct buffers the frames are copied in, once per message and codec.
+	 */
+	private BufferPool framePool;
+	
+	/**
+	 * <code>true</code> while the loop has been asked to write, and has not done it yet.
+	 * Spares the loop one request per queued message.
+	 */
+	private AtomicBoolean isWriteRequested;
+	
+	/**
+	 * The codec the frames are sent with. XML, which every client understands,
+	 * until the client logs in.
+	 */
+	private volatile CodecType codecType;
+	
+	/**
+	 * <code>false</code> until the codec of the first frame received has been adopted.
+	 */
+	private boolean isCodecNegotiated;
+	
+	/**
+	 * The client associated with this channel.
+	 */
+	private volatile String user;
+	
+	/**
+	 * <code>false</code> once this client has been stopped.
+	 */
+	private volatile boolean isConnectionOpened;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param channel 	    The channel, already accepted.
+	 * @param selectorLoop  The loop serving this client.
+	 * @param outboundQueue The messages waiting to be written on the channel.
+	 * @param flushBytes 	The bytes gathered in one write, at most.
+	 * @param framePool 	The direct buffers the frames are copied in.
+	 * 
+	 * @throws IOException  If the channel could not be switched to non-blocking mode.
+	 */
+	public SelectorClient(SocketChannel channel, SelectorLoop selectorLoop, OutboundQueue outboundQueue,
+			int flushBytes, BufferPool framePool) throws IOException {
+		this.channel 			= channel;
+		this.selectorLoop 		= selectorLoop;
+		this.serverHandler 		= new ServerHandler(this, false);
+		this.readBuffer 		= ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+		this.outboundQueue 		= outboundQueue;
+		this.pendingFrames 		= new ByteBuffer[MAX_FRAMES_PER_WRITE];
+		this.pendingMessages 	= new EncodedMessage[MAX_FRAMES_PER_WRITE];
+		this.flushBytes 		= Math.max(1, flushBytes);
+		this.framePool 			= framePool;
+		this.isWriteRequested 	= new AtomicBoolean();
+		this.codecType			= CodecType.XML;
+		this.isCodecNegotiated	= false;
+		this.isConnectionOpened = true;
+		this.channel.configureBlocking(false);
+	}
+	
+	/**
+	 * Register the channel with the {@link Selector}. Called by the loop thread.
+	 * 
+	 * @param selector 	   The {@link Selector}.
+	 * 
+	 * @throws IOException If the channel has been closed in the meantime.
+	 */
+	void register(Selector selector) throws IOException {
+		// Whatever has been queued in the meantime gets written as soon as the channel is writable.
+		int interestOps = this.outboundQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		this.selectionKey = this.channel.register(selector, interestOps, this);
+	}
+	
+	/**
+	 * Read whatever has arrived, and handle each whole frame. Called by the loop thread.
+	 * 
+	 * @throws IOException Any exception thrown by the channel, or a corrupted frame.
+	 */
+	void read() throws IOException {
+		
+		// The other side has gone.
+		if (this.channel.read(this.readBuffer) < 0) {
+			throw new EOFException();
+		}
+		
+		// Handle every whole frame.
+		this.readBuffer.flip();
+		while (this.isConnectionOpened && this.readBuffer.remaining() >= MessageHandler.FRAME_HEADER_LENGTH) {
+			int length = this.readBuffer.getInt(this.readBuffer.position());
+			MessageHandler.getInstance().checkFrameLength(length);
+			
+			// Not everything has arrived yet.
+			if (this.readBuffer.remaining() < MessageHandler.FRAME_HEADER_LENGTH + length) {
+				// Make room for the whole frame.
+				if (this.readBuffer.capacity() < MessageHandler.FRAME_HEADER_LENGTH + length) {
+					ByteBuffer biggerBuffer = ByteBuffer.allocate(MessageHandler.FRAME_HEADER_LENGTH + length);
+					biggerBuffer.put(this.readBuffer);
+					biggerBuffer.flip();
+					this.readBuffer = biggerBuffer;
+				}
+				break;
+			}
+			
+			// Decode.
+			byte codecId = this.readBuffer.get(this.readBuffer.position() + MessageHandler.FRAME_HEADER_LENGTH - 1);
+			int payloadOffset = this.readBuffer.arrayOffset() + this.readBuffer.position() + MessageHandler.FRAME_HEADER_LENGTH;
+			ChatMessage chatMessage = MessageHandler.getInstance().decodeFrame(codecId, this.readBuffer.array(), payloadOffset, length);
+			this.readBuffer.position(this.readBuffer.position() + MessageHandler.FRAME_HEADER_LENGTH + length);
+			
+			// Answer in the codec the client has chosen.
+			if (!this.isCodecNegotiated) {
+				this.codecType = CodecType.fromId(codecId);
+				this.isCodecNegotiated = true;
+			}
+			
+			// Handle.
+			ServerMetrics.messageIn(chatMessage);
+			MessageHandler.getInstance().handleMessage(this.serverHandler, chatMessage);
+		}
+		this.readBuffer.compact();
+	}
+	
+	/**
+	 * Write as much as the channel accepts. Called by the loop thread.
+	 * 
+	 * @throws IOException Any exception thrown by the channel.
+	 */
+	void write() throws IOException {
+		
+		// The requests made from now on are for messages queued from now on.
+		this.isWriteRequested.set(false);
+		
+		// Not registered yet, or already gone.
+		if (this.selectionKey == null || !this.selectionKey.isValid()) {
+			return;
+		}
+		
+		while (true) {
+			// The next frames, in the codec of this client, as many as one write takes.
+			if (this.pendingFrameCount == 0 && !this.gatherFrames()) {
+				break;
+			}
+			this.channel.write(this.pendingFrames, this.pendingFrameOffset, this.pendingFrameCount - this.pendingFrameOffset);
+			while (this.pendingFrameOffset < this.pendingFrameCount && !this.pendingFrames[this.pendingFrameOffset].hasRemaining()) {
+				this.outboundQueue.written(this.pendingMessages[this.pendingFrameOffset]);
+				this.pendingFrames[this.pendingFrameOffset] = null;
+				this.pendingMessages[this.pendingFrameOffset++] = null;
+			}
+			// The socket buffer is full, wait until it's writable again.
+			if (this.pendingFrameOffset < this.pendingFrameCount) {
+				break;
+			}
+			ServerMetrics.flushed(this.pendingFrameCount);
+			this.pendingFrameCount = 0;
+		}
+		
+		// Only ask for write readiness while there is something left.
+		if (this.pendingFrameCount == 0) {
+			this.selectionKey.interestOps(SelectionKey.OP_READ);
+		} else {
+			this.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * Take the next queued messages, up to the bytes one write gathers, and
+	 * make them the frames being written. Called by the loop thread.
+	 * 
+	 * @return 			   <code>false</code> if nothing is queued.
+	 * 
+	 * @throws IOException If a message could not be encoded.
+	 */
+	private boolean gatherFrames() throws IOException {
+		long bytes = 0;
+		this.pendingFrameOffset = 0;
+		while (this.pendingFrameCount < MAX_FRAMES_PER_WRITE && bytes < this.flushBytes) {
+			EncodedMessage message = this.outboundQueue.poll();
+			if (message == null) {
+				break;
+			}
+			ByteBuffer frame = message.getDirectFrame(this.codecType, this.framePool);
+			this.pendingMessages[this.pendingFrameCount] = message;
+			this.pendingFrames[this.pendingFrameCount++] = frame;
+			bytes += frame.remaining();
+			ServerMetrics.messageOut(message.getChatMessage());
+		}
+		return this.pendingFrameCount > 0;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.getUser()
+	 */
+	@Override
+	public String getUser() {
+		return this.user;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.setUser(String)
+	 */
+	@Override
+	public void setUser(String username) {
+		this.user = username;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.send(ChatMessage)
+	 */
+	@Override
+	public void send(ChatMessage message) throws IOException {
+		if (!this.offer(new EncodedMessage(message))) {
+			ServerRoom.getInstance().removeClient(this);
+		}
+	}
+
+	/**
+	 * Queue the message and let the loop write it. Never blocks the caller.
+	 * 
+	 * @see server.connection.ServerClient.offer(EncodedMessage)
+	 */
+	@Override
+	public boolean offer(EncodedMessage message) {
+		
+		// Nobody to send to.
+		if (!this.isConnectionOpened) {
+			return true;
+		}
+		
+		if (!this.outboundQueue.offer(message)) {
+			return false;
+		}
+		// One request is enough for everything queued until the loop writes.
+		if (this.isWriteRequested.compareAndSet(false, true)) {
+			this.selectorLoop.requestWrite(this);
+		}
+		return true;
+	}
+
+	/**
+	 * Always framed.
+	 * 
+	 * @see server.connection.ServerClient.isObjectStream()
+	 */
+	@Override
+	public boolean isObjectStream() {
+		return false;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.getOutboundQueue()
+	 */
+	@Override
+	public OutboundQueue getOutboundQueue() {
+		return this.outboundQueue;
+	}
+
+	/**
+	 * Nothing to wait for : the loop thread is shared, and stopped on its own.
+	 * 
+	 * @see server.connection.ServerClient.awaitTermination(long)
+	 */
+	@Override
+	public boolean awaitTermination(long timeoutMillis) {
+		return true;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.stopClient()
+	 */
+	@Override
+	public void stopClient() throws IOException {
+		this.isConnectionOpened = false;
+		this.outboundQueue.clear();
+		if (this.selectionKey != null) {
+			this.selectionKey.cancel();
+		}
+		this.channel.close();
+	}
+}
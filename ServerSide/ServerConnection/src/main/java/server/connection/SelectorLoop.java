@@ -0,0 +1,177 @@
+package server.connection;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+
+/**
+ * {@link SelectorLoop}. One thread that serves many {@link SelectorClient}s
+ * through a single {@link Selector}, instead of one thread per client. The
+ * server starts a few of them, usually one per core, and spreads the clients
+ * between them.
+ * 
+ * @author costi.dumitrescu
+ */
+public class SelectorLoop extends Thread {
+
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(SelectorLoop.class);
+	
+	/**
+	 * The {@link Selector} all clients of this loop are registered with.
+	 */
+	private Selector selector;
+	
+	/**
+	 * Clients waiting to be registered with the {@link Selector}. A channel can
+	 * only be registered safely from the loop thread.
+	 */
+	private Queue<SelectorClient> pendingRegistrations;
+	
+	/**
+	 * Clients that have something to write. Other threads (broadcasts) only
+	 * queue the request, the loop thread does the writing.
+	 */
+	private Queue<SelectorClient> pendingWrites;
+	
+	/**
+	 * While this variable is <code>true</code> this {@link SelectorLoop} will be
+	 * looping.
+	 */
+	private volatile boolean isLoopRunning;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param name 		   The name of the thread.
+	 * 
+	 * @throws IOException If the {@link Selector} could not be opened.
+	 */
+	public SelectorLoop(String name) throws IOException {
+		super(name);
+		this.selector             = Selector.open();
+		this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+		this.pendingWrites        = new ConcurrentLinkedQueue<>();
+		this.isLoopRunning        = true;
+	}
+	
+	/**
+	 * Hand a newly accepted client over to this loop.
+	 * 
+	 * @param client The client.
+	 */
+	public void register(SelectorClient client) {
+		this.pendingRegistrations.add(client);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Ask the loop to write whatever the client has queued.
+	 * 
+	 * @param client The client.
+	 */
+	public void requestWrite(SelectorClient client) {
+		this.pendingWrites.add(client);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Stop the loop. The clients themselves are closed by the {@link ServerRoom}.
+	 */
+	public void stopLoop() {
+		this.isLoopRunning = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * @see java.lang.Runnable.run()
+	 */
+	@Override
+	public void run() {
+		try {
+			// Loop until the condition is no longer met.
+			while (this.isLoopRunning) {
+				
+				// Wait for something to do.
+				this.selector.select();
+				
+				// #1 New clients.
+				SelectorClient client;
+				while ((client = this.pendingRegistrations.poll()) != null) {
+					try {
+						client.register(this.selector);
+					} catch (IOException | RuntimeException e) {
+						this.disconnect(client, e);
+					}
+				}
+				
+				// #2 Queued writes.
+				while ((client = this.pendingWrites.poll()) != null) {
+					try {
+						client.write();
+					} catch (IOException | RuntimeException e) {
+						this.disconnect(client, e);
+					}
+				}
+				
+				// #3 Ready channels.
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					client = (SelectorClient) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							client.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							client.write();
+						}
+					} catch (IOException | RuntimeException e) {
+						this.disconnect(client, e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			this.logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInSelectorLoop"),
+					this.getName()), e);
+		} finally {
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				// just .... do nothing!
+			}
+		}
+	}
+	
+	/**
+	 * A client has failed. Take it out of the room of clients. Whatever it has
+	 * failed with, the loop goes on serving the others.
+	 * 
+	 * @param client The client.
+	 * @param cause  The reason.
+	 */
+	private void disconnect(SelectorClient client, Exception cause) {
+		this.logger.error(MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread"),
+				client.hashCode()), cause);
+		try {
+			ServerRoom.getInstance().removeClient(client);
+		} catch (IOException ioe) {
+			this.logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionRemovingClient"),
+					client.hashCode()), ioe);
+		}
+	}
+}
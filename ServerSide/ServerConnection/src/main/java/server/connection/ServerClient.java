@@ -0,0 +1,85 @@
+package server.connection;
+
+import java.io.IOException;
+
+import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+
+/**
+ * A client as seen by the server, whatever the transport that carries its
+ * messages.
+ * 
+ * @author costi.dumitrescu
+ */
+public interface ServerClient {
+
+	/**
+	 * Returns the user.
+	 * 
+	 * @return the user.
+	 */
+	String getUser();
+
+	/**
+	 * Sets the user-name.
+	 * 
+	 * @param username The user-name.
+	 */
+	void setUser(String username);
+
+	/**
+	 * Send a message to the client. The message is only queued; if the client
+	 * has fallen too far behind, it is disconnected.
+	 * 
+	 * @param message      The message to be sent.
+	 * 
+	 * @throws IOException Any exception thrown while disconnecting the client.
+	 */
+	void send(ChatMessage message) throws IOException;
+
+	/**
+	 * Queue a message shared with other recipients, for the client's writer.
+	 * Never blocks. The frame encoded for the codec of this client is reused,
+	 * not encoded again.
+	 * 
+	 * @param message The message to be sent.
+	 * 
+	 * @return 		  <code>false</code> if the client has reached the high-water mark
+	 * 				  and has to be disconnected.
+	 */
+	boolean offer(EncodedMessage message);
+
+	/**
+	 * Returns <code>true</code> if the client talks through a continuous object
+	 * stream, as the older clients did. Those don't know the presence deltas.
+	 * 
+	 * @return <code>true</code> if the client talks through a continuous object stream.
+	 */
+	boolean isObjectStream();
+
+	/**
+	 * Returns the messages waiting to be written to the client.
+	 * 
+	 * @return the messages waiting to be written to the client.
+	 */
+	OutboundQueue getOutboundQueue();
+
+	/**
+	 * Stop serving this client.
+	 * 
+	 * @throws IOException If an error has occurred while closing the connections.
+	 */
+	void stopClient() throws IOException;
+
+	/**
+	 * Wait for the threads serving this client, if it has any of its own, to
+	 * end. Called once the client has been stopped.
+	 * 
+	 * @param timeoutMillis 		The longest time to wait, in milliseconds.
+	 * 
+	 * @return 						<code>true</code> if they have ended.
+	 * 
+	 * @throws InterruptedException If the waiting thread has been interrupted.
+	 */
+	boolean awaitTermination(long timeoutMillis) throws InterruptedException;
+}
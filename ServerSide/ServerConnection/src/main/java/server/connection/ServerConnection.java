@@ -1,15 +1,26 @@
 package server.connection;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.text.MessageFormat;
 
 import org.apache.log4j.Logger;
 
 import assistant.connection.Connection;
 import assistant.connection.ConnectionInfoPack;
+import assistant.connection.ThreadMode;
+import assistant.connection.TransportMode;
+import assistant.handler.BufferPool;
 import assistant.i18n.ResourceBundleHandler;
+import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+import server.persistence.HistoryEntry;
+import server.persistence.Persistence;
 import server.persistence.PersistenceHandler;
 
 /**
@@ -24,6 +35,21 @@ public class ServerConnection extends Connection {
 	 */
 	private Logger logger = Logger.getLogger(Connection.class);
 	
+	/**
+	 * The most write buffers kept for later, the others are left to the garbage collector.
+	 */
+	private static final int MAX_POOLED_BUFFERS = 256;
+	
+	/**
+	 * The size of the direct buffers the frames are shared in. Bigger frames stay on the heap.
+	 */
+	private static final int FRAME_BUFFER_SIZE = 2 * 1024;
+	
+	/**
+	 * The most frame buffers kept for later.
+	 */
+	private static final int MAX_POOLED_FRAME_BUFFERS = 4 * 1024;
+	
 	/**
 	 * The socket used by the server. A server socket waits for requests to come
 	 * in over the network. It performs some operation based on that request,
@@ -35,7 +61,38 @@ public class ServerConnection extends Connection {
 	 * While this variable is <code>true</code> the server will be waiting for
 	 * clients.
 	 */
-	private boolean isConnectionOpened;
+	private volatile boolean isConnectionOpened;
+	
+	/**
+	 * The loops serving the clients in {@link TransportMode#SELECTOR} mode.
+	 */
+	private SelectorLoop[] selectorLoops;
+	
+	/**
+	 * The loop that gets the next client. Clients are spread round-robin.
+	 */
+	private int nextSelectorLoop;
+	
+	/**
+	 * Serves the metrics on a port of their own, if asked for.
+	 */
+	private MetricsEndpoint metricsEndpoint;
+	
+	/**
+	 * Writes the metrics to the log, if asked for.
+	 */
+	private MetricsReporter metricsReporter;
+	
+	/**
+	 * The buffers the blocking clients write into, shared by all of them : a
+	 * client only holds one while it has something to flush.
+	 */
+	private BufferPool bufferPool;
+	
+	/**
+	 * The direct buffers the selector clients share the frames of a broadcast in.
+	 */
+	private BufferPool framePool;
 
 	/**
 	 * Constructor.
@@ -58,12 +115,26 @@ public class ServerConnection extends Connection {
 		
 		// Set the connection information.
 		this.connectionInfoPack = connectionInfoPack;
+		this.bufferPool = new BufferPool(this.connectionInfoPack.getFlushBytes(), MAX_POOLED_BUFFERS);
+		this.framePool 	= new BufferPool(FRAME_BUFFER_SIZE, MAX_POOLED_FRAME_BUFFERS, true);
 		
 		// Try to create the server socket.
 		this.establishConnection();
 		
-		// Start the thread that persists things in Data Base.
-		PersistenceHandler.getInstance().start();
+		// The last messages of each channel, replayed to the clients that join.
+		ServerRoom.getInstance().setRecentHistoryCapacity(this.connectionInfoPack.getRecentHistoryCapacity());
+		
+		// Logins and logouts are told as deltas, gathered for a short window.
+		ServerRoom.getInstance().setPresenceCoalescer(new PresenceCoalescer(this.connectionInfoPack.getPresenceWindowMillis()));
+		
+		// What the server is doing, for whoever watches.
+		this.startMetrics();
+		
+		// Start the thread that persists things in Data Base. On a cold start,
+		// the last messages of the default channel come from there.
+		if (this.connectionInfoPack.isPersistenceEnabled() && PersistenceHandler.getInstance().start()) {
+			this.loadRecentHistory(ServerRoom.getInstance().getChannel(ChatMessage.DEFAULT_CHANNEL).getRecentHistory());
+		}
 		
 		// Go.
 		this.isConnectionOpened = true;
@@ -83,6 +154,11 @@ public class ServerConnection extends Connection {
 				
 			} catch (IOException e) {
 				
+				// The server socket has been closed, the server is going down.
+				if (!this.isConnectionOpened) {
+					break;
+				}
+				
 				String message = ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorOccurredWhenWaitingForAConnection");
 				
 				// Failed.
@@ -90,26 +166,24 @@ public class ServerConnection extends Connection {
 
 				// Let this one down but keep on with others.
 				continue;
-				
-			} 
 
-			// Shout the server if the connection is no longer opened.
-			if(!this.isConnectionOpened) {
+			}
+
+			// Accepted just as the server is going down.
+			if (!this.isConnectionOpened) {
 				// bye-bye.
-				this.stopServer();
+				socket.close();
 				break;
 			}
 
 			try {
 
-				// {@link ServerHandlerThread} that is about to handle the new client.
-				ServerHandlerThread client = new ServerHandlerThread(socket);
-
-				// Save it in the ArrayList.
-				ServerRoom.getInstance().addClient(client);
-
-				// Start the thread.
-				client.start();
+				// Hand the new client over to the chosen transport.
+				if (this.selectorLoops != null) {
+					this.acceptSelectorClient(socket);
+				} else {
+					this.acceptBlockingClient(socket);
+				}
 
 			} catch (IOException e) {
 
@@ -125,68 +199,274 @@ public class ServerConnection extends Connection {
 	}
 	
 	/**
-	 * @see assistant.connection.Connection.stop()
-	 * 
-	 * @throws IOException if an I/O error occurs when creating the socket or, 
-	 * 					   if the IP address of the host could not be determined.
+	 * Serve the metrics on their port, and write them to the log, as configured.
+	 * A port that can not be taken does not keep the chat from starting.
 	 */
-	public void stop() throws IOException {
-
-		// Allow user operation only if a connection has already been
-		// established.
-		if (this.serverSocket != null && this.connectionInfoPack != null) {
-			
-			// Connection will be closed. The loop will be stopped.
-			this.isConnectionOpened = false;
-			
-			// Stop the thread that persists things in Data Base.
-			PersistenceHandler.getInstance().stop();
-
-			// Mock-up a connection to the server as a client so the thread that
-			// is waiting for a new socket will pass the accept method, 
-			// "Socket socket = serverSocket.accept();", and now the next 
-			// statement is the checking for the 'keepGoing'.
-			// As the 'keepGoing' is now set to false, it will exit.
-			new Socket("localhost", this.connectionInfoPack.getPortNumber());
+	private void startMetrics() {
+		
+		ServerMetrics.registerRoomMetrics();
+		
+		if (this.connectionInfoPack.getMetricsPort() > 0) {
+			try {
+				this.metricsEndpoint = new MetricsEndpoint(this.connectionInfoPack.getMetricsPort());
+				this.metricsEndpoint.start();
+				this.logger.warn(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("MetricsServedOnPort"),
+						String.valueOf(this.connectionInfoPack.getMetricsPort())));
+			} catch (IOException e) {
+				this.logger.error(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("FailedToServeMetrics"),
+						String.valueOf(this.connectionInfoPack.getMetricsPort())), e);
+			}
+		}
+		
+		if (this.connectionInfoPack.getMetricsLogIntervalMillis() > 0) {
+			this.metricsReporter = new MetricsReporter(this.connectionInfoPack.getMetricsLogIntervalMillis());
 		}
 	}
-
+	
 	/**
-	 * Tries to to create the server socket. If the port number is already
-	 * occupied, then the connection will be interrupted.
+	 * Stop serving and writing the metrics.
+	 */
+	private void stopMetrics() {
+		if (this.metricsEndpoint != null) {
+			try {
+				this.metricsEndpoint.stopEndpoint();
+			} catch (IOException e) {
+				// Not much we can do.
+			}
+			this.metricsEndpoint = null;
+		}
+		if (this.metricsReporter != null) {
+			this.metricsReporter.stop();
+			this.metricsReporter = null;
+		}
+	}
+	
+	/**
+	 * Fill the recent history with the last messages of the DATA BASE, so the
+	 * first clients get a replay too. Only done once, at start : afterwards
+	 * the recent history is kept up to date in memory. The messages get ids of
+	 * this run, so a client that resumes from an earlier run is replayed by
+	 * the time of its last message.
 	 * 
-	 * @throws IOException If an I/O error occurs when opening the socket.
+	 * @param recentHistory The recent history to fill.
 	 */
-	private void establishConnection() throws IOException {
-		this.serverSocket = new ServerSocket(this.connectionInfoPack.getPortNumber());
+	private void loadRecentHistory(RecentHistory recentHistory) {
+		
+		// Nothing is kept.
+		if (recentHistory.getCapacity() == 0) {
+			return;
+		}
+		
+		for (HistoryEntry entry : Persistence.getInstance().fetchLastMessages(recentHistory.getCapacity())) {
+			long timestamp = entry.getTime() != null ? entry.getTime().getTime() : System.currentTimeMillis();
+			recentHistory.add(new EncodedMessage(
+					MessageHandler.getInstance().createMessage(MessageType.MESSAGE, entry.getUsername(), entry.getMessage(), timestamp)));
+		}
 		
 		String message = MessageFormat.format(
-				ResourceBundleHandler.getInstance().getResourceBundle().getString("ServerWaitingForClientsOnPort"),
-				this.connectionInfoPack.getPortNumber());
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("RecentHistoryLoaded"),
+				recentHistory.size());
 		
 		this.logger.warn(message);
 	}
+	
+	/**
+	 * The new client is handled by a {@link ServerHandlerThread} of its own.
+	 * 
+	 * @param socket 	   The socket of the new client.
+	 * 
+	 * @throws IOException If an error occurred when creating the streams.
+	 */
+	private void acceptBlockingClient(Socket socket) throws IOException {
+		
+		// {@link ServerHandlerThread} that is about to handle the new client.
+		ServerHandlerThread client = new ServerHandlerThread(socket, this.createOutboundQueue(),
+				this.connectionInfoPack.getThreadMode(), this.bufferPool, this.connectionInfoPack.getFlushIntervalMillis());
 
+		// Save it in the ArrayList.
+		ServerRoom.getInstance().addClient(client);
+
+		// Start the thread.
+		client.start();
+	}
+	
 	/**
+	 * The new client is handed over to one of the {@link SelectorLoop}s.
 	 * 
-	 * @throws InterruptedException If any thread has interrupted the current thread. The
-	 *				                interrupted status of the current thread is cleared when this
-	 *				                exception is thrown.
-	 * @throws IOException 			If an I/O error occurs when opening the socket, or 
-	 * 								if an I/O error has occurred while closing the connections.
+	 * @param socket 	   The socket of the new client.
+	 * 
+	 * @throws IOException If the channel could not be switched to non-blocking mode.
+	 */
+	private void acceptSelectorClient(Socket socket) throws IOException {
+		
+		// Round-robin between the loops.
+		SelectorLoop selectorLoop = this.selectorLoops[this.nextSelectorLoop];
+		this.nextSelectorLoop = (this.nextSelectorLoop + 1) % this.selectorLoops.length;
+		
+		// {@link SelectorClient} that is about to handle the new client.
+		SelectorClient client = new SelectorClient(socket.getChannel(), selectorLoop, this.createOutboundQueue(),
+				this.connectionInfoPack.getFlushBytes(), this.framePool);
+		
+		// Save it in the ArrayList.
+		ServerRoom.getInstance().addClient(client);
+		
+		// Let the loop serve it.
+		selectorLoop.register(client);
+	}
+	
+	/**
+	 * Returns a new outbound queue, bounded and ruled as configured.
+	 * 
+	 * @return a new outbound queue.
+	 */
+	private OutboundQueue createOutboundQueue() {
+		return new OutboundQueue(this.connectionInfoPack.getOutboundQueueCapacity(), this.connectionInfoPack.getOverflowPolicy());
+	}
+	
+	/**
+	 * Shut the server down in order, within the shutdown time : no more
+	 * clients are accepted, the clients are told, what is queued for them is
+	 * written, their threads are waited for, then the messages not yet in the
+	 * DATA BASE are written, and the connections with it closed. Three
+	 * quarters of the time go to the clients, the rest is kept for the DATA
+	 * BASE, so a client that does not read can not make the messages get lost.
+	 * 
+	 * @see assistant.connection.Connection.stop()
+	 * 
+	 * @throws IOException if an I/O error has occurred while closing the connections.
 	 */
-	private void stopServer() throws IOException, InterruptedException {
+	public synchronized void stop() throws IOException {
+
+		// Allow user operation only if a connection has already been
+		// established, and only once.
+		if (this.serverSocket == null || this.connectionInfoPack == null || !this.isConnectionOpened) {
+			return;
+		}
+		
 		// bye
 		String message = ResourceBundleHandler.getInstance().getResourceBundle().getString("ServerWillShutDown");
 		this.logger.warn(message);
 		
+		// The whole shutdown is bounded.
+		long start = System.currentTimeMillis();
+		long timeoutMillis = Math.max(0, this.connectionInfoPack.getShutdownTimeoutMillis());
+		
 		/*
 		 * 
-		 * Server is shouted down
+		 * #1 
+		 * No more clients. The thread waiting for a new socket fails out of
+		 * the accept method, sees the connection is no longer opened, and exits.
 		 * 
 		 */
-
-		ServerRoom.getInstance().removeAllClients();
+		this.isConnectionOpened = false;
 		this.serverSocket.close();
+		
+		/*
+		 * 
+		 * #2 
+		 * The last presence deltas, then tell everybody.
+		 * 
+		 */
+		ServerRoom.getInstance().getPresenceCoalescer().stop();
+		ServerRoom.getInstance().broadcast(MessageHandler.getInstance().createMessage(MessageType.LOGOUT,
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("ServerUser"), message));
+		
+		try {
+			
+			/*
+			 * 
+			 * #3 
+			 * Write what is queued for the clients, then close them and wait for their threads.
+			 * 
+			 */
+			int undrainedClients = ServerRoom.getInstance().removeAllClients(timeoutMillis * 3 / 4);
+			if (undrainedClients > 0) {
+				this.logger.warn(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("ClientsNotDrained"),
+						undrainedClients));
+			}
+			
+			// Stop the loops, if any.
+			if (this.selectorLoops != null) {
+				for (SelectorLoop selectorLoop : this.selectorLoops) {
+					selectorLoop.stopLoop();
+				}
+				for (SelectorLoop selectorLoop : this.selectorLoops) {
+					selectorLoop.join(Math.max(1, start + timeoutMillis - System.currentTimeMillis()));
+				}
+				this.selectorLoops = null;
+			}
+			
+			/*
+			 * 
+			 * #4 
+			 * Write the messages not yet in the DATA BASE, in the time left.
+			 * 
+			 */
+			PersistenceHandler.getInstance().stop();
+			if (!PersistenceHandler.getInstance().awaitTermination(Math.max(1, start + timeoutMillis - System.currentTimeMillis()))) {
+				this.logger.warn(ResourceBundleHandler.getInstance().getResourceBundle().getString("PersistenceNotDrained"));
+			}
+			
+		} catch (InterruptedException e) {
+			// Asked to hurry : whatever is left is closed right away.
+			Thread.currentThread().interrupt();
+			ServerRoom.getInstance().closeAllClients();
+			PersistenceHandler.getInstance().stop();
+		}
+		
+		// Written, or given up on : the connections with the DATA BASE are closed either way.
+		PersistenceHandler.getInstance().closeConnection();
+		
+		// Nothing left to watch.
+		this.stopMetrics();
+		
+		this.logger.warn(MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("ServerStopped"),
+				String.valueOf(System.currentTimeMillis() - start)));
+	}
+
+	/**
+	 * Tries to to create the server socket. If the port number is already
+	 * occupied, then the connection will be interrupted.
+	 * 
+	 * @throws IOException If an I/O error occurs when opening the socket.
+	 */
+	private void establishConnection() throws IOException {
+		
+		if (this.connectionInfoPack.getTransportMode() == TransportMode.SELECTOR) {
+			
+			// The accepting stays blocking, only the clients' channels are
+			// non-blocking. Sockets accepted through the channel's socket have a
+			// channel of their own.
+			ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+			this.serverSocket = serverSocketChannel.socket();
+			this.serverSocket.bind(new InetSocketAddress(this.connectionInfoPack.getPortNumber()));
+			
+			// Start the loops.
+			this.selectorLoops = new SelectorLoop[Math.max(1, this.connectionInfoPack.getSelectorThreads())];
+			this.nextSelectorLoop = 0;
+			for (int i = 0; i < this.selectorLoops.length; i++) {
+				this.selectorLoops[i] = new SelectorLoop("Selector-Loop-" + i);
+				this.selectorLoops[i].start();
+			}
+			
+		} else {
+			this.serverSocket = new ServerSocket(this.connectionInfoPack.getPortNumber());
+			this.selectorLoops = null;
+			
+			// Asked for, but not there.
+			if (this.connectionInfoPack.getThreadMode() == ThreadMode.VIRTUAL && !ThreadMode.isVirtualAvailable()) {
+				this.logger.warn(ResourceBundleHandler.getInstance().getResourceBundle().getString("VirtualThreadsUnavailable"));
+			}
+		}
+		
+		String message = MessageFormat.format(
+				ResourceBundleHandler.getInstance().getResourceBundle().getString("ServerWaitingForClientsOnPort"),
+				this.connectionInfoPack.getPortNumber());
+		
+		this.logger.warn(message);
 	}
 }
@@ -0,0 +1,316 @@
+package server.connection;
+
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import assistant.handler.Handler;
+import assistant.i18n.ResourceBundleHandler;
+import assistant.message.ChatMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
+import assistant.message.rooms.arrivals.LoginMessagesRoom;
+import assistant.message.rooms.arrivals.LogoutMessagesRoom;
+import assistant.message.rooms.arrivals.NormalMessagesRoom;
+import assistant.message.rooms.arrivals.WhoisinMessagesRoom;
+import server.persistence.PersistenceHandler;
+
+/**
+ * {@link ServerHandler}. The server side behavior for each message type. It is
+ * shared by every transport, so a {@link ServerHandlerThread} and a
+ * {@link SelectorClient} react the same way.
+ * 
+ * @author costi.dumitrescu
+ */
+public class ServerHandler implements Handler {
+	
+	/**
+	 * The longest name a channel can have.
+	 */
+	public static final int MAX_CHANNEL_NAME_LENGTH = 64;
+	
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(ServerHandler.class);
+	
+	/**
+	 * The client whose messages are handled.
+	 */
+	private ServerClient client;
+	
+	/**
+	 * <code>true</code> if the thread handling the messages serves only this
+	 * client, and may wait a little for the persistence. A selector thread
+	 * serves many, it never waits.
+	 */
+	private boolean mayBlock;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param client   The client whose messages are handled.
+	 * @param mayBlock <code>true</code> if the thread handling the messages serves only this client.
+	 */
+	public ServerHandler(ServerClient client, boolean mayBlock) {
+		this.client   = client;
+		this.mayBlock = mayBlock;
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLogin(String, String)
+	 */
+	public void handleLogin(String user, String message) throws IOException {
+		
+		// Log the message - Give a sign a login message has arrived.
+		LoginMessagesRoom.getInstance().addMessage(user + " : " + message);
+		
+		// As this is the server side, and moreover this is the first chat between both sides, this handler doesn't know the name of the user.
+		// After the client has been accepted, save it's name, and show it what was said before it came.
+		ServerRoom.getInstance().login(this.client, user);
+		
+		
+		/*
+		 * 
+		 * #1 
+		 * Broadcast the message to all others, to say 'user : logged in'
+		 * 
+		 */
+		ChatMessage loginMessage = MessageHandler.getInstance().createMessage(MessageType.LOGIN, user, message);
+		ServerRoom.getInstance().broadcast(loginMessage);
+		
+		
+		/*
+		 * 
+		 * #2 
+		 * Send a WHOISIN message to the new client only, with the whole list of users.
+		 * The others have been told about the new one, in a presence delta.
+		 * 
+		 */
+		ChatMessage whoisinMessage = MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, ServerRoom.getInstance().listAllClients().toString());
+		this.client.send(whoisinMessage);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleWhoIsIn(String, String)
+	 */
+	public void handleWhoIsIn(String user, String message) throws IOException {
+		
+		// Log the message - Give a sign a who-is-in message has arrived.
+		WhoisinMessagesRoom.getInstance().addMessage(message);
+		
+		/*
+		 * 
+		 * #1 
+		 * Should send the list of clients to the current asking client.
+		 * 
+		 */
+		ChatMessage whoisinMessage = MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, ServerRoom.getInstance().listAllClients().toString());
+		this.client.send(whoisinMessage);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleMessage(String, String, String)
+	 */
+	public void handleMessage(String user, String channel, String message) throws IOException {
+		
+		// Only the members talk in a channel.
+		String name = this.toChannelName(channel);
+		Channel target = name != null ? ServerRoom.getInstance().getChannel(name) : null;
+		if (target == null || !target.isMember(this.client)) {
+			this.logger.warn(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("NotAMemberOfTheChannel"), user, channel));
+			return;
+		}
+		
+		// The message, stamped once for everyone.
+		ChatMessage chatMessage = MessageHandler.getInstance().createChannelMessage(MessageType.MESSAGE, user, this.toWireChannel(name), message);
+		
+		// Log the message so they could be stored in the Data Base.
+		// Notify the the {@link PersistentHandler} to do so. Only the default
+		// channel is stored, the others live in their recent history. Nobody
+		// would ever take them if the DATA BASE is not there. Only a thread
+		// of its own waits for room, if the DATA BASE is behind.
+		if (ChatMessage.DEFAULT_CHANNEL.equals(name) && PersistenceHandler.getInstance().isRunning()) {
+			if (this.mayBlock) {
+				NormalMessagesRoom.getInstance().addMessage(chatMessage, NormalMessagesRoom.OVERFLOW_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} else {
+				NormalMessagesRoom.getInstance().addMessage(chatMessage);
+			}
+		}
+		
+		/*
+		 * 
+		 * #1
+		 * Broadcast the message to all members of the channel.
+		 * 
+		 */
+		ServerRoom.getInstance().broadcast(chatMessage);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLogout(String, String)
+	 */
+	public void handleLogout(String user, String message) throws IOException {
+
+		// Log the message - Give a sign a logout message has arrived.
+		LogoutMessagesRoom.getInstance().addMessage(user + " : " + message);
+		
+		// Stop serving this client, and take it out of the room, so the
+		// following broadcasts don't reach a closed connection.
+		ServerRoom.getInstance().removeClient(this.client);
+
+		/*
+		 * 
+		 * #1 
+		 * Should broadcast the message to all others, to say 'user : logged out'
+		 *
+		 */
+		ChatMessage logoutMessage = MessageHandler.getInstance().createMessage(MessageType.LOGOUT, user, message);
+		ServerRoom.getInstance().broadcast(logoutMessage);
+		
+		// The others are told the user has left, in a presence delta, once it is out of the room.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoin(String, String)
+	 */
+	public void handleJoin(String user, String channel) throws IOException {
+		
+		// For safety.
+		String name = this.toChannelName(channel);
+		if (name == null || !ServerRoom.getInstance().joinChannel(this.client, name)) {
+			return;
+		}
+		
+		/*
+		 * 
+		 * #1 
+		 * Tell the members, the new one too, to say 'user joined the channel'
+		 * 
+		 */
+		ChatMessage joinMessage = MessageHandler.getInstance().createChannelMessage(MessageType.JOIN, user, this.toWireChannel(name), null);
+		ServerRoom.getInstance().broadcast(joinMessage);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeave(String, String)
+	 */
+	public void handleLeave(String user, String channel) throws IOException {
+		
+		// For safety.
+		String name = this.toChannelName(channel);
+		if (name == null || !ServerRoom.getInstance().leaveChannel(this.client, name)) {
+			return;
+		}
+		
+		/*
+		 * 
+		 * #1 
+		 * Tell the members left, and the one leaving, to say 'user left the channel'
+		 * 
+		 */
+		ChatMessage leaveMessage = MessageHandler.getInstance().createChannelMessage(MessageType.LEAVE, user, this.toWireChannel(name), null);
+		ServerRoom.getInstance().broadcast(leaveMessage);
+		this.client.send(leaveMessage);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleList(String, String)
+	 */
+	public void handleList(String user, String channels) throws IOException {
+		
+		/*
+		 * 
+		 * #1 
+		 * Should send the list of channels to the current asking client.
+		 * 
+		 */
+		ChatMessage listMessage = MessageHandler.getInstance().createMessage(MessageType.LIST, user, ServerRoom.getInstance().listChannels().toString());
+		this.client.send(listMessage);
+	}
+	
+	/**
+	 * @see assistant.handler.Handler.handleJoined(String, String)
+	 */
+	public void handleJoined(String user, String users) {
+		// Nothing, the server is the one telling.
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeft(String, String)
+	 */
+	public void handleLeft(String user, String users) {
+		// Nothing, the server is the one telling.
+	}
+	
+	/**
+	 * @see assistant.handler.Handler.handleResume(String, String)
+	 */
+	public void handleResume(String user, String message) throws IOException {
+		
+		// Log the message - Give a sign a login message has arrived.
+		LoginMessagesRoom.getInstance().addMessage(user + " : " + ResourceBundleHandler.getInstance().getResourceBundle().getString("USER_BACK"));
+		
+		// The last message the client has got, if any.
+		long sequenceId = 0;
+		long timestamp = 0;
+		String[] lastMessage = message != null ? message.split(MessageHandler.RESUME_SEPARATOR) : new String[0];
+		if (lastMessage.length == 2) {
+			try {
+				sequenceId = Long.parseLong(lastMessage[0]);
+				timestamp = Long.parseLong(lastMessage[1]);
+			} catch (NumberFormatException e) {
+				// Then it gets all of them, like a new one.
+			}
+		}
+		
+		// Back in the room, with only what it has missed.
+		ServerRoom.getInstance().resume(this.client, user, sequenceId, timestamp);
+		
+		/*
+		 * 
+		 * #1 
+		 * Send a WHOISIN message to the client only, with the whole list of users :
+		 * some could have come and gone meanwhile. Nothing is broadcast, the
+		 * others are told the user is back in a presence delta, if they ever
+		 * knew it was gone.
+		 * 
+		 */
+		ChatMessage whoisinMessage = MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, ServerRoom.getInstance().listAllClients().toString());
+		this.client.send(whoisinMessage);
+	}
+	
+	/**
+	 * Returns the name of a channel, as given by a client.
+	 * 
+	 * @param channel The channel, as given by the client. <code>null</code> for the default one.
+	 * 
+	 * @return 		  The name, or <code>null</code> if it can not be the name of a channel.
+	 */
+	private String toChannelName(String channel) {
+		if (channel == null) {
+			return ChatMessage.DEFAULT_CHANNEL;
+		}
+		String name = channel.trim();
+		// The names are listed separated by comma.
+		if (name.isEmpty() || name.length() > MAX_CHANNEL_NAME_LENGTH || name.indexOf(',') >= 0) {
+			return null;
+		}
+		return name;
+	}
+	
+	/**
+	 * Returns the channel as it is sent : <code>null</code> for the default
+	 * one, so the peers that know nothing about channels are not bothered.
+	 * 
+	 * @param name The name of the channel.
+	 * 
+	 * @return 	   The channel as it is sent.
+	 */
+	private String toWireChannel(String name) {
+		return ChatMessage.DEFAULT_CHANNEL.equals(name) ? null : name;
+	}
+}
@@ -1,28 +1,27 @@
 package server.connection;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.ObjectStreamConstants;
 import java.net.Socket;
 import java.text.MessageFormat;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
-import org.w3c.dom.DOMException;
 
+import assistant.connection.ThreadMode;
+import assistant.handler.BufferPool;
 import assistant.handler.HandlerThread;
 import assistant.i18n.ResourceBundleHandler;
 import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
 import assistant.message.MessageHandler;
-import assistant.message.MessageType;
-import assistant.message.rooms.arrivals.LoginMessagesRoom;
-import assistant.message.rooms.arrivals.LogoutMessagesRoom;
-import assistant.message.rooms.arrivals.NormalMessagesRoom;
-import assistant.message.rooms.arrivals.WhoisinMessagesRoom;
 
 /**
  * {@link ServerHandlerThread} is a {@link HandlerThread} with additional tasks. 
  */
-public class ServerHandlerThread extends HandlerThread {
+public class ServerHandlerThread extends HandlerThread implements ServerClient {
 
 	/**
 	 * Logger for logging.
@@ -30,13 +29,251 @@ public class ServerHandlerThread extends HandlerThread {
 	private Logger logger = Logger.getLogger(ServerHandlerThread.class);
 	
 	/**
-	 * Constructor
+	 * The server side behavior for each message type.
+	 */
+	private ServerHandler serverHandler;
+	
+	/**
+	 * Messages waiting to be written to the client.
+	 */
+	private OutboundQueue outboundQueue;
+	
+	/**
+	 * The bytes written before they are flushed, at most.
+	 */
+	private int flushBytes;
+	
+	/**
+	 * How long a message written may wait to be flushed, in nanoseconds.
+	 */
+	private long flushIntervalNanos;
+	
+	/**
+	 * Reads the messages of the client. Runs {@link #run()}.
+	 */
+	private Thread readerThread;
+	
+	/**
+	 * Writes the queued messages to the socket, so nobody else ever blocks on it.
+	 * Started by the reader, once the streams are opened.
+	 */
+	private Thread writerThread;
+	
+	/**
+	 * The stream of the socket, able to peek.
+	 */
+	private BufferedInputStream inputStream;
+	
+	/**
+	 * <code>true</code> once the first bytes have told the kind of connection.
+	 */
+	private volatile boolean isStreamKnown;
+	
+	/**
+	 * Constructor. Old clients talk through a continuous object stream, new
+	 * ones through frames, so the first bytes decide. They are only read by
+	 * the reader, once started : a client that sends nothing holds up nobody
+	 * but its own reader. The codec is the one the client logs in with.
 	 * 
-	 * @param socket   The socket to read and write to.
+	 * @param socket   			  The socket to read and write to.
+	 * @param outboundQueue 	  The messages waiting to be written to the client.
+	 * @param threadMode 		  The kind of threads the reading and the writing run on.
+	 * @param bufferPool 		  The buffers the messages are written into. Their size is the
+	 * 							  bytes written before they are flushed, at most.
+	 * @param flushIntervalMillis How long a message written may wait to be flushed, at most.
 	 */
-	public ServerHandlerThread(Socket socket) throws IOException {
-		// Delegate to super constructor.
-		super(socket, null);
+	public ServerHandlerThread(Socket socket, OutboundQueue outboundQueue, ThreadMode threadMode,
+			BufferPool bufferPool, long flushIntervalMillis) throws IOException {
+		// Delegate to super constructor. The streams are opened by the reader.
+		super(socket, null, null, bufferPool);
+		this.inputStream 		= new BufferedInputStream(socket.getInputStream());
+		// The behavior is shared with the other transports.
+		this.serverHandler 		= new ServerHandler(this, true);
+		this.outboundQueue 		= outboundQueue;
+		this.flushBytes 		= bufferPool.getBufferSize();
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushIntervalMillis));
+		this.readerThread  = threadMode.newThread("Client-Reader-" + this.hashCode(), this);
+		this.writerThread  = threadMode.newThread("Client-Writer-" + this.hashCode(), new Runnable() {
+			/**
+			 * @see java.lang.Runnable.run()
+			 */
+			@Override
+			public void run() {
+				ServerHandlerThread.this.writeQueuedMessages();
+			}
+		});
+	}
+	
+	/**
+	 * Peeks at the first bytes of the stream.
+	 * 
+	 * @param inputStream  The stream, able to peek.
+	 * 
+	 * @return 			   <code>true</code> if the stream starts like a Java object stream.
+	 * 
+	 * @throws IOException If the stream could not be read.
+	 */
+	private static boolean isObjectStream(BufferedInputStream inputStream) throws IOException {
+		inputStream.mark(2);
+		int first = inputStream.read();
+		int second = inputStream.read();
+		inputStream.reset();
+		if (first < 0 || second < 0) {
+			throw new EOFException();
+		}
+		return (short) ((first << 8) | second) == ObjectStreamConstants.STREAM_MAGIC;
+	}
+
+	/**
+	 * Start the reading, on a thread of the chosen kind; the reader starts the
+	 * writing, once it knows the kind of connection. This thread itself is
+	 * never started : it only holds the connection, and lends its
+	 * {@link #run()} to the reader.
+	 * 
+	 * @see java.lang.Thread.start()
+	 */
+	@Override
+	public synchronized void start() {
+		this.readerThread.start();
+	}
+	
+	/**
+	 * Write the queued messages, one after the other, until the client is
+	 * stopped. They are flushed to the socket once nothing is left to write,
+	 * so a burst of broadcasts goes in a few large writes instead of one per
+	 * message; under a burst that does not end, also once enough bytes are
+	 * waiting, or once the oldest one has waited long enough.
+	 */
+	private void writeQueuedMessages() {
+		try {
+			// The messages written since the last flush, and when they have to be flushed at the latest.
+			int unflushedMessages = 0;
+			long flushDeadlineNanos = 0;
+			
+			// Loop until the condition is no longer met.
+			while (this.isConnectionOpened) {
+				EncodedMessage message = this.outboundQueue.poll();
+				if (message == null) {
+					// Nothing left to write : what has been written goes now.
+					if (unflushedMessages > 0) {
+						this.flushWrittenMessages();
+						unflushedMessages = 0;
+					}
+					message = this.outboundQueue.take();
+				}
+				if (unflushedMessages == 0) {
+					flushDeadlineNanos = System.nanoTime() + this.flushIntervalNanos;
+				}
+				this.write(message);
+				// Copied in the buffer : the message is no longer needed.
+				message.release();
+				unflushedMessages++;
+				ServerMetrics.messageOut(message.getChatMessage());
+				
+				// The burst goes on, but enough is waiting.
+				if (this.getUnflushedBytes() >= this.flushBytes || System.nanoTime() - flushDeadlineNanos >= 0) {
+					this.flushWrittenMessages();
+					unflushedMessages = 0;
+				}
+			}
+		} catch (InterruptedException e) {
+			// The client has been stopped.
+		} catch (IOException | RuntimeException e) {
+			// The socket has been closed under the writer.
+			if (!this.isConnectionOpened) {
+				return;
+			}
+			this.logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread"),
+					this.hashCode()), e);
+			// The writer has terminated, so does the client.
+			try {
+				ServerRoom.getInstance().removeClient(this);
+			} catch (IOException ioe) {
+				this.logger.error(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionRemovingClient"),
+						this.hashCode()), ioe);
+			}
+		}
+	}
+
+	/**
+	 * Flush the messages written so far to the socket. Only then are they written.
+	 * 
+	 * @throws IOException Any exception thrown by the socket.
+	 */
+	private void flushWrittenMessages() throws IOException {
+		int flushedMessages = this.flush();
+		this.outboundQueue.written(flushedMessages);
+		ServerMetrics.flushed(flushedMessages);
+	}
+
+	/**
+	 * @see server.connection.ServerClient.send(ChatMessage)
+	 */
+	@Override
+	public void send(ChatMessage message) throws IOException {
+		if (!this.offer(new EncodedMessage(message))) {
+			ServerRoom.getInstance().removeClient(this);
+		}
+	}
+
+	/**
+	 * Queue the message for the writer thread. Never blocks the caller.
+	 * Nothing is queued for a client that has not said a word yet : it is
+	 * not known how to talk to it, and it has not logged in anyway.
+	 * 
+	 * @see server.connection.ServerClient.offer(EncodedMessage)
+	 */
+	@Override
+	public boolean offer(EncodedMessage message) {
+		// Nobody to send to, yet or anymore.
+		if (!this.isConnectionOpened || !this.isStreamKnown) {
+			return true;
+		}
+		return this.outboundQueue.offer(message);
+	}
+
+	/**
+	 * @see server.connection.ServerClient.isObjectStream()
+	 */
+	@Override
+	public boolean isObjectStream() {
+		return !this.isFramed;
+	}
+
+	/**
+	 * @see server.connection.ServerClient.getOutboundQueue()
+	 */
+	@Override
+	public OutboundQueue getOutboundQueue() {
+		return this.outboundQueue;
+	}
+
+	/**
+	 * Stop the writer thread too. Only the socket is closed : the writer could
+	 * be blocked in a write, holding the output stream, on a client that does
+	 * not read anymore. Closing the socket releases it, the streams go with it.
+	 * 
+	 * @see assistant.handler.HandlerThread.stopClient()
+	 */
+	@Override
+	public void stopClient() throws IOException {
+		this.isConnectionOpened = false;
+		this.outboundQueue.clear();
+		this.writerThread.interrupt();
+		this.socket.close();
+	}
+
+	/**
+	 * @see server.connection.ServerClient.awaitTermination(long)
+	 */
+	@Override
+	public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		this.readerThread.join(Math.max(1, timeoutMillis));
+		this.writerThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+		return !this.readerThread.isAlive() && !this.writerThread.isAlive();
 	}
 
 	/**
@@ -47,13 +284,25 @@ public class ServerHandlerThread extends HandlerThread {
 		
 		// WORK HARD.
 		try {
+			// The first bytes tell the kind of connection, then the writing can start.
+			this.openStreams(this.inputStream, !isObjectStream(this.inputStream));
+			this.isStreamKnown = true;
+			if (this.isConnectionOpened) {
+				this.writerThread.start();
+			}
+			
 			// Loop until the condition is no longer met. 
 			while (ServerHandlerThread.this.isConnectionOpened) {
-				ChatMessage message = (ChatMessage) this.objectInputStream.readObject();
+				ChatMessage message = this.receive();
+				ServerMetrics.messageIn(message);
 				// Ask the {@link MessageHandler} to handle the message.
 				MessageHandler.getInstance().handleMessage(this, message);
 			}
-		} catch (DOMException | ClassNotFoundException | IOException | ParserConfigurationException e) {
+		} catch (ClassNotFoundException | IOException | RuntimeException e) {
+			// The socket has been closed under the reader : the client has been stopped.
+			if (!this.isConnectionOpened) {
+				return;
+			}
 			ServerHandlerThread.this.logger.error(MessageFormat.format(
 					ResourceBundleHandler.getInstance().getResourceBundle().getString("ExceptionInClientThread"),
 					this.hashCode()), e);
@@ -72,113 +321,70 @@ public class ServerHandlerThread extends HandlerThread {
 	/**
 	 * @see assistant.handler.Handler.handleLogin(String, String)
 	 */
-	public void handleLogin(String user, String message) throws IOException, ParserConfigurationException {
-		
-		// Log the message - Give a sign a login message has arrived.
-		synchronized (LoginMessagesRoom.getInstance()) {
-			LoginMessagesRoom.getInstance().addMessage(user + " : " + message);
-			LoginMessagesRoom.getInstance().notify();
-		}
-		
-		// As this is the server side, and moreover this is the first chat between both sides, this handler doesn't know the name of the user.
-		// After the client has been accepted, save it's name.
-		this.setUser(user);
-		
-		
-		/*
-		 * 
-		 * #1 
-		 * Broadcast the message to all others, to say 'user : logged in'
-		 * 
-		 */
-		ChatMessage loginMessage = MessageHandler.getInstance().createMessage(MessageType.LOGIN, user, message);
-		ServerRoom.getInstance().broadcast(loginMessage);
-		
-		
-		/*
-		 * 
-		 * #2 
-		 * Send a WHOISIN message to all clients, to update the list of users with this new one.
-		 * 
-		 */
-		ChatMessage whoisinMessage = MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, ServerRoom.getInstance().listAllClients().toString());
-		ServerRoom.getInstance().broadcast(whoisinMessage);
+	public void handleLogin(String user, String message) throws IOException {
+		this.serverHandler.handleLogin(user, message);
 	}
 
 	/**
 	 * @see assistant.handler.Handler.handleWhoIsIn(String, String)
 	 */
-	public void handleWhoIsIn(String user, String message) throws IOException, ParserConfigurationException {
-		
-		// Log the message - Give a sign a who-is-in message has arrived.
-		synchronized (WhoisinMessagesRoom.getInstance()) {
-			WhoisinMessagesRoom.getInstance().addMessage(message);
-			WhoisinMessagesRoom.getInstance().notify();
-		}
-		
-		/*
-		 * 
-		 * #1 
-		 * Should send the list of clients to the current asking client.
-		 * 
-		 */
-		ChatMessage whoisinMessage = MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, ServerRoom.getInstance().listAllClients().toString());
-		ServerRoom.getInstance().broadcast(whoisinMessage);
+	public void handleWhoIsIn(String user, String message) throws IOException {
+		this.serverHandler.handleWhoIsIn(user, message);
 	}
 
 	/**
-	 * @see assistant.handler.Handler.handleMessage(String, String)
+	 * @see assistant.handler.Handler.handleMessage(String, String, String)
 	 */
-	public void handleMessage(String user, String message) throws IOException, ParserConfigurationException {
-		
-		// Log the message so they could be stored in the Data Base.
-		// Notify the the {@link PersistentHandler} to do so.
-		synchronized (NormalMessagesRoom.getInstance()) {
-			NormalMessagesRoom.getInstance().addMessage(user + " : " + message);
-			NormalMessagesRoom.getInstance().notify();
-		}
-		
-		/*
-		 * 
-		 * #1
-		 * Broadcast the message to all clients.
-		 * 
-		 */
-		ChatMessage chatMessage = MessageHandler.getInstance().createMessage(MessageType.MESSAGE, user, message);
-		ServerRoom.getInstance().broadcast(chatMessage);
+	public void handleMessage(String user, String channel, String message) throws IOException {
+		this.serverHandler.handleMessage(user, channel, message);
 	}
 
 	/**
 	 * @see assistant.handler.Handler.handleLogout(String, String)
 	 */
-	public void handleLogout(String user, String message) throws IOException, ParserConfigurationException {
+	public void handleLogout(String user, String message) throws IOException {
+		this.serverHandler.handleLogout(user, message);
+	}
 
-		// Log the message - Give a sign a logout message has arrived.
-		synchronized (LogoutMessagesRoom.getInstance()) {
-			LogoutMessagesRoom.getInstance().addMessage(user + " : " + message);
-			LogoutMessagesRoom.getInstance().notify();
-		}
-		
-		// Stop this handler thread.
-		this.stopClient();
-
-		/*
-		 * 
-		 * #1 
-		 * Should broadcast the message to all others, to say 'user : logged out'
-		 *
-		 */
-		ChatMessage logoutMessage = MessageHandler.getInstance().createMessage(MessageType.LOGOUT, user, message);
-		ServerRoom.getInstance().broadcast(logoutMessage);
-		
-		
-		/*
-		 * 
-		 * #2
-		 * Should send a WHOISIN message to all others to update the list of users .
-		 * 
-		 */
-		ChatMessage whoisinMessage = MessageHandler.getInstance().createMessage(MessageType.WHOISIN, user, ServerRoom.getInstance().listAllClients().toString());
-		ServerRoom.getInstance().broadcast(whoisinMessage);
-	}
-}
\ No newline at end of file
+	/**
+	 * @see assistant.handler.Handler.handleJoin(String, String)
+	 */
+	public void handleJoin(String user, String channel) throws IOException {
+		this.serverHandler.handleJoin(user, channel);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeave(String, String)
+	 */
+	public void handleLeave(String user, String channel) throws IOException {
+		this.serverHandler.handleLeave(user, channel);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleList(String, String)
+	 */
+	public void handleList(String user, String channels) throws IOException {
+		this.serverHandler.handleList(user, channels);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleJoined(String, String)
+	 */
+	public void handleJoined(String user, String users) {
+		this.serverHandler.handleJoined(user, users);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleLeft(String, String)
+	 */
+	public void handleLeft(String user, String users) {
+		this.serverHandler.handleLeft(user, users);
+	}
+
+	/**
+	 * @see assistant.handler.Handler.handleResume(String, String)
+	 */
+	public void handleResume(String user, String message) throws IOException {
+		this.serverHandler.handleResume(user, message);
+	}
+}
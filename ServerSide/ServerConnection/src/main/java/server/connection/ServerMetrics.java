@@ -0,0 +1,166 @@
+package server.connection;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import assistant.message.ChatMessage;
+import assistant.message.MessageType;
+import assistant.message.rooms.arrivals.NormalMessagesRoom;
+import assistant.metrics.Gauge;
+import assistant.metrics.Histogram;
+import assistant.metrics.MetricsRegistry;
+import assistant.metrics.MetricsSource;
+
+/**
+ * {@link ServerMetrics}. The metrics of the server, looked up once in the
+ * {@link MetricsRegistry}, so the hot paths only pay for an addition.
+ *
+ * @author costi.dumitrescu
+ */
+public final class ServerMetrics {
+
+	/**
+	 * The messages received, by type.
+	 */
+	private static final LongAdder[] MESSAGES_IN = counters("chat_messages_in_total");
+
+	/**
+	 * The messages written to the clients, by type.
+	 */
+	private static final LongAdder[] MESSAGES_OUT = counters("chat_messages_out_total");
+
+	/**
+	 * How long a broadcast takes to queue a message for all its recipients, in nanoseconds.
+	 */
+	static final Histogram BROADCAST_NANOS = MetricsRegistry.getInstance().histogram("chat_broadcast_nanoseconds");
+
+	/**
+	 * The number of messages each write to a client's socket carries.
+	 */
+	private static final Histogram MESSAGES_PER_FLUSH = MetricsRegistry.getInstance().histogram("chat_messages_per_flush");
+
+	/**
+	 * Private constructor. Nothing to instantiate.
+	 */
+	private ServerMetrics() {
+	}
+
+	/**
+	 * Returns a counter for each message type.
+	 *
+	 * @param name The name of the counters.
+	 *
+	 * @return 	   The counters, by the ordinal of the type.
+	 */
+	private static LongAdder[] counters(String name) {
+		MessageType[] messageTypes = MessageType.values();
+		LongAdder[] counters = new LongAdder[messageTypes.length];
+		for (MessageType messageType : messageTypes) {
+			counters[messageType.ordinal()] = MetricsRegistry.getInstance().counter(name + "{type=\"" + messageType + "\"}");
+		}
+		return counters;
+	}
+
+	/**
+	 * Count a message received.
+	 *
+	 * @param message The message.
+	 */
+	static void messageIn(ChatMessage message) {
+		MESSAGES_IN[message.getMessageType().ordinal()].increment();
+	}
+
+	/**
+	 * Count a message written to a client.
+	 *
+	 * @param message The message.
+	 */
+	static void messageOut(ChatMessage message) {
+		MESSAGES_OUT[message.getMessageType().ordinal()].increment();
+	}
+
+	/**
+	 * Count a flush to a client's socket.
+	 *
+	 * @param messages The number of messages flushed at once.
+	 */
+	static void flushed(int messages) {
+		if (messages > 0) {
+			MESSAGES_PER_FLUSH.record(messages);
+		}
+	}
+
+	/**
+	 * Register what is read from the room when the metrics are reported : the
+	 * clients connected, the channels, and the outbound queues. Also the
+	 * average number of messages per flush, which tells how well the writes
+	 * are coalesced, and the messages the persistence could not keep up with.
+	 */
+	static void registerRoomMetrics() {
+
+		MetricsRegistry.getInstance().registerSource("chat_messages_per_flush_avg", new MetricsSource() {
+			/**
+			 * @see assistant.metrics.MetricsSource.appendTo(StringBuilder)
+			 */
+			@Override
+			public void appendTo(StringBuilder out) {
+				MetricsRegistry.appendLine(out, "chat_messages_per_flush_avg", MESSAGES_PER_FLUSH.getMean());
+			}
+		});
+
+		MetricsRegistry.getInstance().registerGauge("chat_clients_connected", new Gauge() {
+			/**
+			 * @see assistant.metrics.Gauge.getValue()
+			 */
+			@Override
+			public long getValue() {
+				return ServerRoom.getInstance().getClientCount();
+			}
+		});
+
+		MetricsRegistry.getInstance().registerGauge("chat_channels", new Gauge() {
+			/**
+			 * @see assistant.metrics.Gauge.getValue()
+			 */
+			@Override
+			public long getValue() {
+				return ServerRoom.getInstance().getChannelCount();
+			}
+		});
+
+		MetricsRegistry.getInstance().registerGauge("chat_messages_not_persisted_total", new Gauge() {
+			/**
+			 * @see assistant.metrics.Gauge.getValue()
+			 */
+			@Override
+			public long getValue() {
+				return NormalMessagesRoom.getInstance().getDroppedMessages();
+			}
+		});
+
+		// The total and the deepest queue, then each client that has something waiting.
+		MetricsRegistry.getInstance().registerSource("chat_outbound_queue_depth", new MetricsSource() {
+			/**
+			 * @see assistant.metrics.MetricsSource.appendTo(StringBuilder)
+			 */
+			@Override
+			public void appendTo(StringBuilder out) {
+				Map<String, Integer> queueDepths = ServerRoom.getInstance().listQueueDepths();
+				long total = 0;
+				long max = 0;
+				for (int depth : queueDepths.values()) {
+					total += depth;
+					max = Math.max(max, depth);
+				}
+				MetricsRegistry.appendLine(out, "chat_outbound_queue_depth_total", total);
+				MetricsRegistry.appendLine(out, "chat_outbound_queue_depth_max", max);
+				for (Map.Entry<String, Integer> queueDepth : queueDepths.entrySet()) {
+					if (queueDepth.getValue() > 0 && queueDepth.getKey() != null) {
+						MetricsRegistry.appendLine(out, "chat_outbound_queue_depth{user=\"" + queueDepth.getKey() + "\"}",
+								queueDepth.getValue());
+					}
+				}
+			}
+		});
+	}
+}
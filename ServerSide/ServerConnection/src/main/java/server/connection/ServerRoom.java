@@ -1,15 +1,41 @@
 package server.connection;
 
 import java.io.IOException;
+import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import assistant.handler.HandlerThread;
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
 import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageHandler;
+import assistant.message.MessageType;
 
 /**
  * {@link ServerRoom} DAO. This singleton holds all clients connected to the server, and
  * has specific methods to handle them.
  * 
+ * The clients are added and removed by the accepting thread and by the
+ * clients' own threads, while others broadcast. The registry is safe for all
+ * of them at once : a broadcast walks a snapshot of the clients, without any
+ * lock, and never sees a half-made change.
+ * 
+ * The clients talk in {@link Channel}s. A message said in a channel only goes
+ * to its members; presence (logins, logouts, who is in) still goes to every
+ * client. Each client joins the default channel as it logs in.
+ * 
+ * Logins and logouts are told as deltas, through a {@link PresenceCoalescer} :
+ * only the newly logged in client gets the whole list of users. The clients
+ * that talk through a continuous object stream, as the older ones did, don't
+ * know the deltas : they still get the whole list each time.
+ * 
  * @author Costi.Dumitrescu
  */
 public class ServerRoom {
@@ -18,18 +44,56 @@ public class ServerRoom {
 	 * {@link ServerRoom} Instance. Singleton purpose.
 	 */
 	private static ServerRoom INSTANCE;
+	
+	/**
+	 * How often the queues are looked at while the server waits for them to be
+	 * written, in milliseconds.
+	 */
+	private static final long DRAIN_POLL_MILLIS = 10;
+	
+	/**
+	 * Logger for logging.
+	 */
+	private Logger logger = Logger.getLogger(ServerRoom.class);
 
 	/**
-	 * The list of all the Clients that are connected to this server.
+	 * The list of all the Clients that are connected to this server. Copied on
+	 * each change, so it can be iterated over without a lock. Clients come and
+	 * go far less often than messages are broadcast.
+	 */
+	private List<ServerClient> clients;
+	
+	/**
+	 * The logged in clients, by user-name.
+	 */
+	private ConcurrentMap<String, ServerClient> clientsByUser;
+	
+	/**
+	 * The channels, by name. The default one is always there; the others go
+	 * away with their last member.
+	 */
+	private ConcurrentMap<String, Channel> channels;
+	
+	/**
+	 * The number of recent messages each channel replays to the members that join.
+	 */
+	private volatile int recentHistoryCapacity;
+	
+	/**
+	 * Tells the clients who has logged in and out.
 	 */
-	private ArrayList<ServerHandlerThread> clients;
+	private volatile PresenceCoalescer presenceCoalescer;
 
 	/**
 	 * Private constructor. Singleton purpose.
 	 */
 	private ServerRoom() {
 		// Initialize the empty clients list.
-		this.clients = new ArrayList<>();
+		this.clients 	   = new CopyOnWriteArrayList<>();
+		this.clientsByUser = new ConcurrentHashMap<>();
+		this.channels 	   = new ConcurrentHashMap<>();
+		this.channels.put(ChatMessage.DEFAULT_CHANNEL, new Channel(ChatMessage.DEFAULT_CHANNEL, 0));
+		this.presenceCoalescer = new PresenceCoalescer(0);
 	}
 
 	/**
@@ -50,7 +114,7 @@ public class ServerRoom {
 	 * 
 	 * @param client The new client to be added in the room.
 	 */
-	public void addClient(ServerHandlerThread client) {
+	public void addClient(ServerClient client) {
 		
 		// TODO - specific behavior before adding the new client.
 		//		- when a user in added in the room, all others have to be informed about this.
@@ -59,6 +123,164 @@ public class ServerRoom {
 		this.clients.add(client);
 	}
 	
+	/**
+	 * Give a client its user-name, once it has logged in, so it can be looked up by it.
+	 * 
+	 * @param client The client.
+	 * @param user   The user-name.
+	 */
+	public void setUser(ServerClient client, String user) {
+		String previousUser = client.getUser();
+		if (previousUser != null) {
+			this.clientsByUser.remove(previousUser, client);
+		}
+		client.setUser(user);
+		if (user != null) {
+			this.clientsByUser.put(user, client);
+		}
+	}
+	
+	/**
+	 * Give a client its user-name as it logs in, and get it in the default
+	 * channel, which replays it the last messages said there. The others are
+	 * told the user has joined.
+	 * 
+	 * @param client The client.
+	 * @param user   The user-name.
+	 */
+	public void login(ServerClient client, String user) {
+		this.setUser(client, user);
+		this.joinChannel(client, ChatMessage.DEFAULT_CHANNEL);
+		this.presenceCoalescer.joined(user);
+	}
+	
+	/**
+	 * Give a client its user-name as it logs in again, after its connection
+	 * was lost, and get it back in the default channel, which replays it only
+	 * the messages said there after the last one it got. A user back within
+	 * the presence window is not even told as gone and back to the others.
+	 * 
+	 * @param client 	 The client.
+	 * @param user   	 The user-name.
+	 * @param sequenceId The sequence id of the last message it got.
+	 * @param timestamp  The time of the last message it got.
+	 */
+	public void resume(ServerClient client, String user, long sequenceId, long timestamp) {
+		this.setUser(client, user);
+		this.channels.get(ChatMessage.DEFAULT_CHANNEL).resume(client, sequenceId, timestamp);
+		this.presenceCoalescer.joined(user);
+	}
+	
+	/**
+	 * Get a client in a channel. The channel is made if there is none by that
+	 * name. The client is replayed the last messages said there.
+	 * 
+	 * @param client The client.
+	 * @param name 	 The name of the channel.
+	 * 
+	 * @return 		 <code>false</code> if the client already was a member.
+	 */
+	public boolean joinChannel(ServerClient client, String name) {
+		// Joins and leaves don't race each other for an empty channel.
+		synchronized (this.channels) {
+			Channel channel = this.channels.get(name);
+			if (channel == null) {
+				channel = new Channel(name, this.recentHistoryCapacity);
+				this.channels.put(name, channel);
+			}
+			return channel.join(client);
+		}
+	}
+	
+	/**
+	 * Take a client out of a channel. A channel left without members goes
+	 * away, unless it is the default one.
+	 * 
+	 * @param client The client.
+	 * @param name 	 The name of the channel.
+	 * 
+	 * @return 		 <code>false</code> if the client was not a member.
+	 */
+	public boolean leaveChannel(ServerClient client, String name) {
+		// Joins and leaves don't race each other for an empty channel.
+		synchronized (this.channels) {
+			Channel channel = this.channels.get(name);
+			if (channel == null || !channel.leave(client)) {
+				return false;
+			}
+			if (channel.isEmpty() && !ChatMessage.DEFAULT_CHANNEL.equals(name)) {
+				this.channels.remove(name);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns the channel with the given name.
+	 * 
+	 * @param name The name of the channel, <code>null</code> for the default one.
+	 * 
+	 * @return 	   The channel, or <code>null</code> if there is none by that name.
+	 */
+	public Channel getChannel(String name) {
+		return this.channels.get(name != null ? name : ChatMessage.DEFAULT_CHANNEL);
+	}
+	
+	/**
+	 * Sets the number of recent messages each channel replays to the members
+	 * that join. Set before the clients come : the default channel starts over.
+	 * 
+	 * @param recentHistoryCapacity The number of messages. <code>0</code> for none.
+	 */
+	public void setRecentHistoryCapacity(int recentHistoryCapacity) {
+		this.recentHistoryCapacity = recentHistoryCapacity;
+		this.channels.put(ChatMessage.DEFAULT_CHANNEL, new Channel(ChatMessage.DEFAULT_CHANNEL, recentHistoryCapacity));
+	}
+	
+	/**
+	 * Returns what tells the clients who has logged in and out.
+	 * 
+	 * @return what tells the clients who has logged in and out.
+	 */
+	public PresenceCoalescer getPresenceCoalescer() {
+		return this.presenceCoalescer;
+	}
+	
+	/**
+	 * Sets what tells the clients who has logged in and out. Set before the clients come.
+	 * 
+	 * @param presenceCoalescer What tells the clients who has logged in and out.
+	 */
+	public void setPresenceCoalescer(PresenceCoalescer presenceCoalescer) {
+		this.presenceCoalescer = presenceCoalescer;
+	}
+	
+	/**
+	 * Returns a {@link StringBuilder} with all channels separated by comma.
+	 * 
+	 * @return a {@link StringBuilder} with all channels separated by comma.
+	 */
+	public StringBuilder listChannels() {
+		// Holds all channels.
+		StringBuilder channels = new StringBuilder();
+		for (String name : this.channels.keySet()) {
+			channels.append(name);
+			channels.append(",");
+		}
+		return channels;
+	}
+	
+	/**
+	 * Returns the client logged in with the given user-name.
+	 * 
+	 * @param user The user-name.
+	 * 
+	 * @return 	   The client, or <code>null</code> if nobody is logged in with it.
+	 */
+	public ServerClient getClient(String user) {
+		return user != null ? this.clientsByUser.get(user) : null;
+	}
+	
 	/**
 	 * Remove a client from the room.
 	 * 
@@ -66,7 +288,7 @@ public class ServerRoom {
 	 * 
 	 * @throws IOException If an error has occurred while closing the connections.
 	 */
-	public void removeClient(ServerHandlerThread client) throws IOException {
+	public void removeClient(ServerClient client) throws IOException {
 		
 		// TODO - specific behavior before removing the client.
 		//		- when a user in removed from the room, all others have to be informed about this.
@@ -74,45 +296,271 @@ public class ServerRoom {
 		// 		- closeConnections() should be called by the thread him self, not by someone else. 
 		// 		- the client should also be interrupted. It could be blocked in the input stream.
 		
-		client.stopClient();
-		// TODO - release the client from the input stream.
+		// Out of the room first, so no broadcast picks it up anymore. The
+		// others are told, unless someone else is logged in with the same name.
 		this.clients.remove(client);
+		if (client.getUser() != null && this.clientsByUser.remove(client.getUser(), client)) {
+			this.presenceCoalescer.left(client.getUser());
+		}
+		for (Channel channel : this.channels.values()) {
+			this.leaveChannel(client, channel.getName());
+		}
+		client.stopClient();
 	}
 	
 	/**
-	 * Shut all clients.The server is going down.The server thread has to wait
-	 * for all client threads to close their connections.
+	 * Shut all clients. The server is going down. Each client first gets what
+	 * is still queued for it, as long as the time allows, then its connection
+	 * is closed and its threads are waited for, so none of them is cut in the
+	 * middle of a message.
 	 * 
-	 * @throws IOException If an I/O error has occurred while closing the connections.
+	 * @param timeoutMillis 		The longest time to take, in milliseconds.
+	 * 
+	 * @return 						The number of clients that could not get all their messages in time.
+	 * 
+	 * @throws IOException 			If an I/O error has occurred while closing the connections.
+	 * @throws InterruptedException If the thread has been interrupted while waiting.
 	 */
-	public void removeAllClients() throws IOException {
+	public int removeAllClients(long timeoutMillis) throws IOException, InterruptedException {
 		
-		// TODO - specific behavior before removing the client.
-		//		- wait + notify here.
-		// 		- join() here
-		// 		- before closing the connection, a handler thread has to stop running.
+		// Whatever the clients do, the server goes down in time.
+		long deadline = System.currentTimeMillis() + Math.max(0, timeoutMillis);
+		
+		// #1 Let the writers empty the queues. The iteration walks a snapshot;
+		// a client that disconnects on its own in the meantime has its queue
+		// cleared, so it counts as drained.
+		List<ServerClient> undrainedClients = new ArrayList<>(this.clients);
+		while (true) {
+			List<ServerClient> stillUndrained = new ArrayList<>();
+			for (ServerClient client : undrainedClients) {
+				if (!client.getOutboundQueue().isDrained()) {
+					stillUndrained.add(client);
+				}
+			}
+			undrainedClients = stillUndrained;
+			if (undrainedClients.isEmpty() || System.currentTimeMillis() >= deadline) {
+				break;
+			}
+			Thread.sleep(DRAIN_POLL_MILLIS);
+		}
+		
+		// #2 Close them all.
+		List<ServerClient> removedClients = this.closeAllClients();
+		
+		// #3 And wait for their threads, no longer than the time left.
+		for (ServerClient client : removedClients) {
+			client.awaitTermination(Math.max(1, deadline - System.currentTimeMillis()));
+		}
 		
-		for (ServerHandlerThread client : this.clients) {
+		return undrainedClients.size();
+	}
+	
+	/**
+	 * Shut all clients right away, whatever is still queued for them.
+	 * 
+	 * @return 			   The clients that have been shut.
+	 * 
+	 * @throws IOException If an I/O error has occurred while closing the connections.
+	 */
+	public List<ServerClient> closeAllClients() throws IOException {
+		List<ServerClient> removedClients = new ArrayList<>(this.clients);
+		for (ServerClient client : removedClients) {
 			this.removeClient(client);
 		}
+		return removedClients;
 	}
 	
 	/**
-	 * Broadcast a message to all clients in the room.
+	 * Broadcast a message to all clients in the room. The message is encoded
+	 * once per codec in use, and the same frame is handed to every client, in
+	 * a direct buffer for the selector clients.
+	 * The message is only queued for each client's writer, so a slow client
+	 * can not stall the others. A client that has fallen too far behind is
+	 * disconnected, if the overflow policy says so.
 	 * 
 	 * @param message 	   The message to be broadcasted to all clients.
-	 * @throws IOException Any exception thrown by the underlying OutputStream. 
+	 * @throws IOException If an error has occurred while disconnecting a client.
 	 */
 	public void broadcast(ChatMessage message) throws IOException {
 		
 		// TODO - specific behavior before broadcasting the message.
 		//		- wait + notify here.
 		
+		// How long the fan-out takes.
+		long start = System.nanoTime();
+		
+		// Shared by all the clients. Held until it has been handed to all of them,
+		// so the first ones to write it don't give its buffers back too early.
+		EncodedMessage encodedMessage = new EncodedMessage(message);
+		encodedMessage.retain();
+		
+		// The clients that could not keep up.
+		List<ServerClient> slowClients;
+		
+		try {
+			// What happens in a channel only goes to its members.
+			MessageType messageType = message.getMessageType();
+			if (messageType == MessageType.MESSAGE || messageType == MessageType.JOIN || messageType == MessageType.LEAVE) {
+				Channel channel = this.getChannel(message.getChannel());
+				if (channel == null) {
+					return;
+				}
+				slowClients = channel.broadcast(encodedMessage);
+			} else {
+				slowClients = this.offer(encodedMessage);
+			}
+		} finally {
+			encodedMessage.release();
+		}
+		ServerMetrics.BROADCAST_NANOS.record(System.nanoTime() - start);
+		
+		// Let them go, once the loop is over.
+		this.removeSlowClients(slowClients);
+	}
+	
+	/**
+	 * Tell every client who has left and who has joined, as deltas. The
+	 * clients that talk through a continuous object stream don't know the
+	 * deltas : they get the whole list of users instead, once for both.
+	 * 
+	 * @param leftUsers    The users that have left, separated by comma. <code>null</code> if none.
+	 * @param joinedUsers  The users that have joined, separated by comma. <code>null</code> if none.
+	 * 
+	 * @throws IOException If an error has occurred while disconnecting a client.
+	 */
+	public void broadcastPresence(String leftUsers, String joinedUsers) throws IOException {
+		
+		// How long the fan-out takes.
+		long start = System.nanoTime();
+		
+		// The deltas, the ones that have left first. Held until they have been handed to all the clients.
+		List<EncodedMessage> deltas = new ArrayList<>(2);
+		if (leftUsers != null) {
+			deltas.add(new EncodedMessage(MessageHandler.getInstance().createMessage(MessageType.LEFT, null, leftUsers)));
+		}
+		if (joinedUsers != null) {
+			deltas.add(new EncodedMessage(MessageHandler.getInstance().createMessage(MessageType.JOINED, null, joinedUsers)));
+		}
+		for (EncodedMessage delta : deltas) {
+			delta.retain();
+		}
+		
+		// The whole list, only made if an older client is there.
+		EncodedMessage whoisinMessage = null;
+		
+		// The clients that could not keep up.
+		List<ServerClient> slowClients = null;
+		
+		try {
+			for (ServerClient client : this.clients) {
+				boolean isOffered = true;
+				if (client.isObjectStream()) {
+					if (whoisinMessage == null) {
+						whoisinMessage = new EncodedMessage(MessageHandler.getInstance().createMessage(MessageType.WHOISIN, null,
+								this.listAllClients().toString()));
+						whoisinMessage.retain();
+					}
+					isOffered = client.offer(whoisinMessage);
+				} else {
+					for (EncodedMessage delta : deltas) {
+						isOffered &= client.offer(delta);
+					}
+				}
+				if (!isOffered) {
+					if (slowClients == null) {
+						slowClients = new ArrayList<>();
+					}
+					slowClients.add(client);
+				}
+			}
+		} finally {
+			for (EncodedMessage delta : deltas) {
+				delta.release();
+			}
+			if (whoisinMessage != null) {
+				whoisinMessage.release();
+			}
+		}
+		ServerMetrics.BROADCAST_NANOS.record(System.nanoTime() - start);
+		
+		// Let them go, once the loop is over.
+		this.removeSlowClients(slowClients);
+	}
+	
+	/**
+	 * Disconnect the clients that could not keep up with a broadcast.
+	 * 
+	 * @param slowClients  The clients, or <code>null</code> if there is none.
+	 * 
+	 * @throws IOException If an error has occurred while disconnecting a client.
+	 */
+	private void removeSlowClients(List<ServerClient> slowClients) throws IOException {
+		if (slowClients != null) {
+			for (ServerClient client : slowClients) {
+				this.logger.warn(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("SlowClientDisconnected"),
+						client.getUser(), client.getOutboundQueue().getDepth()));
+				this.removeClient(client);
+			}
+		}
+	}
+	
+	/**
+	 * Queue a message for each client.
+	 * 
+	 * @param encodedMessage The message.
+	 * 
+	 * @return 				 The clients that could not keep up, or <code>null</code> if there is none.
+	 */
+	private List<ServerClient> offer(EncodedMessage encodedMessage) {
+		
+		// The clients that could not keep up.
+		List<ServerClient> slowClients = null;
+		
 		// Loop through the list of clients and send the message to each of
 		// them.
-		for (HandlerThread client : this.clients) {
-			client.send(message);
+		for (ServerClient client : this.clients) {
+			if (!client.offer(encodedMessage)) {
+				if (slowClients == null) {
+					slowClients = new ArrayList<>();
+				}
+				slowClients.add(client);
+			}
+		}
+		return slowClients;
+	}
+	
+	/**
+	 * Returns how many messages each client has waiting to be written, so the
+	 * slow ones can be told apart.
+	 * 
+	 * @return the depth of the outbound queue of each user.
+	 */
+	public Map<String, Integer> listQueueDepths() {
+		// Holds all depths.
+		Map<String, Integer> queueDepths = new LinkedHashMap<>();
+		for (ServerClient client : this.clients) {
+			queueDepths.put(client.getUser(), client.getOutboundQueue().getDepth());
 		}
+		return queueDepths;
+	}
+	
+	/**
+	 * Returns the number of clients connected, logged in or not.
+	 * 
+	 * @return the number of clients connected.
+	 */
+	public int getClientCount() {
+		return this.clients.size();
+	}
+	
+	/**
+	 * Returns the number of channels.
+	 * 
+	 * @return the number of channels.
+	 */
+	public int getChannelCount() {
+		return this.channels.size();
 	}
 	
 	/**
@@ -123,7 +571,11 @@ public class ServerRoom {
 	public StringBuilder listAllClients() {
 		// Holds all clients.
 		StringBuilder clients = new StringBuilder();
-		for (ServerHandlerThread client : this.clients) {
+		for (ServerClient client : this.clients) {
+			// Not logged in yet.
+			if (client.getUser() == null) {
+				continue;
+			}
 			clients.append(client.getUser());
 			clients.append(",");
 		}
@@ -0,0 +1,143 @@
+package server.connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import assistant.connection.OverflowPolicy;
+import assistant.message.ChatMessage;
+import assistant.message.EncodedMessage;
+import assistant.message.MessageType;
+
+/**
+ * {@link OutboundQueueTest}. What each {@link OverflowPolicy} does once a
+ * client has fallen behind to the high-water mark : which message goes, and
+ * whether the client may stay.
+ *
+ * @author costi.dumitrescu
+ */
+public class OutboundQueueTest {
+
+	/**
+	 * The oldest message makes room for the new one.
+	 */
+	@Test
+	public void dropOldestDropsTheOldestMessage() {
+		OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST);
+		EncodedMessage first  = message(MessageType.MESSAGE, "first");
+		EncodedMessage second = message(MessageType.MESSAGE, "second");
+		EncodedMessage third  = message(MessageType.MESSAGE, "third");
+
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(second));
+		assertTrue(queue.offer(third));
+
+		assertEquals(1, queue.getDroppedMessages());
+		assertSame(second, queue.poll());
+		assertSame(third, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * The new message is refused, and the client has to go. What was queued
+	 * stays as it was.
+	 */
+	@Test
+	public void disconnectRefusesTheNewMessage() {
+		OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DISCONNECT);
+		EncodedMessage first  = message(MessageType.MESSAGE, "first");
+		EncodedMessage second = message(MessageType.MESSAGE, "second");
+
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(second));
+		assertFalse(queue.offer(message(MessageType.MESSAGE, "third")));
+
+		assertEquals(0, queue.getDroppedMessages());
+		assertSame(first, queue.poll());
+		assertSame(second, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * The queued presence messages are folded into a single WHOISIN, and the
+	 * chat messages are all kept, in order.
+	 */
+	@Test
+	public void coalesceFoldsThePresenceMessagesIntoOneWhoIsIn() {
+		OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.COALESCE_WHOISIN);
+		EncodedMessage first  = message(MessageType.MESSAGE, "first");
+		EncodedMessage second = message(MessageType.MESSAGE, "second");
+
+		assertTrue(queue.offer(message(MessageType.JOINED, "bob,")));
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(message(MessageType.LEFT, "bob,")));
+		assertTrue(queue.offer(second));
+
+		assertEquals(2, queue.getDroppedMessages());
+		assertSame(first, queue.poll());
+		assertEquals(MessageType.WHOISIN, queue.poll().getChatMessage().getMessageType());
+		assertSame(second, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * A new WHOISIN is the list itself : it takes the place of the queued
+	 * presence messages, no other one is made.
+	 */
+	@Test
+	public void coalesceKeepsTheNewWhoIsIn() {
+		OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.COALESCE_WHOISIN);
+		EncodedMessage first   = message(MessageType.MESSAGE, "first");
+		EncodedMessage whoisin = message(MessageType.WHOISIN, "alice,");
+
+		assertTrue(queue.offer(message(MessageType.JOINED, "bob,")));
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(message(MessageType.LEFT, "bob,")));
+		assertTrue(queue.offer(whoisin));
+
+		assertEquals(2, queue.getDroppedMessages());
+		assertSame(first, queue.poll());
+		assertSame(whoisin, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * A single presence message has nothing to be folded with : the oldest
+	 * message is dropped, as with {@link OverflowPolicy#DROP_OLDEST}.
+	 */
+	@Test
+	public void coalesceDropsTheOldestWithoutPresenceToFold() {
+		OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.COALESCE_WHOISIN);
+		EncodedMessage joined = message(MessageType.JOINED, "bob,");
+		EncodedMessage first  = message(MessageType.MESSAGE, "first");
+		EncodedMessage second = message(MessageType.MESSAGE, "second");
+		EncodedMessage third  = message(MessageType.MESSAGE, "third");
+
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(joined));
+		assertTrue(queue.offer(second));
+		assertTrue(queue.offer(third));
+
+		assertEquals(1, queue.getDroppedMessages());
+		assertSame(joined, queue.poll());
+		assertSame(second, queue.poll());
+		assertSame(third, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * Returns a message, ready to be queued.
+	 *
+	 * @param messageType The type of the message.
+	 * @param body 		  The body of the message.
+	 *
+	 * @return 			  The message.
+	 */
+	private static EncodedMessage message(MessageType messageType, String body) {
+		return new EncodedMessage(new ChatMessage(messageType, "alice", body, 1, 1));
+	}
+}
@@ -0,0 +1,216 @@
+package launcher;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import assistant.connection.ConnectionInfoPack;
+import assistant.connection.ConnectionInfoPack.ConnectionInfoPackBuilder;
+import assistant.connection.OverflowPolicy;
+import assistant.connection.ThreadMode;
+import assistant.connection.TransportMode;
+import assistant.i18n.ResourceBundleHandler;
+import server.connection.ServerConnection;
+import server.persistence.Persistence;
+
+/**
+ * The main class to launch the server without any window, on a box with no
+ * display. No AWT class is ever loaded.
+ *
+ * The settings come from the launcher/server.properties file on the class
+ * path, then from the file given as <code>config=&lt;path&gt;</code>, then from
+ * the <code>name=value</code> arguments, each one over the previous.
+ *
+ * @author costi.dumitrescu
+ */
+public class HeadlessServerLauncher {
+
+	/**
+	 * Logger for logging.
+	 */
+	private static Logger logger = Logger.getLogger(HeadlessServerLauncher.class);
+
+	/**
+	 * The argument naming the settings file.
+	 */
+	private static final String CONFIG = "config";
+
+	/**
+	 * Main method.
+	 *
+	 * @param args The settings, as <code>name=value</code>.
+	 */
+	public static void main(String[] args) {
+
+		// Whatever a library may try, there is no display.
+		System.setProperty("java.awt.headless", "true");
+
+		try {
+			Properties settings = loadSettings(args);
+
+			// The DATA BASE settings are read by the persistence itself.
+			for (String name : settings.stringPropertyNames()) {
+				if (name.startsWith(Persistence.SYSTEM_PROPERTY_PREFIX)) {
+					System.setProperty(name, settings.getProperty(name));
+				}
+			}
+
+			// The connection to the clients.
+			final ServerConnection connection = new ServerConnection();
+
+			// On a stop of the JVM, the server goes down in order : the clients
+			// get what is left for them, the DATA BASE too.
+			Runtime.getRuntime().addShutdownHook(new Thread("Server-Shutdown-Hook") {
+				/**
+				 * @see java.lang.Thread.run()
+				 */
+				@Override
+				public void run() {
+					try {
+						connection.stop();
+					} catch (IOException e) {
+						logger.error(MessageFormat.format(
+								ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),
+								e.getLocalizedMessage()), e);
+					}
+				}
+			});
+
+			/*
+			 *
+			 * Launch the server.
+			 *
+			 */
+			connection.start(createTheInfoPack(settings));
+
+		} catch (IOException | InterruptedException | IllegalArgumentException e) {
+			logger.error(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),
+					e.getLocalizedMessage()), e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Read the settings : the defaults, the file, then the arguments.
+	 *
+	 * @param args 		   The arguments.
+	 *
+	 * @return 			   The settings.
+	 *
+	 * @throws IOException If a settings file could not be read.
+	 */
+	private static Properties loadSettings(String[] args) throws IOException {
+
+		Properties arguments = new Properties();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator <= 0) {
+				throw new IllegalArgumentException(arg);
+			}
+			arguments.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+		}
+
+		Properties settings = new Properties();
+		try (InputStream in = HeadlessServerLauncher.class.getResourceAsStream("server.properties")) {
+			if (in != null) {
+				settings.load(in);
+			}
+		}
+		if (arguments.getProperty(CONFIG) != null) {
+			try (InputStream in = new FileInputStream(arguments.getProperty(CONFIG))) {
+				settings.load(in);
+			}
+		}
+		settings.putAll(arguments);
+
+		return settings;
+	}
+
+	/**
+	 * Create the information object to be passed to the connection.
+	 *
+	 * @param settings The settings.
+	 *
+	 * @return 		   The information object to be passed to the connection.
+	 */
+	private static ConnectionInfoPack createTheInfoPack(Properties settings) {
+
+		ConnectionInfoPackBuilder builder = new ConnectionInfoPack.ConnectionInfoPackBuilder();
+
+		String transport = get(settings, "transport");
+		if (transport != null) {
+			builder.withTransportMode(TransportMode.valueOf(transport));
+		}
+		String selectorThreads = get(settings, "selectorThreads");
+		if (selectorThreads != null) {
+			builder.withSelectorThreads(Integer.parseInt(selectorThreads));
+		}
+		String threadMode = get(settings, "threadMode");
+		if (threadMode != null) {
+			builder.withThreadMode(ThreadMode.valueOf(threadMode));
+		}
+		String outboundQueueCapacity = get(settings, "outboundQueueCapacity");
+		if (outboundQueueCapacity != null) {
+			builder.withOutboundQueueCapacity(Integer.parseInt(outboundQueueCapacity));
+		}
+		String overflowPolicy = get(settings, "overflowPolicy");
+		if (overflowPolicy != null) {
+			builder.withOverflowPolicy(OverflowPolicy.valueOf(overflowPolicy));
+		}
+		String recentHistoryCapacity = get(settings, "recentHistoryCapacity");
+		if (recentHistoryCapacity != null) {
+			builder.withRecentHistoryCapacity(Integer.parseInt(recentHistoryCapacity));
+		}
+		String presenceWindowMillis = get(settings, "presenceWindowMillis");
+		if (presenceWindowMillis != null) {
+			builder.withPresenceWindowMillis(Long.parseLong(presenceWindowMillis));
+		}
+		String metricsPort = get(settings, "metricsPort");
+		if (metricsPort != null) {
+			builder.withMetricsPort(Integer.parseInt(metricsPort));
+		}
+		String metricsLogIntervalMillis = get(settings, "metricsLogIntervalMillis");
+		if (metricsLogIntervalMillis != null) {
+			builder.withMetricsLogIntervalMillis(Long.parseLong(metricsLogIntervalMillis));
+		}
+		String persistence = get(settings, "persistence");
+		if (persistence != null) {
+			builder.withPersistence(Boolean.parseBoolean(persistence));
+		}
+		String shutdownTimeoutMillis = get(settings, "shutdownTimeoutMillis");
+		if (shutdownTimeoutMillis != null) {
+			builder.withShutdownTimeoutMillis(Long.parseLong(shutdownTimeoutMillis));
+		}
+		String flushBytes = get(settings, "flushBytes");
+		String flushIntervalMillis = get(settings, "flushIntervalMillis");
+		if (flushBytes != null || flushIntervalMillis != null) {
+			ConnectionInfoPack defaults = new ConnectionInfoPack.ConnectionInfoPackBuilder().build(null, null, 0);
+			builder.withFlushThresholds(
+					flushBytes != null ? Integer.parseInt(flushBytes) : defaults.getFlushBytes(),
+					flushIntervalMillis != null ? Long.parseLong(flushIntervalMillis) : defaults.getFlushIntervalMillis());
+		}
+
+		String port = get(settings, "port");
+		return builder.build(null, /* N/A */
+							 null, /* N/A - localhost */
+							 port != null ? Integer.parseInt(port) : 1500);
+	}
+
+	/**
+	 * Returns a setting, <code>null</code> if it is not set or left empty.
+	 *
+	 * @param settings The settings.
+	 * @param name 	   The name of the setting.
+	 *
+	 * @return 		   The value, trimmed.
+	 */
+	private static String get(Properties settings, String name) {
+		String value = settings.getProperty(name);
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+}
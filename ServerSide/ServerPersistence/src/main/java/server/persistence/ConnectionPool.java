@@ -0,0 +1,431 @@
+package server.persistence;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+
+/**
+ * {@link ConnectionPool}. A small pool of connections with the DATA BASE, so
+ * history reads and batched inserts can run side by side instead of queuing
+ * on a single connection. A connection is validated before it is handed out,
+ * so the pool heals by itself once the DATA BASE is back after a restart.
+ * Connections idle for too long are closed, down to the minimum size.
+ *
+ * @author costi.dumitrescu
+ */
+public class ConnectionPool {
+
+	/**
+	 * Logger for logging.
+	 */
+	private static Logger logger = Logger.getLogger(ConnectionPool.class);
+
+	/**
+	 * A connection of the pool, with the statements prepared on it.
+	 *
+	 * @author costi.dumitrescu
+	 */
+	public static class PooledConnection {
+
+		/**
+		 * The connection.
+		 */
+		private Connection connection;
+
+		/**
+		 * The statements prepared on the connection, by SQL.
+		 */
+		private Map<String, PreparedStatement> preparedStatements;
+
+		/**
+		 * When the connection has been given back to the pool, in milliseconds.
+		 * Read by the evictor.
+		 */
+		private volatile long releasedAt;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param connection The connection.
+		 */
+		private PooledConnection(Connection connection) {
+			this.connection 		= connection;
+			this.preparedStatements = new HashMap<>();
+			this.releasedAt 		= System.currentTimeMillis();
+		}
+
+		/**
+		 * Returns the connection.
+		 *
+		 * @return the connection.
+		 */
+		public Connection getConnection() {
+			return this.connection;
+		}
+
+		/**
+		 * Returns a prepared statement for the SQL. It is prepared the first
+		 * time, then reused for as long as the connection lives.
+		 *
+		 * @param sql 			The SQL.
+		 *
+		 * @return 				The prepared statement.
+		 *
+		 * @throws SQLException If the statement could not be prepared.
+		 */
+		public PreparedStatement prepareStatement(String sql) throws SQLException {
+			PreparedStatement preparedStatement = this.preparedStatements.get(sql);
+			if (preparedStatement == null) {
+				preparedStatement = this.connection.prepareStatement(sql);
+				this.preparedStatements.put(sql, preparedStatement);
+			}
+			return preparedStatement;
+		}
+
+		/**
+		 * Close the connection, and the statements with it.
+		 */
+		private void close() {
+			try {
+				this.connection.close();
+			} catch (SQLException e) {
+				// Gone anyway.
+			}
+			this.preparedStatements.clear();
+		}
+	}
+
+	/**
+	 * The URL of the DATA BASE.
+	 */
+	private String url;
+
+	/**
+	 * The data base user-name.
+	 */
+	private String user;
+
+	/**
+	 * The data base password.
+	 */
+	private String password;
+
+	/**
+	 * The fewest connections the pool keeps open.
+	 */
+	private int minSize;
+
+	/**
+	 * The query a connection is validated with, before it is handed out.
+	 */
+	private String validationQuery;
+
+	/**
+	 * How long a connection may stay idle before it is closed, in milliseconds.
+	 */
+	private long idleTimeoutMillis;
+
+	/**
+	 * How long to wait for a connection, in milliseconds.
+	 */
+	private long acquireTimeoutMillis;
+
+	/**
+	 * The idle connections, the most recently used first.
+	 */
+	private BlockingDeque<PooledConnection> idleConnections;
+
+	/**
+	 * One permit per connection that can still be handed out. Bounds the pool to its maximum size.
+	 */
+	private Semaphore permits;
+
+	/**
+	 * The number of connections open, idle or not.
+	 */
+	private AtomicInteger openConnections;
+
+	/**
+	 * Closes the connections idle for too long.
+	 */
+	private ScheduledExecutorService evictor;
+
+	/**
+	 * <code>true</code> once the pool has been closed. No connection is handed
+	 * out anymore, and the ones given back are closed.
+	 */
+	private volatile boolean isClosed;
+
+	/**
+	 * Constructor. Opens the minimum number of connections.
+	 *
+	 * @param url 					The URL of the DATA BASE.
+	 * @param user 					The data base user-name.
+	 * @param password 				The data base password.
+	 * @param minSize 				The fewest connections the pool keeps open.
+	 * @param maxSize 				The most connections the pool opens.
+	 * @param validationQuery 		The query a connection is validated with.
+	 * @param idleTimeoutMillis 	How long a connection may stay idle.
+	 * @param acquireTimeoutMillis  How long to wait for a connection.
+	 *
+	 * @throws SQLException 		If the first connections could not be opened.
+	 */
+	public ConnectionPool(String url, String user, String password, int minSize, int maxSize, String validationQuery,
+			long idleTimeoutMillis, long acquireTimeoutMillis) throws SQLException {
+		this.url 				  = url;
+		this.user 				  = user;
+		this.password 			  = password;
+		this.minSize 			  = Math.max(0, minSize);
+		this.validationQuery 	  = validationQuery;
+		this.idleTimeoutMillis 	  = idleTimeoutMillis;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.idleConnections 	  = new LinkedBlockingDeque<>();
+		this.permits 			  = new Semaphore(Math.max(1, Math.max(this.minSize, maxSize)));
+		this.openConnections 	  = new AtomicInteger();
+
+		// The minimum, right away. It also tells if the DATA BASE is there at all.
+		for (int i = 0; i < this.minSize; i++) {
+			this.idleConnections.addFirst(this.open());
+		}
+
+		// The eviction of idle connections.
+		if (this.idleTimeoutMillis > 0) {
+			this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				/**
+				 * @see java.util.concurrent.ThreadFactory.newThread(Runnable)
+				 */
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Connection-Pool-Evictor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(1, this.idleTimeoutMillis / 2);
+			this.evictor.scheduleWithFixedDelay(new Runnable() {
+				/**
+				 * @see java.lang.Runnable.run()
+				 */
+				@Override
+				public void run() {
+					ConnectionPool.this.evictIdleConnections();
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Returns a valid connection. Waits, at most the acquire timeout, if all
+	 * connections are in use. The connection has to be given back with
+	 * {@link #release(PooledConnection)}.
+	 *
+	 * @return 						the connection.
+	 *
+	 * @throws SQLTimeoutException 	If no connection got free in time.
+	 * @throws SQLException 		If a new connection could not be opened, or if the pool has been closed.
+	 */
+	public PooledConnection acquire() throws SQLException {
+
+		// Nothing is handed out anymore.
+		if (this.isClosed) {
+			throw new SQLException(ResourceBundleHandler.getInstance().getResourceBundle().getString("ConnectionPoolClosed"));
+		}
+
+		// Wait for a free slot.
+		try {
+			if (!this.permits.tryAcquire(this.acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new SQLTimeoutException(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("NoConnectionAvailableInTime"),
+						this.acquireTimeoutMillis));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException(e);
+		}
+
+		try {
+			// An idle one, if it's still good.
+			PooledConnection pooledConnection;
+			while ((pooledConnection = this.idleConnections.pollFirst()) != null) {
+				if (this.isValid(pooledConnection)) {
+					return pooledConnection;
+				}
+				this.discard(pooledConnection);
+			}
+			// Otherwise, a new one.
+			return this.open();
+		} catch (SQLException | RuntimeException e) {
+			this.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Give a connection back to the pool. It is closed instead, if the pool
+	 * has been closed.
+	 *
+	 * @param pooledConnection The connection. Nothing happens if <code>null</code>.
+	 */
+	public void release(PooledConnection pooledConnection) {
+
+		// For safety.
+		if (pooledConnection == null) {
+			return;
+		}
+
+		try {
+			// Nobody is left to use it.
+			if (this.isClosed) {
+				this.discard(pooledConnection);
+				return;
+			}
+			// The next user gets it as a new one.
+			if (!pooledConnection.getConnection().getAutoCommit()) {
+				pooledConnection.getConnection().rollback();
+				pooledConnection.getConnection().setAutoCommit(true);
+			}
+			pooledConnection.releasedAt = System.currentTimeMillis();
+			this.idleConnections.addFirst(pooledConnection);
+			// Closed meanwhile : taken back, unless the closing has already closed it.
+			if (this.isClosed && this.idleConnections.remove(pooledConnection)) {
+				this.discard(pooledConnection);
+			}
+		} catch (SQLException e) {
+			this.discard(pooledConnection);
+		} finally {
+			this.permits.release();
+		}
+	}
+
+	/**
+	 * Close all idle connections. The ones in use are closed when released,
+	 * and no connection is handed out anymore.
+	 */
+	public void close() {
+		this.isClosed = true;
+		if (this.evictor != null) {
+			this.evictor.shutdownNow();
+		}
+		PooledConnection pooledConnection;
+		while ((pooledConnection = this.idleConnections.pollFirst()) != null) {
+			this.discard(pooledConnection);
+		}
+	}
+
+	/**
+	 * Returns the number of connections open, idle or not.
+	 *
+	 * @return the number of connections open.
+	 */
+	public int getOpenConnections() {
+		return this.openConnections.get();
+	}
+
+	/**
+	 * Returns the number of idle connections.
+	 *
+	 * @return the number of idle connections.
+	 */
+	public int getIdleConnections() {
+		return this.idleConnections.size();
+	}
+
+	/**
+	 * Open a new connection.
+	 *
+	 * @return 				the new connection.
+	 *
+	 * @throws SQLException If the connection could not be opened.
+	 */
+	private PooledConnection open() throws SQLException {
+		Connection connection = DriverManager.getConnection(this.url, this.user, this.password);
+		this.openConnections.incrementAndGet();
+		return new PooledConnection(connection);
+	}
+
+	/**
+	 * Close a connection and forget about it.
+	 *
+	 * @param pooledConnection The connection.
+	 */
+	private void discard(PooledConnection pooledConnection) {
+		pooledConnection.close();
+		this.openConnections.decrementAndGet();
+	}
+
+	/**
+	 * Runs the validation query on the connection.
+	 *
+	 * @param pooledConnection The connection.
+	 *
+	 * @return 				   <code>true</code> if the connection still works.
+	 */
+	private boolean isValid(PooledConnection pooledConnection) {
+
+		// Nothing to validate with.
+		if (this.validationQuery == null || this.validationQuery.trim().isEmpty()) {
+			try {
+				return !pooledConnection.getConnection().isClosed();
+			} catch (SQLException e) {
+				return false;
+			}
+		}
+
+		Statement statement = null;
+		try {
+			statement = pooledConnection.getConnection().createStatement();
+			statement.execute(this.validationQuery);
+			return true;
+		} catch (SQLException e) {
+			logger.warn(MessageFormat.format(
+					ResourceBundleHandler.getInstance().getResourceBundle().getString("DiscardingBrokenConnection"),
+					e.getLocalizedMessage()));
+			return false;
+		} finally {
+			if (statement != null) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+					// Not much we can do.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close the connections idle for too long, down to the minimum size.
+	 */
+	private void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		Iterator<PooledConnection> iterator = this.idleConnections.descendingIterator();
+		while (iterator.hasNext() && this.openConnections.get() > this.minSize) {
+			PooledConnection pooledConnection = iterator.next();
+			// The least recently used are at the end.
+			if (now - pooledConnection.releasedAt < this.idleTimeoutMillis) {
+				break;
+			}
+			if (this.idleConnections.remove(pooledConnection)) {
+				this.discard(pooledConnection);
+			}
+		}
+	}
+}
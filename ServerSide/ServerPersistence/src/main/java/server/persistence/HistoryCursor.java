@@ -0,0 +1,145 @@
+package server.persistence;
+
+import java.io.Closeable;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link HistoryCursor}. The rows of a {@link HistoryQuery}, newest first, read
+ * as they are iterated. Only a fetch-size worth of rows is held in memory at a
+ * time, however big the result. The cursor keeps a connection of the pool
+ * until it is closed, so it must always be closed.
+ *
+ * @author costi.dumitrescu
+ */
+public class HistoryCursor implements Iterator<HistoryEntry>, Closeable {
+
+	/**
+	 * The pool the connection goes back to.
+	 */
+	private ConnectionPool connectionPool;
+
+	/**
+	 * The connection the rows are read on.
+	 */
+	private ConnectionPool.PooledConnection pooledConnection;
+
+	/**
+	 * The statement of the query.
+	 */
+	private PreparedStatement preparedStatement;
+
+	/**
+	 * The rows.
+	 */
+	private ResultSet resultSet;
+
+	/**
+	 * The next row, if it has already been read.
+	 */
+	private HistoryEntry next;
+
+	/**
+	 * <code>true</code> once the rows are over, or the cursor is closed.
+	 */
+	private boolean isDone;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param connectionPool 	The pool the connection goes back to.
+	 * @param pooledConnection  The connection the rows are read on.
+	 * @param preparedStatement The statement of the query.
+	 * @param resultSet 		The rows.
+	 */
+	HistoryCursor(ConnectionPool connectionPool, ConnectionPool.PooledConnection pooledConnection,
+			PreparedStatement preparedStatement, ResultSet resultSet) {
+		this.connectionPool 	= connectionPool;
+		this.pooledConnection 	= pooledConnection;
+		this.preparedStatement 	= preparedStatement;
+		this.resultSet 			= resultSet;
+	}
+
+	/**
+	 * @see java.util.Iterator.hasNext()
+	 *
+	 * @throws IllegalStateException If the next row could not be read.
+	 */
+	@Override
+	public boolean hasNext() {
+
+		// Already read, or nothing more to read.
+		if (this.next != null) {
+			return true;
+		}
+		if (this.isDone) {
+			return false;
+		}
+
+		try {
+			if (this.resultSet.next()) {
+				this.next = new HistoryEntry(
+						this.resultSet.getLong(1),
+						this.resultSet.getString(2),
+						this.resultSet.getString(3),
+						this.resultSet.getTimestamp(4));
+				return true;
+			}
+		} catch (SQLException e) {
+			this.close();
+			throw new IllegalStateException(e);
+		}
+
+		// The last row has been read, the connection is not needed anymore.
+		this.close();
+		return false;
+	}
+
+	/**
+	 * @see java.util.Iterator.next()
+	 */
+	@Override
+	public HistoryEntry next() {
+		if (!this.hasNext()) {
+			throw new NoSuchElementException();
+		}
+		HistoryEntry entry = this.next;
+		this.next = null;
+		return entry;
+	}
+
+	/**
+	 * @see java.util.Iterator.remove()
+	 */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Close the rows, and give the connection back to the pool. Nothing happens
+	 * if the cursor is already closed.
+	 */
+	@Override
+	public void close() {
+
+		// Only once.
+		if (this.pooledConnection == null) {
+			return;
+		}
+		this.isDone = true;
+
+		try {
+			this.resultSet.close();
+			this.preparedStatement.close();
+		} catch (SQLException e) {
+			// Not much we can do.
+		} finally {
+			this.connectionPool.release(this.pooledConnection);
+			this.pooledConnection = null;
+		}
+	}
+}
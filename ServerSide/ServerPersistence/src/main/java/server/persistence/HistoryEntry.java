@@ -0,0 +1,82 @@
+package server.persistence;
+
+import java.sql.Timestamp;
+
+/**
+ * One row of the ChatHistory table.
+ * 
+ * @author costi.dumitrescu
+ */
+public class HistoryEntry {
+
+	/**
+	 * The id of the row. <code>0</code> until the row has been inserted.
+	 */
+	private long id;
+
+	/**
+	 * The user name.
+	 */
+	private String username;
+
+	/**
+	 * The message.
+	 */
+	private String message;
+
+	/**
+	 * When the message has been sent.
+	 */
+	private Timestamp time;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param id 	   The id of the row.
+	 * @param username The user name.
+	 * @param message  The message.
+	 * @param time 	   When the message has been sent.
+	 */
+	public HistoryEntry(long id, String username, String message, Timestamp time) {
+		this.id 	  = id;
+		this.username = username;
+		this.message  = message;
+		this.time 	  = time;
+	}
+
+	/**
+	 * Returns the id of the row.
+	 * 
+	 * @return the id of the row.
+	 */
+	public long getId() {
+		return this.id;
+	}
+
+	/**
+	 * Returns the user name.
+	 * 
+	 * @return the user name.
+	 */
+	public String getUsername() {
+		return this.username;
+	}
+
+	/**
+	 * Returns the message.
+	 * 
+	 * @return the message.
+	 */
+	public String getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * Returns when the message has been sent.
+	 * 
+	 * @return when the message has been sent.
+	 */
+	public Timestamp getTime() {
+		return this.time;
+	}
+}
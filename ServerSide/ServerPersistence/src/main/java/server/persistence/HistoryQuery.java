@@ -0,0 +1,222 @@
+package server.persistence;
+
+import java.sql.Timestamp;
+
+/**
+ * {@link HistoryQuery}. Which part of the ChatHistory table to read. The rows
+ * always come newest first. A page ends where the next one begins : the id of
+ * the last row read is the {@link HistoryQueryBuilder#withBeforeId(long)} of
+ * the next page, so going back in time costs the same whatever the depth,
+ * unlike an OFFSET that has to skip every row before it.
+ *
+ * @author costi.dumitrescu
+ */
+public class HistoryQuery {
+
+	/**
+	 * History query builder.
+	 *
+	 * @author costi.dumitrescu
+	 */
+	public static class HistoryQueryBuilder {
+
+		/**
+		 * Only the rows older than this id. None by default : the newest rows.
+		 */
+		private long beforeId = 0;
+
+		/**
+		 * Only the rows of this user. None by default.
+		 */
+		private String user = null;
+
+		/**
+		 * Only the rows sent since this time, inclusive. None by default.
+		 */
+		private Timestamp from = null;
+
+		/**
+		 * Only the rows sent before this time, exclusive. None by default.
+		 */
+		private Timestamp to = null;
+
+		/**
+		 * The most rows to read. All of them by default.
+		 */
+		private int limit = 0;
+
+		/**
+		 * How many rows are fetched from the DATA BASE at a time. The one of the credentials file by default.
+		 */
+		private int fetchSize = 0;
+
+		/**
+		 * Sets the id the page starts below. The id of the last row of the previous page.
+		 *
+		 * @param beforeId The id, exclusive.
+		 *
+		 * @return This builder.
+		 */
+		public HistoryQueryBuilder withBeforeId(long beforeId) {
+			this.beforeId = beforeId;
+			return this;
+		}
+
+		/**
+		 * Sets the user whose messages are read.
+		 *
+		 * @param user The user.
+		 *
+		 * @return This builder.
+		 */
+		public HistoryQueryBuilder withUser(String user) {
+			this.user = user;
+			return this;
+		}
+
+		/**
+		 * Sets the time range the messages have been sent in.
+		 *
+		 * @param from Since when, inclusive. <code>null</code> for no lower bound.
+		 * @param to   Until when, exclusive. <code>null</code> for no upper bound.
+		 *
+		 * @return This builder.
+		 */
+		public HistoryQueryBuilder withTimeRange(Timestamp from, Timestamp to) {
+			this.from = from;
+			this.to   = to;
+			return this;
+		}
+
+		/**
+		 * Sets the most rows to read. The size of a page.
+		 *
+		 * @param limit The most rows to read. <code>0</code> for all of them.
+		 *
+		 * @return This builder.
+		 */
+		public HistoryQueryBuilder withLimit(int limit) {
+			this.limit = limit;
+			return this;
+		}
+
+		/**
+		 * Sets how many rows are fetched from the DATA BASE at a time.
+		 *
+		 * @param fetchSize The number of rows. <code>0</code> for the one of the credentials file.
+		 *
+		 * @return This builder.
+		 */
+		public HistoryQueryBuilder withFetchSize(int fetchSize) {
+			this.fetchSize = fetchSize;
+			return this;
+		}
+
+		/**
+		 * Build a history query instance.
+		 *
+		 * @return History query instance.
+		 */
+		public HistoryQuery build() {
+			return new HistoryQuery(this);
+		}
+	}
+
+	/**
+	 * Only the rows older than this id. <code>0</code> for none.
+	 */
+	private long beforeId;
+
+	/**
+	 * Only the rows of this user. <code>null</code> for none.
+	 */
+	private String user;
+
+	/**
+	 * Only the rows sent since this time, inclusive. <code>null</code> for none.
+	 */
+	private Timestamp from;
+
+	/**
+	 * Only the rows sent before this time, exclusive. <code>null</code> for none.
+	 */
+	private Timestamp to;
+
+	/**
+	 * The most rows to read. <code>0</code> for all of them.
+	 */
+	private int limit;
+
+	/**
+	 * How many rows are fetched from the DATA BASE at a time. <code>0</code> for the default.
+	 */
+	private int fetchSize;
+
+	/**
+	 * Private constructor. Builder purpose.
+	 *
+	 * @param builder The builder.
+	 */
+	private HistoryQuery(HistoryQueryBuilder builder) {
+		this.beforeId  = builder.beforeId;
+		this.user 	   = builder.user;
+		this.from 	   = builder.from;
+		this.to 	   = builder.to;
+		this.limit 	   = builder.limit;
+		this.fetchSize = builder.fetchSize;
+	}
+
+	/**
+	 * Returns the id the page starts below, <code>0</code> for none.
+	 *
+	 * @return the id the page starts below.
+	 */
+	public long getBeforeId() {
+		return this.beforeId;
+	}
+
+	/**
+	 * Returns the user whose messages are read, <code>null</code> for all.
+	 *
+	 * @return the user.
+	 */
+	public String getUser() {
+		return this.user;
+	}
+
+	/**
+	 * Returns since when the messages are read, <code>null</code> for no lower bound.
+	 *
+	 * @return since when the messages are read.
+	 */
+	public Timestamp getFrom() {
+		return this.from;
+	}
+
+	/**
+	 * Returns until when the messages are read, <code>null</code> for no upper bound.
+	 *
+	 * @return until when the messages are read.
+	 */
+	public Timestamp getTo() {
+		return this.to;
+	}
+
+	/**
+	 * Returns the most rows to read, <code>0</code> for all of them.
+	 *
+	 * @return the most rows to read.
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * Returns how many rows are fetched at a time, <code>0</code> for the default.
+	 *
+	 * @return how many rows are fetched at a time.
+	 */
+	public int getFetchSize() {
+		return this.fetchSize;
+	}
+}
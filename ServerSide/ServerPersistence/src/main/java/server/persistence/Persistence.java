@@ -1,21 +1,28 @@
 package server.persistence;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLTimeoutException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.log4j.Logger;
 
 import assistant.i18n.ResourceBundleHandler;
+import assistant.metrics.Histogram;
+import assistant.metrics.MetricsRegistry;
 
 /**
  * The Singleton {@link Persistence} java class which handles the persisting of
@@ -42,10 +49,72 @@ public class Persistence {
 	private static Persistence INSTANCE = null;
 	
 	/**
-	 * A connection (session) with a specific database. SQL statements are
-	 * executed and results are returned within the context of a connection.
+	 * The pool of connections (sessions) with the database. SQL statements are
+	 * executed and results are returned within the context of a connection,
+	 * borrowed from the pool for the time of a single call.
 	 */
-	private Connection connection = null;
+	private ConnectionPool connectionPool = null;
+	
+	/**
+	 * The SQL the batches are inserted with. Prepared once per connection, then
+	 * reused for every batch.
+	 */
+	private static final String INSERT_BATCH_SQL = "INSERT INTO ChatHistory (t_username, t_message, t_time) VALUES (?, ?, ?);";
+	
+	/**
+	 * The most messages in a batch, if not set in the credentials file.
+	 */
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	
+	/**
+	 * How long a batch waits for more messages, if not set in the credentials file.
+	 */
+	private static final long DEFAULT_BATCH_WINDOW_MILLIS = 200;
+	
+	/**
+	 * The fewest connections in the pool, if not set in the credentials file.
+	 */
+	private static final int DEFAULT_POOL_MIN_SIZE = 1;
+	
+	/**
+	 * The most connections in the pool, if not set in the credentials file.
+	 */
+	private static final int DEFAULT_POOL_MAX_SIZE = 8;
+	
+	/**
+	 * How long a connection may stay idle, if not set in the credentials file.
+	 */
+	private static final long DEFAULT_POOL_IDLE_TIMEOUT_MILLIS = 300000;
+	
+	/**
+	 * How long to wait for a free connection, if not set in the credentials file.
+	 */
+	private static final long DEFAULT_POOL_ACQUIRE_TIMEOUT_MILLIS = 5000;
+	
+	/**
+	 * How many history rows are fetched at a time, if not set in the credentials file.
+	 */
+	private static final int DEFAULT_HISTORY_FETCH_SIZE = 500;
+	
+	/**
+	 * The system properties that stand for the ones of the credentials file, once stripped of it.
+	 */
+	public static final String SYSTEM_PROPERTY_PREFIX = "persistence.";
+	
+	/**
+	 * How long the batches take to be inserted, in nanoseconds.
+	 */
+	private final Histogram batchNanos = MetricsRegistry.getInstance().histogram("chat_persistence_batch_nanoseconds");
+	
+	/**
+	 * The number of messages inserted in batches.
+	 */
+	private final LongAdder batchMessages = MetricsRegistry.getInstance().counter("chat_persistence_batch_messages_total");
+	
+	/**
+	 * The number of batches that could not be inserted.
+	 */
+	private final LongAdder batchFailures = MetricsRegistry.getInstance().counter("chat_persistence_batch_failures_total");
 	
 	/**
 	 * Private constructor. Singleton purpose.
@@ -84,18 +153,10 @@ public class Persistence {
 	}
 	
 	/**
-	 * Close the connection with the DB.
+	 * Close the connections with the DB.
 	 */
 	public void closeConnection() {
-		/**
-		 * TODO
-		 */
-		try {
-			this.connection.close();
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		this.connectionPool.close();
 	}
 
 	/**
@@ -143,6 +204,10 @@ public class Persistence {
 		
 		this.credentials = new Properties();
 		InputStream in = this.getClass().getResourceAsStream("credentials.properties");
+		// Not on the class path.
+		if (in == null) {
+			throw new FileNotFoundException("credentials.properties");
+		}
 		try {
 			this.credentials.load(in);
 		} catch (Exception e) {
@@ -160,10 +225,17 @@ public class Persistence {
 				// just .... do nothing!
 			}
 		}
+		
+		// The launcher has the last word : 'persistence.db_url' stands for 'db_url'.
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+				this.credentials.setProperty(name.substring(SYSTEM_PROPERTY_PREFIX.length()), System.getProperty(name));
+			}
+		}
 	}
 	
 	/**
-	 * Attempts to establish a connection to the database.
+	 * Attempts to establish the pool of connections to the database.
 	 * 
 	 * @exception SQLException if a database access error occurs or the URL is
      * 			  {@code null}
@@ -183,10 +255,15 @@ public class Persistence {
 		String password = (String)  this.credentials.get("password");
 		String db_url   = (String)  this.credentials.get("db_url");
 		
-		// Attempts to establish a connection to the given database URL. The
-		// DriverManager attempts to select an appropriate driver from the set
-		// of registered JDBC drivers.
-		this.connection = DriverManager.getConnection(db_url, user, password);
+		// Attempts to establish the first connections to the given database
+		// URL. The DriverManager attempts to select an appropriate driver from
+		// the set of registered JDBC drivers.
+		this.connectionPool = new ConnectionPool(db_url, user, password,
+				this.getIntProperty("pool_min_size", DEFAULT_POOL_MIN_SIZE),
+				this.getIntProperty("pool_max_size", DEFAULT_POOL_MAX_SIZE),
+				this.credentials.getProperty("pool_validation_query"),
+				this.getLongProperty("pool_idle_timeout_millis", DEFAULT_POOL_IDLE_TIMEOUT_MILLIS),
+				this.getLongProperty("pool_acquire_timeout_millis", DEFAULT_POOL_ACQUIRE_TIMEOUT_MILLIS));
 		
 		// Connection is established.
 		logger.warn(ResourceBundleHandler.getInstance().getResourceBundle().getString("ConnectionEstablished"));
@@ -197,17 +274,19 @@ public class Persistence {
 	 * 
 	 * @param t_username The user name
 	 * @param t_message  The message.
-	 * @param t_time     The time.
+	 * @param t_time     When the message has been sent.
 	 */
-	public void insertMessageSimpleStatement(String t_username, String t_message, String t_time) {
+	public void insertMessageSimpleStatement(String t_username, String t_message, Timestamp t_time) {
 		// The object used for executing a static SQL statement and returning
 		// the results it produces.
 		Statement statement = null;
+		ConnectionPool.PooledConnection pooledConnection = null;
 		try {
 			// Create the statement.
-			statement = this.connection.createStatement();
+			pooledConnection = this.connectionPool.acquire();
+			statement = pooledConnection.getConnection().createStatement();
 			String sql = "INSERT INTO ChatHistory (t_username, t_message, t_time) VALUES ('" + t_username + "', '"
-					+ t_message + "', '" + t_time + "');";
+					+ t_message + "', '" + t_time + "'::timestamp);";
 			statement.executeUpdate(sql);
 			statement.close();
 		} catch (SQLException e) {
@@ -215,6 +294,8 @@ public class Persistence {
 			logger.error(MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
 						 .getString("FailedToInsertNewMessageWithSimpleStatement"), t_username, t_message, t_time) + " " + 
 						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			this.connectionPool.release(pooledConnection);
 		}
 	}
 
@@ -223,20 +304,22 @@ public class Persistence {
 	 * 
 	 * @param t_username The user name
 	 * @param t_message  The message.
-	 * @param t_time     The time.
+	 * @param t_time     When the message has been sent.
 	 */
-	public void insertMessagePreparedStatement(String t_username, String t_message, String t_time) {
+	public void insertMessagePreparedStatement(String t_username, String t_message, Timestamp t_time) {
 		// The object used for executing a prepared statement and returning
 		// the results it produces.
 		PreparedStatement preparedStatement = null;
+		ConnectionPool.PooledConnection pooledConnection = null;
 		try {
 			String sql = "INSERT INTO ChatHistory (t_username, t_message, t_time) VALUES (?, ?, ?);";
 			// Create the prepared statement.
-			preparedStatement = this.connection.prepareStatement(sql);
+			pooledConnection = this.connectionPool.acquire();
+			preparedStatement = pooledConnection.getConnection().prepareStatement(sql);
 			// Set the values.
 			preparedStatement.setString(1, t_username);
 			preparedStatement.setString(2, t_message);
-			preparedStatement.setString(3, t_time);
+			preparedStatement.setTimestamp(3, t_time);
 			// execute the query.
 			preparedStatement.executeUpdate();
 			preparedStatement.close();
@@ -245,7 +328,243 @@ public class Persistence {
 			logger.error(MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
 						 .getString("FailedToInsertNewMessageWithPreparedStatement"), t_username, t_message, t_time) + " " + 
 						  MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			this.connectionPool.release(pooledConnection);
+		}
+	}
+	
+	/**
+	 * Insert a batch of messages, in a single transaction and a single round-trip,
+	 * using the cached prepared statement.
+	 * 
+	 * @param entries The messages.
+	 * 
+	 * @return 		  <code>true</code> if the whole batch has been inserted.
+	 */
+	public boolean insertMessagesBatch(List<HistoryEntry> entries) {
+		
+		// Nothing to do.
+		if (entries.isEmpty()) {
+			return true;
+		}
+		
+		// How long the batch takes.
+		long start = System.nanoTime();
+		
+		ConnectionPool.PooledConnection pooledConnection = null;
+		PreparedStatement insertBatchStatement = null;
+		try {
+			// Prepared only once per connection.
+			pooledConnection = this.connectionPool.acquire();
+			insertBatchStatement = pooledConnection.prepareStatement(INSERT_BATCH_SQL);
+			
+			// All or nothing. The pool puts the connection back in auto-commit mode when it is released.
+			pooledConnection.getConnection().setAutoCommit(false);
+			
+			// Set the values, row after row.
+			for (HistoryEntry entry : entries) {
+				insertBatchStatement.setString(1, entry.getUsername());
+				insertBatchStatement.setString(2, entry.getMessage());
+				insertBatchStatement.setTimestamp(3, entry.getTime());
+				insertBatchStatement.addBatch();
+			}
+			
+			// Execute the whole batch.
+			insertBatchStatement.executeBatch();
+			pooledConnection.getConnection().commit();
+			
+			this.batchNanos.record(System.nanoTime() - start);
+			this.batchMessages.add(entries.size());
+			logger.info(MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("BatchOfMessagesPersisted"),
+					entries.size(), (System.nanoTime() - start) / 1000000.0));
+			return true;
+			
+		} catch (SQLException e) {
+			this.batchFailures.increment();
+			logger.error(MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("FailedToInsertBatchOfMessages"), entries.size()) + " " + 
+						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+			try {
+				if (insertBatchStatement != null) {
+					insertBatchStatement.clearBatch();
+				}
+			} catch (SQLException clearException) {
+				// Not much we can do.
+			}
+			return false;
+		} finally {
+			this.connectionPool.release(pooledConnection);
+		}
+	}
+	
+	/**
+	 * Read the history, newest first, as the rows are iterated. Every filter of
+	 * the query is optional; the page starts below its 'before id', which keeps
+	 * the read on the primary key index however far back it goes. The rows are
+	 * fetched a fetch-size at a time, so even the whole table is never held in
+	 * memory at once.
+	 * 
+	 * The cursor holds a connection of the pool until it is closed.
+	 * 
+	 * @param query 		The part of the history to read.
+	 * 
+	 * @return 				The rows, newest first.
+	 * 
+	 * @throws SQLException If the query could not be run.
+	 */
+	public HistoryCursor openHistory(HistoryQuery query) throws SQLException {
+		
+		// Only the filters that are set.
+		StringBuilder sql = new StringBuilder("SELECT t_ID, t_username, t_message, t_time FROM ChatHistory WHERE TRUE");
+		if (query.getBeforeId() > 0) {
+			sql.append(" AND t_ID < ?");
+		}
+		if (query.getUser() != null) {
+			sql.append(" AND t_username = ?");
+		}
+		if (query.getFrom() != null) {
+			sql.append(" AND t_time >= ?");
+		}
+		if (query.getTo() != null) {
+			sql.append(" AND t_time < ?");
+		}
+		sql.append(" ORDER BY t_ID DESC");
+		if (query.getLimit() > 0) {
+			sql.append(" LIMIT ?");
 		}
+		
+		ConnectionPool.PooledConnection pooledConnection = this.connectionPool.acquire();
+		PreparedStatement preparedStatement = null;
+		try {
+			// The driver only fetches by pieces inside a transaction. The pool
+			// puts the connection back in auto-commit mode when it is released.
+			pooledConnection.getConnection().setAutoCommit(false);
+			preparedStatement = pooledConnection.getConnection().prepareStatement(sql.toString());
+			preparedStatement.setFetchSize(query.getFetchSize() > 0 ? query.getFetchSize() : this.getHistoryFetchSize());
+			
+			// Bind the values, in the order of the filters.
+			int index = 1;
+			if (query.getBeforeId() > 0) {
+				preparedStatement.setLong(index++, query.getBeforeId());
+			}
+			if (query.getUser() != null) {
+				preparedStatement.setString(index++, query.getUser());
+			}
+			if (query.getFrom() != null) {
+				preparedStatement.setTimestamp(index++, query.getFrom());
+			}
+			if (query.getTo() != null) {
+				preparedStatement.setTimestamp(index++, query.getTo());
+			}
+			if (query.getLimit() > 0) {
+				preparedStatement.setInt(index++, query.getLimit());
+			}
+			
+			return new HistoryCursor(this.connectionPool, pooledConnection, preparedStatement, preparedStatement.executeQuery());
+			
+		} catch (SQLException | RuntimeException e) {
+			try {
+				if (preparedStatement != null) {
+					preparedStatement.close();
+				}
+			} catch (SQLException closeException) {
+				// Not much we can do.
+			}
+			this.connectionPool.release(pooledConnection);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns one page of the history, newest first. The next page, further
+	 * back, starts below the id of the last row of this one.
+	 * 
+	 * @param query The part of the history to read. Should have a limit.
+	 * 
+	 * @return 		The rows, newest first. Empty if they could not be read.
+	 */
+	public List<HistoryEntry> fetchHistoryPage(HistoryQuery query) {
+		List<HistoryEntry> entries = new ArrayList<>();
+		HistoryCursor cursor = null;
+		try {
+			cursor = this.openHistory(query);
+			while (cursor.hasNext()) {
+				entries.add(cursor.next());
+			}
+		} catch (SQLException | IllegalStateException e) {
+			logger.error(ResourceBundleHandler.getInstance().getResourceBundle().getString("FailedToReadHistory") + " " + 
+						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return entries;
+	}
+	
+	/**
+	 * Returns the last messages, oldest first, the way they are shown.
+	 * 
+	 * @param count The number of messages.
+	 * 
+	 * @return 		The messages, oldest first. Empty if they could not be read.
+	 */
+	public List<HistoryEntry> fetchLastMessages(int count) {
+		List<HistoryEntry> entries = this.fetchHistoryPage(new HistoryQuery.HistoryQueryBuilder().withLimit(Math.max(1, count)).build());
+		Collections.reverse(entries);
+		return entries;
+	}
+	
+	/**
+	 * Returns how many history rows are fetched from the data base at a time.
+	 * 
+	 * @return how many history rows are fetched at a time.
+	 */
+	public int getHistoryFetchSize() {
+		return this.getIntProperty("history_fetch_size", DEFAULT_HISTORY_FETCH_SIZE);
+	}
+	
+	/**
+	 * Returns the most messages written in a single batch.
+	 * 
+	 * @return the most messages written in a single batch.
+	 */
+	public int getBatchSize() {
+		return this.getIntProperty("batch_size", DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Returns how long, in milliseconds, a batch waits for more messages before it is written anyway.
+	 * 
+	 * @return how long a batch waits for more messages.
+	 */
+	public long getBatchWindowMillis() {
+		return this.getLongProperty("batch_window_millis", DEFAULT_BATCH_WINDOW_MILLIS);
+	}
+	
+	/**
+	 * Returns an integer property of the credentials file.
+	 * 
+	 * @param key 			The key of the property.
+	 * @param defaultValue  The value, if the property is not set.
+	 * 
+	 * @return 				The value of the property.
+	 */
+	private int getIntProperty(String key, int defaultValue) {
+		String value = this.credentials.getProperty(key);
+		return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+	}
+	
+	/**
+	 * Returns a long property of the credentials file.
+	 * 
+	 * @param key 			The key of the property.
+	 * @param defaultValue  The value, if the property is not set.
+	 * 
+	 * @return 				The value of the property.
+	 */
+	private long getLongProperty(String key, long defaultValue) {
+		String value = this.credentials.getProperty(key);
+		return value != null ? Long.parseLong(value.trim()) : defaultValue;
 	}
 	
 	/**
@@ -253,20 +572,22 @@ public class Persistence {
 	 * 
 	 * @param t_username The user name
 	 * @param t_message  The message.
-	 * @param t_time     The time.
+	 * @param t_time     When the message has been sent.
 	 */
-	public void insertMessageCallableStatement(String t_username, String t_message, String t_time) {
+	public void insertMessageCallableStatement(String t_username, String t_message, Timestamp t_time) {
 		// The object used for executing a SQL callable statement and returning
 		// the results it produces.
 		CallableStatement callableStatement = null;
+		ConnectionPool.PooledConnection pooledConnection = null;
 		try {
 			String sql = "{call addEntryInHistoryTable(?, ?, ?)}";
 			// Create the callable statement.
-			callableStatement = this.connection.prepareCall(sql);
+			pooledConnection = this.connectionPool.acquire();
+			callableStatement = pooledConnection.getConnection().prepareCall(sql);
 			// Bind IN parameters.
 			callableStatement.setString(1, t_username);
 			callableStatement.setString(2, t_message);
-			callableStatement.setString(3, t_time);
+			callableStatement.setTimestamp(3, t_time);
 			// execute the query.
 			callableStatement.executeUpdate();
 			callableStatement.close();
@@ -275,6 +596,8 @@ public class Persistence {
 			logger.error(MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle()
 						 .getString("FailedToInsertNewMessageWithCallableStatement"), t_username, t_message, t_time) + " " +  
 						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			this.connectionPool.release(pooledConnection);
 		}
 	}
 	
@@ -285,9 +608,11 @@ public class Persistence {
 		// The object used for executing a static SQL statement and returning
 		// the results it produces.
 		Statement statement = null;
+		ConnectionPool.PooledConnection pooledConnection = null;
 		try {
 			// Create the statement.
-			statement = this.connection.createStatement();
+			pooledConnection = this.connectionPool.acquire();
+			statement = pooledConnection.getConnection().createStatement();
 			String sql = "Select * from ChatHistory";
 			ResultSet rs = statement.executeQuery(sql);
 			while(rs.next()) {
@@ -304,6 +629,8 @@ public class Persistence {
 			e.printStackTrace();
 			logger.error(ResourceBundleHandler.getInstance().getResourceBundle().getString("FailedToDisplayHistoryWithSimpleStatement") + " " + 
 						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			this.connectionPool.release(pooledConnection);
 		}
 	}
 	
@@ -314,10 +641,12 @@ public class Persistence {
 		// The object used for executing a prepared statement and returning
 		// the results it produces.
 		PreparedStatement preparedStatement = null;
+		ConnectionPool.PooledConnection pooledConnection = null;
 		try {
 			String sql = "Select * from ChatHistory Where t_id = ?";
 			// Create the statement.
-			preparedStatement = this.connection.prepareStatement(sql);
+			pooledConnection = this.connectionPool.acquire();
+			preparedStatement = pooledConnection.getConnection().prepareStatement(sql);
 			preparedStatement.setInt(1, 3);
 			ResultSet rs = preparedStatement.executeQuery();
 			while(rs.next()) {
@@ -334,6 +663,8 @@ public class Persistence {
 			e.printStackTrace();
 			logger.error(ResourceBundleHandler.getInstance().getResourceBundle().getString("FailedToDisplayHistoryWithPreparedStatement") + " " + 
 						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			this.connectionPool.release(pooledConnection);
 		}
 	}
 	
@@ -344,12 +675,15 @@ public class Persistence {
 		// The object used for executing a SQL callable statement and returning
 		// the results it produces.
 		CallableStatement callableStatement = null;
+		ConnectionPool.PooledConnection pooledConnection = null;
 		try {
-			// We must be inside a transaction for cursors to work.
-			this.connection.setAutoCommit(false);
+			// We must be inside a transaction for cursors to work. The pool
+			// puts the connection back in auto-commit mode when it is released.
+			pooledConnection = this.connectionPool.acquire();
+			pooledConnection.getConnection().setAutoCommit(false);
 			String sql = "{? = call displayAllEntriesInHistoryTable()}";
 			// Create the callable statement.
-			callableStatement = this.connection.prepareCall(sql);
+			callableStatement = pooledConnection.getConnection().prepareCall(sql);
 			// Bind OUT parameters.
 			callableStatement.registerOutParameter(1, java.sql.Types.OTHER);
 			// Execute the query.
@@ -370,6 +704,8 @@ public class Persistence {
 			e.printStackTrace();
 			logger.error(ResourceBundleHandler.getInstance().getResourceBundle().getString("FailedToDisplayHistoryWithCallableStatement") + " " + 
 						 MessageFormat.format(ResourceBundleHandler.getInstance().getResourceBundle().getString("ErrorMessage"),e.getLocalizedMessage()));
+		} finally {
+			this.connectionPool.release(pooledConnection);
 		}
 	}
 }
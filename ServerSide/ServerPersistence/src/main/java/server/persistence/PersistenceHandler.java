@@ -1,14 +1,47 @@
 package server.persistence;
 
+import java.sql.Timestamp;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import assistant.i18n.ResourceBundleHandler;
+import assistant.message.ChatMessage;
 import assistant.message.rooms.arrivals.NormalMessagesRoom;
 
 /**
- * Thread that logs messages using {@link Persistence} singleton class.
+ * Thread that logs messages using {@link Persistence} singleton class. The
+ * messages are written behind : gathered into batches, by size or by time,
+ * and each batch is written in a single round-trip.
  * 
  * @author costi.dumitrescu
  */
 public class PersistenceHandler {
 
+	/**
+	 * How many times a batch is tried, before it is kept for later.
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+	
+	/**
+	 * How long to wait before the first retry of a batch, in milliseconds.
+	 * Doubled after each retry.
+	 */
+	private static final long INITIAL_RETRY_BACKOFF_MILLIS = 100;
+	
+	/**
+	 * The longest wait between two tries of a batch, in milliseconds.
+	 */
+	private static final long MAX_RETRY_BACKOFF_MILLIS = 2000;
+	
+	/**
+	 * Logger for logging.
+	 */
+	private static Logger logger = Logger.getLogger(PersistenceHandler.class);
+
 	/**
 	 * Singleton instance.
 	 */
@@ -17,7 +50,17 @@ public class PersistenceHandler {
 	/**
 	 * <code>true</code> if the connection with the DATA BASE is opened.
 	 */
-	private boolean isConnectionOpened;
+	private volatile boolean isConnectionOpened;
+	
+	/**
+	 * The thread that persists things in Data Base.
+	 */
+	private Thread persistenceThread;
+	
+	/**
+	 * The {@link Persistence} written with, once started.
+	 */
+	private Persistence persistence;
 
 	/**
 	 * Constructor.
@@ -39,17 +82,53 @@ public class PersistenceHandler {
 	}
 
 	/**
-	 * Stop the thread that persists things in Data Base.
+	 * Stop the thread that persists things in Data Base. The messages still
+	 * waiting are written before it ends.
 	 */
 	public void stop() {
 		// Take the thread out of the loop.
 		this.isConnectionOpened = false;
-		
-		/*
-		 * 
-		 *  TODO
-		 *  
-		 */
+	}
+	
+	/**
+	 * Wait for the thread that persists things in Data Base to write what is
+	 * left, once stopped.
+	 * 
+	 * @param timeoutMillis 		The longest time to wait, in milliseconds.
+	 * 
+	 * @return 						<code>true</code> if everything has been written.
+	 * 
+	 * @throws InterruptedException If the waiting thread has been interrupted.
+	 */
+	public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+		// Never started.
+		if (this.persistenceThread == null) {
+			return true;
+		}
+		this.persistenceThread.join(Math.max(1, timeoutMillis));
+		return !this.persistenceThread.isAlive();
+	}
+
+	/**
+	 * Close the connections with the Data Base, once the thread that persists
+	 * things has ended, or has been given up on : whatever it still tries to
+	 * write fails from then on. Nothing to close if it has never been started.
+	 */
+	public void closeConnection() {
+		if (this.persistence != null) {
+			this.persistence.closeConnection();
+			this.persistence = null;
+		}
+	}
+	
+	/**
+	 * Returns <code>true</code> while the thread that persists things in Data
+	 * Base is running, and takes the messages.
+	 * 
+	 * @return <code>true</code> while the messages are persisted.
+	 */
+	public boolean isRunning() {
+		return this.isConnectionOpened;
 	}
 
 	/**
@@ -69,55 +148,154 @@ public class PersistenceHandler {
 		// If the connection has been established.
 		if (instance != null) {
 			status = true;
+			this.persistence = instance;
 			// Allow the loop of the persistence handler
 			this.isConnectionOpened = true;
 			
 			// Create new thread to handle the persistence
-			new Thread("Persistence-Thread") {
+			this.persistenceThread = new Thread("Persistence-Thread") {
 				/**
 				 * @see java.lang.Thread.run();
 				 */
 				@Override
 				public void run() {
-					while (PersistenceHandler.this.isConnectionOpened) {
-						// Synchronize on the list of messages.
-						synchronized (NormalMessagesRoom.getInstance()) {
-							try {
-								NormalMessagesRoom.getInstance().wait();
-							} catch (InterruptedException e) {
-								// Not much we can do. Just continue.
-								continue;
-							}
-							// This thread could be released by mistake, so we
-							// have to check the size.
-							if (NormalMessagesRoom.getInstance().getMessages().size() > 0) {
-								// Loop through all messages (even if at the
-								// list will have only one message at any time)
-								for (String message : NormalMessagesRoom.getInstance().getMessages()) {
-									// user : message
-									String[] splited = message.split(" : ");
-									
-									/**********************************************************************************************************/
-									
-									// Persistence.getInstance().insertMessageSimpleStatement(splited[0], splited[1], new Date().toString());
-									// Persistence.getInstance().insertMessagePreparedStatement(splited[0], splited[1], new Date().toString());
-									// Persistence.getInstance().insertMessageCallableStatement(splited[0], splited[1], new Date().toString());
-									
-									// Persistence.getInstance().displayHistorySimpleStatement();
-									// Persistence.getInstance().displayHistoryPreparedStatement();
-									Persistence.getInstance().displayHistoryCallableStatement();
-									
-									/**********************************************************************************************************/
-									
-								}	
-								// Remove all messages.
-								NormalMessagesRoom.getInstance().getMessages().clear();
-							}
-						}
-					}
+					PersistenceHandler.this.writeBehind(Persistence.getInstance());
 				}
-			}.start();
+			};
+			this.persistenceThread.start();
 		}
 		return status;
 	}
+	
+	/**
+	 * Gather the messages into batches, and write each batch once it is full,
+	 * or once its first message has waited long enough. Whatever is left is
+	 * written when the thread is stopped.
+	 * 
+	 * A batch that cannot be written is kept, and written again before any
+	 * other message is taken : meanwhile the messages wait in the
+	 * {@link NormalMessagesRoom}, which tells when it has to drop some.
+	 * 
+	 * @param persistence The {@link Persistence} to write with.
+	 */
+	private void writeBehind(Persistence persistence) {
+		
+		// The settings of the batches.
+		int batchSize = Math.max(1, persistence.getBatchSize());
+		long batchWindowMillis = Math.max(0, persistence.getBatchWindowMillis());
+		
+		// The batch being gathered, and when it has to be written anyway.
+		List<HistoryEntry> batch = new ArrayList<>(batchSize);
+		long batchDeadline = 0;
+		
+		while (this.isConnectionOpened) {
+			
+			// Full, or waited long enough.
+			if (!batch.isEmpty() && (batch.size() >= batchSize || System.currentTimeMillis() >= batchDeadline)) {
+				if (!this.writeBatches(persistence, batch, batchSize)) {
+					// Kept. Give the DATA BASE some time before trying again.
+					this.pause(MAX_RETRY_BACKOFF_MILLIS);
+				}
+				continue;
+			}
+			
+			// Wait no longer than the batch may wait.
+			long timeout = batch.isEmpty() ? NormalMessagesRoom.WAIT_MILLIS : Math.max(0, batchDeadline - System.currentTimeMillis());
+			
+			// The messages arrived so far.
+			List<ChatMessage> messages;
+			try {
+				messages = NormalMessagesRoom.getInstance().waitForMessages(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// Not much we can do. Just continue.
+				continue;
+			}
+			
+			// The first message starts the window.
+			if (batch.isEmpty() && !messages.isEmpty()) {
+				batchDeadline = System.currentTimeMillis() + batchWindowMillis;
+			}
+			for (ChatMessage message : messages) {
+				batch.add(this.toHistoryEntry(message));
+			}
+		}
+		
+		// The last ones, nothing gets lost on the way out.
+		for (List<ChatMessage> messages = NormalMessagesRoom.getInstance().getMessages(); !messages.isEmpty(); messages = NormalMessagesRoom.getInstance().getMessages()) {
+			for (ChatMessage message : messages) {
+				batch.add(this.toHistoryEntry(message));
+			}
+		}
+		this.writeBatches(persistence, batch, batchSize);
+	}
+	
+	/**
+	 * Write the rows, a batch at a time. Each batch written is taken out of
+	 * the rows; the first one that cannot be written stops the writing, and it
+	 * stays, with the ones after it.
+	 * 
+	 * @param persistence The {@link Persistence} to write with.
+	 * @param rows 		  The rows.
+	 * @param batchSize   The most rows in a batch.
+	 * 
+	 * @return 			  <code>true</code> if all the rows have been written.
+	 */
+	private boolean writeBatches(Persistence persistence, List<HistoryEntry> rows, int batchSize) {
+		while (!rows.isEmpty()) {
+			List<HistoryEntry> batch = rows.subList(0, Math.min(rows.size(), batchSize));
+			if (!this.insertWithRetries(persistence, batch)) {
+				return false;
+			}
+			batch.clear();
+		}
+		return true;
+	}
+	
+	/**
+	 * Insert a batch, and try again a few times if it fails, waiting longer
+	 * each time, up to {@link #MAX_RETRY_BACKOFF_MILLIS}.
+	 * 
+	 * @param persistence The {@link Persistence} to write with.
+	 * @param batch 	  The batch.
+	 * 
+	 * @return 			  <code>true</code> if the batch has been inserted.
+	 */
+	private boolean insertWithRetries(Persistence persistence, List<HistoryEntry> batch) {
+		long backoffMillis = INITIAL_RETRY_BACKOFF_MILLIS;
+		for (int attempt = 1; !persistence.insertMessagesBatch(batch); attempt++) {
+			// Given up, for now.
+			if (attempt >= MAX_ATTEMPTS) {
+				logger.warn(MessageFormat.format(
+						ResourceBundleHandler.getInstance().getResourceBundle().getString("BatchOfMessagesKept"), batch.size(), attempt));
+				return false;
+			}
+			this.pause(backoffMillis);
+			backoffMillis = Math.min(MAX_RETRY_BACKOFF_MILLIS, backoffMillis * 2);
+		}
+		return true;
+	}
+	
+	/**
+	 * Sleep, unless interrupted.
+	 * 
+	 * @param millis How long to sleep, in milliseconds.
+	 */
+	private void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			// Not much we can do. Just continue.
+		}
+	}
+	
+	/**
+	 * Returns the row to be written for a message.
+	 * 
+	 * @param message The message.
+	 * 
+	 * @return 		  The row, stamped with the time the message has been sent at.
+	 */
+	private HistoryEntry toHistoryEntry(ChatMessage message) {
+		return new HistoryEntry(0, message.getUser(), message.getBody() != null ? message.getBody() : "", new Timestamp(message.getTimestamp()));
+	}
 }
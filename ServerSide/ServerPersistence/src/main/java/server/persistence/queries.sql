@@ -4,9 +4,25 @@ CREATE TABLE ChatHistory
 t_ID SERIAL PRIMARY KEY,
 t_username TEXT,
 t_message TEXT,
-t_time TEXT 
+t_time TIMESTAMP NOT NULL DEFAULT now()
 );
 
+/* The history is read newest first, page after page, by user and by time range. */
+/* The pages of a user walk this index backwards from the 'before id'. */
+CREATE INDEX ChatHistory_username_id_idx ON ChatHistory (t_username, t_ID);
+/* The time ranges. */
+CREATE INDEX ChatHistory_time_idx ON ChatHistory (t_time);
+
+/* Upgrade a table created with t_time TEXT : the text is java.util.Date.toString(), 'Tue Jan 12 09:50:27 EET 2016'. */
+/* The zone name is dropped, the times are taken as server local time. */
+ALTER TABLE ChatHistory ALTER COLUMN t_time TYPE TIMESTAMP
+	USING to_timestamp(regexp_replace(t_time, ' [A-Z]+ ([0-9]{4})$', ' \1'), 'Dy Mon DD HH24:MI:SS YYYY')::timestamp;
+ALTER TABLE ChatHistory ALTER COLUMN t_time SET DEFAULT now();
+ALTER TABLE ChatHistory ALTER COLUMN t_time SET NOT NULL;
+
+/* A page of the history : the 50 messages of a user older than the row 1000. */
+SELECT t_ID, t_username, t_message, t_time FROM ChatHistory WHERE t_ID < 1000 AND t_username = 'Costi1' ORDER BY t_ID DESC LIMIT 50;
+
 /* Delete the ChatHistory table.*/
 DROP TABLE ChatHistory;
 
@@ -15,21 +31,21 @@ Select * from ChatHistory
 
 /* Store procedure to insert new rows in the CHatHistory table. */
 /* If a stored procedure does not return any value, you can specify void as the return type. */
-CREATE OR REPLACE FUNCTION addEntryInHistoryTable(_username_val TEXT, _message_val TEXT, _time_val TEXT) RETURNS void AS $$
+CREATE OR REPLACE FUNCTION addEntryInHistoryTable(_username_val TEXT, _message_val TEXT, _time_val TIMESTAMP) RETURNS void AS $$
 	BEGIN
 		INSERT INTO ChatHistory (t_username, t_message, t_time) VALUES (_username_val, _message_val, _time_val);
 	END;
 	$$ LANGUAGE plpgsql;
 
 /* DROP the stored procedur. */
-DROP FUNCTION addEntryInHistoryTable(text,text,date) 
+DROP FUNCTION addEntryInHistoryTable(text,text,timestamp) 
 
 /* Example to  Call the addEntryInHistoryTable procedure */
-SELECT addEntryInHistoryTable('Costi1', 'mesajul meu foooooaaaarte luuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuung', 'Tue Jan 12 09:50:27 EET 2016');
-SELECT addEntryInHistoryTable('Costi2', '\};|#@!', 'Tue Jan 12 09:50:27 EET 2016');
-SELECT addEntryInHistoryTable('Costi3', '\};|#@!', 'Tue Jan 12 09:50:27 EET 2016');
-SELECT addEntryInHistoryTable('Costi4', '\};|#@!', 'Tue Jan 12 09:50:27 EET 2016');
-SELECT addEntryInHistoryTable('Costi5', '\};|#@!', 'Tue Jan 12 09:50:27 EET 2016');
+SELECT addEntryInHistoryTable('Costi1', 'mesajul meu foooooaaaarte luuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuuung', '2016-01-12 09:50:27');
+SELECT addEntryInHistoryTable('Costi2', '\};|#@!', '2016-01-12 09:50:27');
+SELECT addEntryInHistoryTable('Costi3', '\};|#@!', '2016-01-12 09:50:27');
+SELECT addEntryInHistoryTable('Costi4', '\};|#@!', '2016-01-12 09:50:27');
+SELECT addEntryInHistoryTable('Costi5', '\};|#@!', '2016-01-12 09:50:27');
 
 /* Store procedure that displays everything in the ChatHistory table. */
 /* To return one or more result sets (cursors in terms of PostgreSQL), you have to use refcursor return type. */
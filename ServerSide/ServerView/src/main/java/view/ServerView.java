@@ -8,6 +8,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.io.IOException;
+import java.util.List;
 import java.util.Locale;
 
 import javax.swing.BorderFactory;
@@ -325,26 +326,20 @@ public class ServerView extends View {
 			public void run() {
 				// forever.
 				while (ServerView.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (LoginMessagesRoom.getInstance()) {
-						try {
-							LoginMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(LoginMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							for (String message : LoginMessagesRoom.getInstance().getMessages()) {
-								// Append message in the chat text area.
-								ServerView.this.logTextArea.append(message + "\n");
-								// Put the caret at the end.
-								ServerView.this.logTextArea.setCaretPosition(ServerView.this.logTextArea.getDocument().getLength());
-							}
-							// Remove all messages.
-							LoginMessagesRoom.getInstance().getMessages().clear();
-						}
+					// The messages arrived so far, in one batch.
+					List<String> messages;
+					try {
+						messages = LoginMessagesRoom.getInstance().waitForMessages();
+					} catch (InterruptedException e) {
+						// Not much we can do. Just continue.
+						continue;
+					}
+					// Loop through all messages.
+					for (String message : messages) {
+						// Append message in the chat text area.
+						ServerView.this.logTextArea.append(message + "\n");
+						// Put the caret at the end.
+						ServerView.this.logTextArea.setCaretPosition(ServerView.this.logTextArea.getDocument().getLength());
 					}
 				}
 			};
@@ -365,26 +360,20 @@ public class ServerView extends View {
 			public void run() {
 				// forever.
 				while (ServerView.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (WhoisinMessagesRoom.getInstance()) {
-						try {
-							WhoisinMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(WhoisinMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							for (String message : WhoisinMessagesRoom.getInstance().getMessages()) {
-								// Append message in the chat text area.
-								ServerView.this.logTextArea.append(message + "\n");
-								// Put the caret at the end.
-								ServerView.this.logTextArea.setCaretPosition(ServerView.this.logTextArea.getDocument().getLength());
-							}
-							// Remove all messages.
-							WhoisinMessagesRoom.getInstance().getMessages().clear();
-						}
+					// The messages arrived so far, in one batch.
+					List<String> messages;
+					try {
+						messages = WhoisinMessagesRoom.getInstance().waitForMessages();
+					} catch (InterruptedException e) {
+						// Not much we can do. Just continue.
+						continue;
+					}
+					// Loop through all messages.
+					for (String message : messages) {
+						// Append message in the chat text area.
+						ServerView.this.logTextArea.append(message + "\n");
+						// Put the caret at the end.
+						ServerView.this.logTextArea.setCaretPosition(ServerView.this.logTextArea.getDocument().getLength());
 					}
 				}
 			};
@@ -405,26 +394,20 @@ public class ServerView extends View {
 			public void run() {
 				// forever.
 				while (ServerView.this.isConnectionOpened) {
-					// Synchronize on the list of messages.
-					synchronized (LogoutMessagesRoom.getInstance()) {
-						try {
-							LogoutMessagesRoom.getInstance().wait();
-						} catch (InterruptedException e) {
-							// Not much we can do. Just continue.
-							continue;
-						}
-						// This thread could be released by mistake, so we have to check the size.
-						if(LogoutMessagesRoom.getInstance().getMessages().size() > 0) {
-							// Loop through all messages (even if at the list will have only one message at any time)
-							for (String message : LogoutMessagesRoom.getInstance().getMessages()) {
-								// Append message in the chat text area.
-								ServerView.this.logTextArea.append(message + "\n");
-								// Put the caret at the end.
-								ServerView.this.logTextArea.setCaretPosition(ServerView.this.logTextArea.getDocument().getLength());
-							}
-							// Remove all messages.
-							LogoutMessagesRoom.getInstance().getMessages().clear();
-						}
+					// The messages arrived so far, in one batch.
+					List<String> messages;
+					try {
+						messages = LogoutMessagesRoom.getInstance().waitForMessages();
+					} catch (InterruptedException e) {
+						// Not much we can do. Just continue.
+						continue;
+					}
+					// Loop through all messages.
+					for (String message : messages) {
+						// Append message in the chat text area.
+						ServerView.this.logTextArea.append(message + "\n");
+						// Put the caret at the end.
+						ServerView.this.logTextArea.setCaretPosition(ServerView.this.logTextArea.getDocument().getLength());
 					}
 				}
 			};